@@ -0,0 +1,130 @@
+/*
+ * Line settings of an opened serial port, see com.aill.androidserialport.SerialPort.
+ * Every function returns 0 on success or the errno of the failed call, nativeWaitInput excepted.
+ */
+
+#include <jni.h>
+#include <errno.h>
+#include <poll.h>
+#include <termios.h>
+#include <sys/ioctl.h>
+#include <linux/serial.h>
+#include <android/log.h>
+
+#define TAG "serial_port_termios"
+#define LOGE(fmt, ...) __android_log_print(ANDROID_LOG_ERROR, TAG, fmt, ##__VA_ARGS__)
+
+static int get_fd(JNIEnv *env, jobject fileDescriptor)
+{
+	jclass cFileDescriptor = (*env)->GetObjectClass(env, fileDescriptor);
+	jfieldID descriptorID = (*env)->GetFieldID(env, cFileDescriptor, "descriptor", "I");
+	if (descriptorID == NULL) {
+		/* The field of the JVM running the unit tests on the host */
+		(*env)->ExceptionClear(env);
+		descriptorID = (*env)->GetFieldID(env, cFileDescriptor, "fd", "I");
+		if (descriptorID == NULL) {
+			(*env)->ExceptionClear(env);
+			return -1;
+		}
+	}
+	return (*env)->GetIntField(env, fileDescriptor, descriptorID);
+}
+
+/*
+ * flowControl, vmin and vtime are -1 to leave the setting unchanged
+ */
+JNIEXPORT jint JNICALL
+Java_com_aill_androidserialport_SerialPort_setTermios(JNIEnv *env, jclass thiz, jobject fileDescriptor,
+		jint flowControl, jint vmin, jint vtime)
+{
+	struct termios cfg;
+	const int fd = get_fd(env, fileDescriptor);
+	if (fd < 0)
+		return EBADF;
+	if (tcgetattr(fd, &cfg) != 0) {
+		LOGE("tcgetattr() failed, errno %d", errno);
+		return errno;
+	}
+	if (flowControl == 0)
+		cfg.c_cflag &= ~CRTSCTS;
+	else if (flowControl > 0)
+		cfg.c_cflag |= CRTSCTS;
+	if (vmin >= 0)
+		cfg.c_cc[VMIN] = (cc_t) vmin;
+	if (vtime >= 0)
+		cfg.c_cc[VTIME] = (cc_t) vtime;
+	if (tcsetattr(fd, TCSANOW, &cfg) != 0) {
+		LOGE("tcsetattr() failed, errno %d", errno);
+		return errno;
+	}
+	return 0;
+}
+
+/*
+ * ASYNC_LOW_LATENCY flag of the UART driver, drivers without TIOCSSERIAL return ENOTTY or EINVAL
+ */
+JNIEXPORT jint JNICALL
+Java_com_aill_androidserialport_SerialPort_setLowLatency(JNIEnv *env, jclass thiz, jobject fileDescriptor,
+		jboolean enable)
+{
+	struct serial_struct ss;
+	const int fd = get_fd(env, fileDescriptor);
+	if (fd < 0)
+		return EBADF;
+	if (ioctl(fd, TIOCGSERIAL, &ss) != 0)
+		return errno;
+	if (enable)
+		ss.flags |= ASYNC_LOW_LATENCY;
+	else
+		ss.flags &= ~ASYNC_LOW_LATENCY;
+	if (ioctl(fd, TIOCSSERIAL, &ss) != 0)
+		return errno;
+	return 0;
+}
+
+/*
+ * Discard the bytes received but not read yet, tcflush(TCIFLUSH)
+ */
+JNIEXPORT jint JNICALL
+Java_com_aill_androidserialport_SerialPort_nativeFlushInput(JNIEnv *env, jclass thiz, jobject fileDescriptor)
+{
+	const int fd = get_fd(env, fileDescriptor);
+	if (fd < 0)
+		return EBADF;
+	if (tcflush(fd, TCIFLUSH) != 0)
+		return errno;
+	return 0;
+}
+
+/*
+ * Wait until all written bytes have been transmitted, tcdrain()
+ */
+JNIEXPORT jint JNICALL
+Java_com_aill_androidserialport_SerialPort_nativeDrain(JNIEnv *env, jclass thiz, jobject fileDescriptor)
+{
+	const int fd = get_fd(env, fileDescriptor);
+	if (fd < 0)
+		return EBADF;
+	if (tcdrain(fd) != 0)
+		return errno;
+	return 0;
+}
+
+/*
+ * Wait for received bytes with poll(), returns 1 if bytes can be read, 0 on timeout or signal, or the negative errno
+ */
+JNIEXPORT jint JNICALL
+Java_com_aill_androidserialport_SerialPort_nativeWaitInput(JNIEnv *env, jclass thiz, jobject fileDescriptor,
+		jint timeout)
+{
+	struct pollfd pfd;
+	pfd.fd = get_fd(env, fileDescriptor);
+	if (pfd.fd < 0)
+		return -EBADF;
+	pfd.events = POLLIN;
+	pfd.revents = 0;
+	const int ret = poll(&pfd, 1, timeout);
+	if (ret < 0)
+		return errno == EINTR ? 0 : -errno;
+	return ret > 0 && (pfd.revents & POLLIN) != 0 ? 1 : 0;
+}
@@ -16,6 +16,10 @@
 
 package com.aill.androidserialport;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.util.Log;
 
 import java.io.File;
@@ -25,6 +29,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 public class SerialPort {
 
@@ -36,6 +41,7 @@ public class SerialPort {
 	private FileDescriptor mFd;
 	private FileInputStream mFileInputStream;
 	private FileOutputStream mFileOutputStream;
+	private String mPath;
 
 	public SerialPort(File device, int baudrate, int flags) throws SecurityException, IOException {
 
@@ -44,7 +50,8 @@ public class SerialPort {
 			throw new IOException();
 		}
 
-		mFd = open(device.getAbsolutePath(), baudrate, flags);
+		mPath = device.getAbsolutePath();
+		mFd = open(mPath, baudrate, flags);
 		if (mFd == null) {
 			Log.e(TAG, "native open returns null");
 			throw new IOException();
@@ -62,10 +69,137 @@ public class SerialPort {
 		return mFileOutputStream;
 	}
 
+	public FileDescriptor getFileDescriptor() {
+		return mFd;
+	}
+
+	/**
+	 * @return Channel reading the port, it shares the file descriptor with getInputStream()
+	 */
+	public FileChannel getInputChannel() {
+		return mFileInputStream.getChannel();
+	}
+
+	/**
+	 * @return Channel writing the port, it shares the file descriptor with getOutputStream()
+	 */
+	public FileChannel getOutputChannel() {
+		return mFileOutputStream.getChannel();
+	}
+
+	/**
+	 * Wait until all written bytes have been transmitted (tcdrain)
+	 */
+	public void drain() throws IOException {
+		if (sTermios) {
+			final int err = nativeDrain(mFd);
+			if (err != 0)
+				throw new IOException("tcdrain errno " + err);
+			return;
+		}
+		try {
+			Os.tcdrain(mFd);
+		} catch (ErrnoException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Block the calling thread until bytes are received, without polling available() in a sleep loop.
+	 * It calls poll() in libserial_port_termios, or through android.system.Os without it, a virtual thread blocked
+	 * here holds its carrier thread.
+	 * @param timeout maximum waiting time in ms, 0 returns immediately
+	 * @return true if bytes can be read, false on timeout
+	 */
+	public boolean waitInput(int timeout) throws IOException {
+		if (sTermios) {
+			final int ret = nativeWaitInput(mFd, timeout);
+			if (ret < 0)
+				throw new IOException("poll errno " + -ret);
+			return ret > 0;
+		}
+		StructPollfd pfd = new StructPollfd();
+		pfd.fd = mFd;
+		pfd.events = (short) OsConstants.POLLIN;
+		try {
+			return Os.poll(new StructPollfd[]{pfd}, timeout) > 0 && (pfd.revents & OsConstants.POLLIN) != 0;
+		} catch (ErrnoException e) {
+			if (e.errno == OsConstants.EINTR)
+				return false;
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Discard the bytes received but not read yet (tcflush TCIFLUSH), without waiting for the line to become idle
+	 * @return Number of bytes discarded from the input buffer
+	 */
+	public int flushInput() throws IOException {
+		int total = mFileInputStream.available();
+		if (sTermios) {
+			final int err = nativeFlushInput(mFd);
+			if (err != 0)
+				throw new IOException("tcflush errno " + err);
+			return total;
+		}
+		int n;
+		total = 0;
+		while ((n = mFileInputStream.available()) > 0) {
+			byte[] buf = new byte[Math.min(n, 4096)];
+			total += mFileInputStream.read(buf, 0, buf.length);
+		}
+		return total;
+	}
+
+	/**
+	 * Apply line settings to the opened port through termios.
+	 * The low latency flag needs a UART driver supporting TIOCSSERIAL, USB serial adapters usually do not.
+	 * A setting that fails makes the call return false, the settings applied before it stay in effect.
+	 * @param options line settings
+	 * @return true if all requested settings were applied
+	 */
+	public boolean configure(SerialPortOptions options) {
+		if (!sTermios) {
+			Log.e(TAG, "libserial_port_termios is not loaded");
+			return false;
+		}
+		boolean ret = true;
+		if (options.mFlowControl != null || options.mVmin >= 0 || options.mVtime >= 0) {
+			final int flowControl = options.mFlowControl == null ? -1 : (options.mFlowControl ? 1 : 0);
+			final int err = setTermios(mFd, flowControl, options.mVmin, options.mVtime);
+			if (err != 0) {
+				Log.e(TAG, mPath + " tcsetattr errno " + err);
+				ret = false;
+			}
+		}
+		if (options.mLowLatency != null) {
+			final int err = setLowLatency(mFd, options.mLowLatency);
+			if (err != 0) {
+				Log.e(TAG, mPath + " TIOCSSERIAL errno " + err);
+				ret = false;
+			}
+		}
+		return ret;
+	}
+
 	// JNI
 	private native static FileDescriptor open(String path, int baudrate, int flags);
 	public native void close();
+	// Line settings, 0 or the errno of the failed call
+	private native static int setTermios(FileDescriptor fd, int flowControl, int vmin, int vtime);
+	private native static int setLowLatency(FileDescriptor fd, boolean enable);
+	private native static int nativeFlushInput(FileDescriptor fd);
+	private native static int nativeDrain(FileDescriptor fd);
+	// 1 if bytes can be read, 0 on timeout or signal, the negative errno on failure
+	private native static int nativeWaitInput(FileDescriptor fd, int timeout);
+	private static boolean sTermios = false;
 	static {
 		System.loadLibrary("serial_port");
+		try {
+			System.loadLibrary("serial_port_termios");
+			sTermios = true;
+		} catch (UnsatisfiedLinkError e) {
+			Log.e(TAG, "libserial_port_termios is missing, the line settings cannot be changed");
+		}
 	}
 }
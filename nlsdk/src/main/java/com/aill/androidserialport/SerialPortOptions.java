@@ -0,0 +1,50 @@
+package com.aill.androidserialport;
+
+/**
+ * Line settings applied to an opened serial port with SerialPort.configure().
+ * A value of -1 (or null) leaves the current setting of the port unchanged.
+ */
+public class SerialPortOptions {
+
+	Boolean mFlowControl = null;
+	int mVmin = -1;
+	int mVtime = -1;
+	Boolean mLowLatency = null;
+
+	/**
+	 * @param enable true to enable RTS/CTS hardware flow control (crtscts)
+	 */
+	public SerialPortOptions setFlowControl(boolean enable) {
+		mFlowControl = enable;
+		return this;
+	}
+
+	/**
+	 * @param vmin minimum number of bytes for a read to return, 0..255
+	 */
+	public SerialPortOptions setVmin(int vmin) {
+		if (vmin < 0 || vmin > 255)
+			throw new IllegalArgumentException("vmin:" + vmin);
+		mVmin = vmin;
+		return this;
+	}
+
+	/**
+	 * @param vtime read timeout in tenths of a second, 0..255
+	 */
+	public SerialPortOptions setVtime(int vtime) {
+		if (vtime < 0 || vtime > 255)
+			throw new IllegalArgumentException("vtime:" + vtime);
+		mVtime = vtime;
+		return this;
+	}
+
+	/**
+	 * @param enable true to set the ASYNC_LOW_LATENCY flag of the UART driver,
+	 *               received bytes are pushed to the reader immediately instead of after the driver's flush delay
+	 */
+	public SerialPortOptions setLowLatency(boolean enable) {
+		mLowLatency = enable;
+		return this;
+	}
+}
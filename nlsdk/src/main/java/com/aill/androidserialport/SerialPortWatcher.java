@@ -0,0 +1,217 @@
+package com.aill.androidserialport;
+
+import android.os.Build;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Serial port discovery with a cache that follows hot-plugged adapters.
+ * /dev is listed once per refresh and every entry is matched against all serial driver prefixes of
+ * /proc/tty/drivers in the same pass. While watching, /dev is observed with inotify (FileObserver),
+ * created and deleted nodes update the cache incrementally and are reported to the listeners,
+ * so an application can open a new USB serial adapter as soon as it appears.
+ */
+public class SerialPortWatcher {
+
+	/**
+	 * Notified on the FileObserver thread when a serial port node appears or disappears
+	 */
+	public interface Listener {
+		void onPortAdded(String path, String driver);
+		void onPortRemoved(String path, String driver);
+	}
+
+	private static final String TAG = "SerialPort";
+	private static final String DEV = "/dev";
+
+	private final List<String[]> mDrivers = new ArrayList<String[]>();   // {driver name, device root}
+	private final Map<String, String> mPorts = new LinkedHashMap<String, String>();   // path -> driver name
+	private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+	private FileObserver mObserver;
+
+	/**
+	 * Re-read the driver list and /dev, listeners are notified of the differences with the previous cache
+	 */
+	public void refresh() {
+		List<String[]> drivers;
+		try {
+			drivers = readDrivers();
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot read /proc/tty/drivers: " + e.getMessage());
+			return;
+		}
+		Map<String, String> ports = new LinkedHashMap<String, String>();
+		String[] names = new File(DEV).list();
+		if (names != null) {
+			for (String name : names) {
+				String path = DEV + "/" + name;
+				String driver = match(drivers, path);
+				if (driver != null)
+					ports.put(path, driver);
+			}
+		}
+
+		List<String[]> added = new ArrayList<String[]>();
+		List<String[]> removed = new ArrayList<String[]>();
+		synchronized (this) {
+			mDrivers.clear();
+			mDrivers.addAll(drivers);
+			for (Map.Entry<String, String> e : mPorts.entrySet())
+				if (!ports.containsKey(e.getKey())) removed.add(new String[]{e.getKey(), e.getValue()});
+			for (Map.Entry<String, String> e : ports.entrySet())
+				if (!mPorts.containsKey(e.getKey())) added.add(new String[]{e.getKey(), e.getValue()});
+			mPorts.clear();
+			mPorts.putAll(ports);
+		}
+		for (String[] p : removed) notifyRemoved(p[0], p[1]);
+		for (String[] p : added) notifyAdded(p[0], p[1]);
+	}
+
+	/**
+	 * @return Absolute paths of the serial ports in the cache, refreshed first if the cache is empty
+	 */
+	public String[] getDevicesPath() {
+		if (isEmpty())
+			refresh();
+		synchronized (this) {
+			return mPorts.keySet().toArray(new String[0]);
+		}
+	}
+
+	/**
+	 * @return "name (driver)" of the serial ports in the cache, like SerialPortFinder.getAllDevices()
+	 */
+	public String[] getDevices() {
+		if (isEmpty())
+			refresh();
+		synchronized (this) {
+			String[] ret = new String[mPorts.size()];
+			int i = 0;
+			for (Map.Entry<String, String> e : mPorts.entrySet())
+				ret[i++] = String.format("%s (%s)", new File(e.getKey()).getName(), e.getValue());
+			return ret;
+		}
+	}
+
+	public void addListener(Listener listener) {
+		mListeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Refresh the cache and start following the changes of /dev
+	 */
+	@SuppressWarnings("deprecation")
+	public synchronized void startWatching() {
+		if (mObserver != null)
+			return;
+		final int mask = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+		// FileObserver(String, int) is deprecated from Android 10 on
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+			mObserver = new FileObserver(new File(DEV), mask) {
+				@Override
+				public void onEvent(int event, String name) {
+					onObserverEvent(event, name);
+				}
+			};
+		} else {
+			mObserver = new FileObserver(DEV, mask) {
+				@Override
+				public void onEvent(int event, String name) {
+					onObserverEvent(event, name);
+				}
+			};
+		}
+		mObserver.startWatching();
+		refresh();
+	}
+
+	public synchronized void stopWatching() {
+		if (mObserver != null) {
+			mObserver.stopWatching();
+			mObserver = null;
+		}
+	}
+
+	public synchronized boolean isWatching() {
+		return mObserver != null;
+	}
+
+	/* ============================= private =====================================================*/
+	private synchronized boolean isEmpty() {
+		return mPorts.isEmpty();
+	}
+
+	private void onObserverEvent(int event, String name) {
+		if (name != null)
+			onDevEvent(event, DEV + "/" + name);
+	}
+
+	private void onDevEvent(int event, String path) {
+		final int type = event & (FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO);
+		String driver;
+		boolean changed;
+		synchronized (this) {
+			driver = match(mDrivers, path);
+			if (driver == null)
+				return;
+			if (type == FileObserver.CREATE || type == FileObserver.MOVED_TO)
+				changed = mPorts.put(path, driver) == null;
+			else
+				changed = mPorts.remove(path) != null;
+		}
+		if (!changed)
+			return;
+		if (type == FileObserver.CREATE || type == FileObserver.MOVED_TO)
+			notifyAdded(path, driver);
+		else
+			notifyRemoved(path, driver);
+	}
+
+	private void notifyAdded(String path, String driver) {
+		for (Listener l : mListeners)
+			l.onPortAdded(path, driver);
+	}
+
+	private void notifyRemoved(String path, String driver) {
+		for (Listener l : mListeners)
+			l.onPortRemoved(path, driver);
+	}
+
+	private static String match(List<String[]> drivers, String path) {
+		for (String[] d : drivers)
+			if (path.startsWith(d[1])) return d[0];
+		return null;
+	}
+
+	static List<String[]> readDrivers() throws IOException {
+		List<String[]> drivers = new ArrayList<String[]>();
+		LineNumberReader r = new LineNumberReader(new FileReader("/proc/tty/drivers"));
+		try {
+			String l;
+			while ((l = r.readLine()) != null) {
+				// Since driver name may contain spaces, we do not extract driver name with split()
+				String drivername = l.substring(0, Math.min(0x15, l.length())).trim();
+				String[] w = l.split(" +");
+				if ((w.length >= 5) && (w[w.length - 1].equals("serial")))
+					drivers.add(new String[]{drivername, w[w.length - 4]});
+			}
+		} finally {
+			r.close();
+		}
+		return drivers;
+	}
+}
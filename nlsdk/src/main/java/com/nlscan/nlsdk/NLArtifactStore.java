@@ -0,0 +1,367 @@
+package com.nlscan.nlsdk;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Content-addressed local store of firmware packages and configuration files.
+ *  Every object is named by the SHA-256 of its content and checked against its name when it is loaded, a
+ *  corrupted object is deleted and reported as missing. A firmware package is stored with its parsed index, so
+ *  a package rolled out again is only hashed. An XML configuration is compiled once into the binary format of
+ *  NLConfigLoader, the store maps the SHA-256 of the XML to the compiled object, so the same XML content is
+ *  never parsed again, whatever its file name.
+ *  A stored package can be sent again without its download with updateFirmware(store.getFirmware(sha256)).
+ *  The store is capped by a disk quota, the least recently used artifacts are evicted first. An artifact in use,
+ *  e.g. a configuration being sent to a device, is pinned with acquire and never evicted until it is released.
+ *  An artifact larger than the whole quota is not stored, it would only evict all the others and then itself.
+ *  <pre>
+ *  &lt;sha256&gt;.fw     firmware package        &lt;sha256&gt;.fwidx  its parsed index
+ *  &lt;sha256&gt;.nlcf   compiled configuration  &lt;sha256&gt;.ref    SHA-256 of the compiled configuration of an XML
+ *  </pre>
+ */
+public class NLArtifactStore {
+    private static final String TAG = "NLArtifactStore";
+    private static final String FIRMWARE_SUFFIX = ".fw";
+    private static final String CONFIG_SUFFIX   = ".nlcf";
+    private static final String REF_SUFFIX      = ".ref";
+    private static final String TMP_SUFFIX      = ".tmp";
+
+    private final File dir;
+    private final long quotaBytes;
+    private final Map<String, Integer> pins = new HashMap<>();
+
+    /**
+     * @param dir        store directory used by nothing else, e.g. new File(context.getFilesDir(), "artifacts")
+     * @param quotaBytes disk space the store may use
+     */
+    public NLArtifactStore(File dir, long quotaBytes) {
+        if (quotaBytes <= 0)
+            throw new IllegalArgumentException("quotaBytes:" + quotaBytes);
+        this.dir        = dir;
+        this.quotaBytes = quotaBytes;
+    }
+
+    /* ============================= firmware ====================================================*/
+    /**
+     * Store a downloaded firmware package, or find it if the same content was stored before
+     * @param data firmware package content, it must not be modified afterwards
+     * @return The package, null if the content is not a valid firmware package. A package larger than the quota
+     *         is returned without being stored, getFirmware does not find it.
+     */
+    public synchronized NLFirmwarePackage putFirmware(byte[] data) {
+        if (data != null && !fits(data.length))
+            return NLFirmwarePackage.load(data, null);
+        NLFirmwarePackage pkg = NLFirmwarePackage.load(data, dir);
+        if (pkg == null || pkg.getSha256() == null)
+            return pkg;
+        File f = new File(dir, pkg.getSha256() + FIRMWARE_SUFFIX);
+        // A copy of another length was truncated, it is written again so getFirmware finds the package
+        if (f.isFile() && f.length() == data.length) {
+            touch(pkg.getSha256());
+        } else if (write(f, data, 0, data.length)) {
+            trim();
+        }
+        return pkg;
+    }
+
+    /**
+     * Load a stored firmware package
+     * @param sha256 SHA-256 of the package in hex, as returned by NLFirmwarePackage.getSha256
+     * @return The package, null if it is not stored or was corrupted
+     */
+    public synchronized NLFirmwarePackage getFirmware(String sha256) {
+        File f = new File(dir, sha256 + FIRMWARE_SUFFIX);
+        byte[] data = read(f);
+        if (data == null)
+            return null;
+        // Loading hashes the content, a package that no longer matches its name is dropped
+        NLFirmwarePackage pkg = NLFirmwarePackage.load(data, dir);
+        if (pkg == null || !sha256.equals(pkg.getSha256())) {
+            Log.e(TAG, "Corrupted firmware " + f);
+            remove(sha256);
+            return null;
+        }
+        touch(sha256);
+        return pkg;
+    }
+
+    /* ============================= configuration ===============================================*/
+    /**
+     * Store a configuration file for updateConfig, compiling it once if it is XML
+     * @param file XML or compiled configuration file
+     * @return The compiled configuration in the store, null if the file cannot be read or compiled or is larger than the quota
+     */
+    public synchronized File putConfig(File file) {
+        byte[] data = read(file);
+        if (data == null)
+            return null;
+        final String hash = NLFirmwarePackage.sha256(data);
+        if (hash == null)
+            return null;
+        File compiled = getConfig(hash);
+        if (compiled != null)
+            return compiled;
+        try {
+            if (NLConfigLoader.isCompiled(file)) {
+                if (!fits(data.length))
+                    return null;
+                compiled = new File(dir, hash + CONFIG_SUFFIX);
+                if (!write(compiled, data, 0, data.length))
+                    return null;
+            } else {
+                File tmp = new File(dir, hash + CONFIG_SUFFIX + TMP_SUFFIX);
+                if (!makeDir())
+                    return null;
+                NLConfigLoader.compile(file, tmp);
+                byte[] out = read(tmp);
+                final String compiledHash = out == null || !fits(out.length) ? null : NLFirmwarePackage.sha256(out);
+                if (compiledHash == null) {
+                    tmp.delete();
+                    return null;
+                }
+                compiled = new File(dir, compiledHash + CONFIG_SUFFIX);
+                if (!tmp.renameTo(compiled)) {
+                    tmp.delete();
+                    return null;
+                }
+                byte[] ref = compiledHash.getBytes();
+                if (!write(new File(dir, hash + REF_SUFFIX), ref, 0, ref.length))
+                    return null;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot compile " + file, e);
+            return null;
+        }
+        trim();
+        return compiled.isFile() ? compiled : null;
+    }
+
+    /**
+     * Find the compiled configuration of a configuration file stored before
+     * @param sha256 SHA-256 of the XML or compiled file content in hex
+     * @return The compiled configuration, null if it is not stored or was corrupted
+     */
+    public synchronized File getConfig(String sha256) {
+        String target = sha256;
+        File ref = new File(dir, sha256 + REF_SUFFIX);
+        if (ref.isFile()) {
+            byte[] data = read(ref);
+            target = data == null ? null : new String(data).trim();
+            if (target == null || target.isEmpty()) {
+                remove(sha256);
+                return null;
+            }
+        }
+        File f = new File(dir, target + CONFIG_SUFFIX);
+        byte[] data = read(f);
+        if (data == null) {
+            if (ref.isFile())
+                remove(sha256);          // the compiled object was evicted
+            return null;
+        }
+        if (!target.equals(NLFirmwarePackage.sha256(data))) {
+            Log.e(TAG, "Corrupted configuration " + f);
+            remove(target);
+            remove(sha256);
+            return null;
+        }
+        touch(target);
+        if (!target.equals(sha256))
+            touch(sha256);
+        return f;
+    }
+
+    /* ============================= store =======================================================*/
+    /**
+     * Delete all the files of an artifact
+     * @param sha256 SHA-256 of the artifact in hex
+     */
+    public synchronized void remove(String sha256) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            if (keyOf(f).equals(sha256) && !f.delete())
+                Log.e(TAG, "Cannot delete " + f);
+        }
+    }
+
+    /**
+     * Pin an artifact, trim does not evict it until it is released as many times as it was acquired
+     * @param artifact file of the artifact, as returned by putConfig or getConfig
+     * @return false if the artifact is no longer in the store
+     */
+    public synchronized boolean acquire(File artifact) {
+        if (!artifact.isFile())
+            return false;
+        final String key = keyOf(artifact);
+        final Integer count = pins.get(key);
+        pins.put(key, count == null ? 1 : count + 1);
+        return true;
+    }
+
+    /**
+     * Unpin an artifact acquired before
+     */
+    public synchronized void release(File artifact) {
+        final String key = keyOf(artifact);
+        final Integer count = pins.get(key);
+        if (count == null)
+            return;
+        if (count > 1)
+            pins.put(key, count - 1);
+        else
+            pins.remove(key);
+    }
+
+    /**
+     * @return Disk space used by the store in bytes
+     */
+    public synchronized long size() {
+        long total = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                total += f.length();
+        }
+        return total;
+    }
+
+    /**
+     * Evict the least recently used artifacts until the store fits in its quota, pinned artifacts are kept
+     */
+    public synchronized void trim() {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        // An artifact is all the files sharing its hash, last used when any of them was
+        final Map<String, long[]> artifacts = new HashMap<>();     // { size, last used }
+        long total = 0;
+        for (File f : files) {
+            long[] a = artifacts.get(keyOf(f));
+            if (a == null) {
+                a = new long[2];
+                artifacts.put(keyOf(f), a);
+            }
+            a[0] += f.length();
+            a[1]  = Math.max(a[1], f.lastModified());
+            total += f.length();
+        }
+        if (total <= quotaBytes)
+            return;
+        List<Map.Entry<String, long[]>> lru = new ArrayList<>(artifacts.entrySet());
+        Collections.sort(lru, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                return Long.compare(a.getValue()[1], b.getValue()[1]);
+            }
+        });
+        for (Map.Entry<String, long[]> e : lru) {
+            if (total <= quotaBytes)
+                break;
+            if (pins.containsKey(e.getKey()))
+                continue;
+            remove(e.getKey());
+            total -= e.getValue()[0];
+        }
+    }
+
+    /* ============================= private =====================================================*/
+    private boolean fits(long bytes) {
+        if (bytes <= quotaBytes)
+            return true;
+        Log.e(TAG, "Artifact of " + bytes + " bytes exceeds the quota of " + quotaBytes + " bytes, it is not stored");
+        return false;
+    }
+
+    private static String keyOf(File f) {
+        final String name = f.getName();
+        final int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    /**
+     * Mark all the files of an artifact as used now
+     */
+    private void touch(String sha256) {
+        final long now = System.currentTimeMillis();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            if (keyOf(f).equals(sha256))
+                f.setLastModified(now);
+        }
+    }
+
+    private boolean makeDir() {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create " + dir);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write a file atomically, a crash never leaves a partial object under its final name
+     */
+    private boolean write(File f, byte[] data, int pos, int len) {
+        if (!makeDir())
+            return false;
+        File tmp = new File(f.getPath() + TMP_SUFFIX);
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data, pos, len);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f))
+                throw new IOException("Cannot rename " + tmp);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save " + f, e);
+            tmp.delete();
+            return false;
+        }
+    }
+
+    private static byte[] read(File f) {
+        if (!f.isFile())
+            return null;
+        try {
+            InputStream in = new FileInputStream(f);
+            try {
+                final long length = f.length();
+                if (length > Integer.MAX_VALUE)
+                    return null;
+                byte[] data = new byte[(int) length];
+                int pos = 0;
+                while (pos < data.length) {
+                    int n = in.read(data, pos, data.length - pos);
+                    if (n < 0)
+                        return null;
+                    pos += n;
+                }
+                return data;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + f, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.nlscan.nlsdk;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  Decode result over a slice of bytes, parsed lazily.
+ *  The header (custom prefix, CodeID, AIM ID) and the suffix are located on the first access, the GS1 element
+ *  strings on the first access to an application identifier. Parsing only stores offsets in arrays owned by the
+ *  barcode, Strings are only created by the methods returning them.
+ *  The barcode passed to an NLBarcodeListener wraps the receive buffer and is only valid during the callback,
+ *  keep it with Pool.obtain(barcode) and give it back with recycle().
+ *  The header fields must match the prefix sequence configured on the device: custom prefix, CodeID, AIM ID.
+ */
+public final class NLBarcode {
+    public enum Symbology {
+        UNKNOWN, CODE39, CODE128, GS1_128, EAN_UPC, CODABAR, CODE93, ITF, PDF417, QR, DATAMATRIX, AZTEC,
+        GS1_DATABAR, MAXICODE, HANXIN, OTHER
+    }
+
+    /**
+     * Layout of the barcodes sent by the device
+     */
+    public static final class Format {
+        private int prefixLength = 0;
+        private boolean codeId = false;
+        private boolean aimId = false;
+        private byte[] suffix = {};
+        private byte groupSeparator = 0x1d;
+
+        /**
+         * @param length length of the custom prefix, skipped
+         */
+        public Format setPrefixLength(int length) {
+            if (length < 0)
+                throw new IllegalArgumentException("length:" + length);
+            prefixLength = length;
+            return this;
+        }
+
+        /**
+         * @param enable the device sends the 1 byte CodeID
+         */
+        public Format setCodeId(boolean enable) {
+            codeId = enable;
+            return this;
+        }
+
+        /**
+         * @param enable the device sends the 3 byte AIM ID, e.g. "]C1"
+         */
+        public Format setAimId(boolean enable) {
+            aimId = enable;
+            return this;
+        }
+
+        /**
+         * @param suffix bytes stripped from the end when present, e.g. {0x0d, 0x0a}
+         */
+        public Format setSuffix(byte[] suffix) {
+            this.suffix = suffix == null ? new byte[0] : suffix.clone();
+            return this;
+        }
+
+        /**
+         * @param separator byte sent for FNC1 between GS1 element strings, 0x1D by default
+         */
+        public Format setGroupSeparator(byte separator) {
+            groupSeparator = separator;
+            return this;
+        }
+    }
+
+    /**
+     * Barcodes kept beyond the callback, the pool is filled once so steady scanning does not allocate
+     */
+    public static final class Pool {
+        private final Format format;
+        private final NLBarcode[] free;
+        private int size;
+
+        public Pool(int capacity, Format format) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("capacity:" + capacity);
+            this.format = format;
+            free = new NLBarcode[capacity];
+            for (size = 0; size < capacity; ++size)
+                free[size] = new NLBarcode(format, this);
+        }
+
+        /**
+         * @return A barcode holding a copy of the slice, allocated only when the pool is empty
+         */
+        public NLBarcode obtain(byte[] src, int offset, int length) {
+            NLBarcode b;
+            synchronized (this) {
+                b = size > 0 ? free[--size] : new NLBarcode(format, this);
+            }
+            b.copyFrom(src, offset, length);
+            return b;
+        }
+
+        public NLBarcode obtain(NLBarcode barcode) {
+            return obtain(barcode.data, barcode.offset, barcode.length);
+        }
+
+        synchronized void release(NLBarcode barcode) {
+            if (size < free.length)
+                free[size++] = barcode;
+        }
+    }
+
+    private static final int MAX_ELEMENTS = 32;
+
+    private final Format format;
+    private final Pool pool;
+    private byte[] owned;            // buffer of a pooled barcode, grows to the largest barcode kept
+    private byte[] data;
+    private int offset;
+    private int length;
+
+    private boolean parsed;
+    private int codeId;
+    private int aim;
+    private int aimModifier;
+    private int payloadStart;
+    private int payloadEnd;
+
+    private boolean gs1Parsed;
+    private int elements;
+    private final int[] aiStart    = new int[MAX_ELEMENTS];
+    private final int[] aiLength   = new int[MAX_ELEMENTS];
+    private final int[] valueEnd   = new int[MAX_ELEMENTS];
+
+    public NLBarcode(Format format) {
+        this(format, null);
+    }
+
+    private NLBarcode(Format format, Pool pool) {
+        this.format = format;
+        this.pool   = pool;
+    }
+
+    /**
+     * Use the slice without copying it, the caller keeps it unchanged while the barcode is used
+     */
+    public NLBarcode wrap(byte[] src, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > src.length)
+            throw new IndexOutOfBoundsException("offset:" + offset + " length:" + length);
+        data        = src;
+        this.offset = offset;
+        this.length = length;
+        parsed      = false;
+        gs1Parsed   = false;
+        return this;
+    }
+
+    /**
+     * Give a barcode obtained from a pool back, it must not be used afterwards
+     */
+    public void recycle() {
+        if (pool != null)
+            pool.release(this);
+    }
+
+    /* ============================= raw =========================================================*/
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /* ============================= header ======================================================*/
+    /**
+     * @return CodeID byte, -1 if the format has none
+     */
+    public int getCodeId() {
+        parse();
+        return codeId;
+    }
+
+    /**
+     * @return Symbology character of the AIM ID, e.g. 'C' of "]C1", -1 if none
+     */
+    public int getAimId() {
+        parse();
+        return aim;
+    }
+
+    /**
+     * @return Modifier character of the AIM ID, e.g. '1' of "]C1", -1 if none
+     */
+    public int getAimModifier() {
+        parse();
+        return aimModifier;
+    }
+
+    /**
+     * @return Symbology from the AIM ID, UNKNOWN without AIM ID
+     */
+    public Symbology getSymbology() {
+        parse();
+        switch (aim) {
+            case 'A': return Symbology.CODE39;
+            case 'C': return aimModifier == '1' ? Symbology.GS1_128 : Symbology.CODE128;
+            case 'E': return Symbology.EAN_UPC;
+            case 'F': return Symbology.CODABAR;
+            case 'G': return Symbology.CODE93;
+            case 'I': return Symbology.ITF;
+            case 'L': return Symbology.PDF417;
+            case 'Q': return Symbology.QR;
+            case 'd': return Symbology.DATAMATRIX;
+            case 'z': return Symbology.AZTEC;
+            case 'e': return Symbology.GS1_DATABAR;
+            case 'U': return Symbology.MAXICODE;
+            case 'h': return Symbology.HANXIN;
+            case -1:  return Symbology.UNKNOWN;
+            default:  return Symbology.OTHER;
+        }
+    }
+
+    /**
+     * @return true if the AIM ID marks GS1 element strings: ]C1, ]e0, ]d2, ]Q3
+     */
+    public boolean isGs1() {
+        parse();
+        return (aim == 'C' && aimModifier == '1') || aim == 'e'
+                || (aim == 'd' && aimModifier == '2') || (aim == 'Q' && aimModifier == '3');
+    }
+
+    /* ============================= payload =====================================================*/
+    /**
+     * @return Offset of the data without prefix, header and suffix in getData()
+     */
+    public int getPayloadOffset() {
+        parse();
+        return payloadStart;
+    }
+
+    public int getPayloadLength() {
+        parse();
+        return payloadEnd - payloadStart;
+    }
+
+    /**
+     * @return The number of bytes copied
+     */
+    public int copyPayload(byte[] dst, int pos) {
+        parse();
+        final int n = payloadEnd - payloadStart;
+        System.arraycopy(data, payloadStart, dst, pos, n);
+        return n;
+    }
+
+    public String getPayloadString(Charset charset) {
+        parse();
+        return new String(data, payloadStart, payloadEnd - payloadStart, charset);
+    }
+
+    public String getPayloadString() {
+        return getPayloadString(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return getPayloadString();
+    }
+
+    /* ============================= GS1 =========================================================*/
+    /**
+     * @return Number of GS1 element strings, 0 if the barcode is not GS1 or not a valid element string
+     */
+    public int getAiCount() {
+        parseGs1();
+        return elements;
+    }
+
+    /**
+     * @return Application identifier of the element, e.g. "01"
+     */
+    public String getAi(int index) {
+        checkElement(index);
+        return new String(data, aiStart[index], aiLength[index], StandardCharsets.US_ASCII);
+    }
+
+    public int getAiValueOffset(int index) {
+        checkElement(index);
+        return aiStart[index] + aiLength[index];
+    }
+
+    public int getAiValueLength(int index) {
+        checkElement(index);
+        return valueEnd[index] - aiStart[index] - aiLength[index];
+    }
+
+    /**
+     * @param ai application identifier, e.g. "10"
+     * @return Index of the first element with this identifier, -1 if none
+     */
+    public int indexOfAi(CharSequence ai) {
+        parseGs1();
+        for (int i = 0; i < elements; ++i) {
+            if (aiLength[i] != ai.length())
+                continue;
+            int j = 0;
+            while (j < aiLength[i] && data[aiStart[i] + j] == ai.charAt(j))
+                ++j;
+            if (j == aiLength[i])
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Value of the element with this identifier, null if none
+     */
+    public String getAiValue(CharSequence ai) {
+        final int i = indexOfAi(ai);
+        if (i < 0)
+            return null;
+        return new String(data, getAiValueOffset(i), getAiValueLength(i), StandardCharsets.US_ASCII);
+    }
+
+    /* ============================= private =====================================================*/
+    private void copyFrom(byte[] src, int offset, int length) {
+        if (owned == null || owned.length < length)
+            owned = new byte[Math.max(length, 64)];
+        System.arraycopy(src, offset, owned, 0, length);
+        wrap(owned, 0, length);
+    }
+
+    private void parse() {
+        if (parsed)
+            return;
+        parsed = true;
+        int pos = offset;
+        int end = offset + length;
+        codeId = aim = aimModifier = -1;
+        pos = Math.min(end, pos + format.prefixLength);
+        if (format.codeId && pos < end)
+            codeId = data[pos++] & 0xff;
+        if (format.aimId && end - pos >= 3 && data[pos] == ']') {
+            aim         = data[pos + 1] & 0xff;
+            aimModifier = data[pos + 2] & 0xff;
+            pos += 3;
+        }
+        final byte[] suffix = format.suffix;
+        if (suffix.length > 0 && end - pos >= suffix.length) {
+            int i = 0;
+            while (i < suffix.length && data[end - suffix.length + i] == suffix[i])
+                ++i;
+            if (i == suffix.length)
+                end -= suffix.length;
+        }
+        payloadStart = pos;
+        payloadEnd   = end;
+    }
+
+    private void checkElement(int index) {
+        parseGs1();
+        if (index < 0 || index >= elements)
+            throw new IndexOutOfBoundsException("index:" + index);
+    }
+
+    /**
+     * Split the payload into element strings: predefined-length AIs end after their fixed value,
+     * the others at the group separator or the end of the data
+     */
+    private void parseGs1() {
+        if (gs1Parsed)
+            return;
+        gs1Parsed = true;
+        elements = 0;
+        if (!isGs1())
+            return;
+        int pos = payloadStart;
+        final int end = payloadEnd;
+        if (pos < end && data[pos] == format.groupSeparator)
+            ++pos;          // leading FNC1
+        while (pos < end) {
+            if (elements == MAX_ELEMENTS || end - pos < 2 || !isDigit(data[pos]) || !isDigit(data[pos + 1]))
+                break;
+            final int prefix = (data[pos] - '0') * 10 + (data[pos + 1] - '0');
+            final int aiLen = aiLength(prefix);
+            if (aiLen == 0 || end - pos < aiLen)
+                break;
+            final int fixed = fixedValueLength(prefix);
+            int valueStart = pos + aiLen;
+            int stop;
+            if (fixed > 0) {
+                stop = valueStart + fixed;
+                if (stop > end)
+                    break;
+            } else {
+                stop = valueStart;
+                while (stop < end && data[stop] != format.groupSeparator)
+                    ++stop;
+            }
+            aiStart[elements]  = pos;
+            aiLength[elements] = aiLen;
+            valueEnd[elements] = stop;
+            ++elements;
+            pos = stop;
+            if (pos < end && data[pos] == format.groupSeparator)
+                ++pos;
+        }
+        if (pos < end)
+            elements = 0;   // not a valid element string, report none rather than a wrong split
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * @return Length of the application identifier by its first two digits, 0 if not assigned
+     */
+    private static int aiLength(int prefix) {
+        if (prefix >= 5 && prefix <= 9)
+            return 0;
+        if (prefix <= 22 || prefix == 30 || prefix == 37 || prefix >= 90)
+            return 2;
+        if ((prefix >= 31 && prefix <= 36) || prefix == 39 || prefix == 43 || prefix == 70 || prefix == 72
+                || (prefix >= 80 && prefix <= 82))
+            return 4;
+        if (prefix == 23 || prefix == 24 || prefix == 25 || prefix == 40 || prefix == 41 || prefix == 42
+                || prefix == 71)
+            return 3;
+        return 0;
+    }
+
+    /**
+     * @return Predefined length of the value by the first two digits of the AI, 0 if variable
+     */
+    private static int fixedValueLength(int prefix) {
+        switch (prefix) {
+            case 0:  return 18;
+            case 1: case 2: case 3: return 14;
+            case 4:  return 16;
+            case 20: return 2;
+            case 41: return 13;
+            default:
+                if (prefix >= 11 && prefix <= 19)
+                    return 6;
+                if (prefix >= 31 && prefix <= 36)
+                    return 6;
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.nlscan.nlsdk;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ *  Remembers the baud rate negotiated on each serial port, so the next open of the port starts
+ *  directly at that rate instead of probing again. Stored as a properties file in the state directory.
+ */
+class NLBaudrateStore {
+    private static final String TAG  = "NLBaudrateStore";
+    private static final String FILE = "baudrate.properties";
+    private final File file;
+
+    NLBaudrateStore(File dir) {
+        this.file = new File(dir, FILE);
+    }
+
+    /**
+     * @return The negotiated baud rate of the port, 0 if none was stored
+     */
+    synchronized int get(String pathName) {
+        try {
+            return Integer.parseInt(load().getProperty(pathName, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    synchronized void put(String pathName, int baudrate) {
+        Properties props = load();
+        if (baudrate > 0)
+            props.setProperty(pathName, Integer.toString(baudrate));
+        else
+            props.remove(pathName);
+        try {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+            OutputStream out = new FileOutputStream(file);
+            try {
+                props.store(out, "Negotiated baud rate per serial port");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save baud rate", e);
+        }
+    }
+
+    private Properties load() {
+        Properties props = new Properties();
+        if (!file.exists())
+            return props;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot load baud rate", e);
+        }
+        return props;
+    }
+}
@@ -0,0 +1,19 @@
+package com.nlscan.nlsdk;
+
+/**
+ *  Monotonic millisecond clock of the components working with time windows, tests drive them with their own
+ *  clock. SystemClock is not used: it returns 0 in JVM unit tests.
+ */
+interface NLClock {
+    NLClock SYSTEM = new NLClock() {
+        @Override
+        public long millis() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    /**
+     * @return Milliseconds since an arbitrary origin, never going backwards
+     */
+    long millis();
+}
@@ -2,6 +2,8 @@ package com.nlscan.nlsdk;
 
 import android.content.Context;
 
+import java.nio.ByteBuffer;
+
 /**
  * Unified operation interface of the communication port,
  * It is the common abstract operation interface definition of USB and UART.
@@ -11,6 +13,7 @@ public interface NLCommStream {
     enum DevClass {DEV_SOC, DEV_MCU}
     int  readPacket(byte[] dst, int pos, int length, int timeout);
     boolean  writePacket(byte[] dst, int pos, int length);
+    boolean  writePacket(ByteBuffer[] srcs);
     boolean open(Context context);
     boolean open(String pathName, int baudrate);
     void setUsbListener(NLDeviceStream.NLUsbListener listener);
@@ -18,4 +21,61 @@ public interface NLCommStream {
     boolean isOpen();
     boolean isPlug();
     void setReadAck(boolean flag);
+    String getDeviceName();
+
+    /**
+     * Read a response until the matcher reports the end of the frame, length bytes are received,
+     * or no byte arrives within the timeout (first byte) or the interval (following bytes).
+     * Streams able to wait for single bytes override it, so the frame returns as soon as its last byte lands.
+     * @param matcher end of frame detection, reset by the caller; null to only stop on length or idle time
+     * @return The number of bytes read
+     */
+    default int readFrame(byte[] dst, int pos, int length, int timeout, int interval, NLFrameMatcher matcher) {
+        int ret = 0;
+        while (length > 0 && !Thread.currentThread().isInterrupted()) {
+            int len = readPacket(dst, pos, length, timeout);
+            if (len <= 0)
+                break;
+            ret    += len;
+            length -= len;
+            if (matcher != null && matcher.feed(dst, pos, pos + len))
+                break;
+            pos    += len;
+            timeout = interval;
+        }
+        return ret;
+    }
+
+    /**
+     * Discard the bytes received but not read yet, without waiting for the line to become idle
+     * @return The number of bytes discarded
+     */
+    default int flushInput() {
+        return 0;
+    }
+
+    /**
+     * System.nanoTime() when the first bytes of the latest readPacket call were read, used by the scan tracer
+     * on transports that hand a barcode over in several reads
+     * @return 0 if the stream does not stamp its reads
+     */
+    default long getFirstReadNanos() {
+        return 0;
+    }
+
+    /**
+     * @return System.nanoTime() when the last bytes of the latest readPacket call were read, 0 if not stamped
+     */
+    default long getLastReadNanos() {
+        return 0;
+    }
+
+    /**
+     * Stream barcodes longer than the segment size to the segment listener while they arrive.
+     * Streams that deliver every barcode in one block ignore it.
+     * @param size     segment size in bytes
+     * @param listener segment listener, null to deliver every barcode whole
+     */
+    default void setSegmentListener(int size, NLDeviceStream.NLSegmentListener listener) {
+    }
 }
@@ -0,0 +1,121 @@
+package com.nlscan.nlsdk;
+
+import java.util.PriorityQueue;
+
+/**
+ *  Serializes the commands of one device by priority.
+ *  A command owns the device from sending to its last response byte. Waiting commands are granted the device
+ *  in priority order, then in arrival order, so a trigger issued during a configuration batch runs as soon as
+ *  the batch reaches its next yield point instead of after the whole operation.
+ *  Bulk operations call yieldPoint() between the segments that form complete command/response exchanges;
+ *  transfers the device sends as one response, like an image or a firmware section, cannot be interrupted.
+ *  The owner may acquire the device again, e.g. updateConfig querying the serial number.
+ */
+class NLCommandScheduler {
+    enum Priority {
+        TRIGGER,        // startScan, stopScan
+        QUERY,          // single setting, query or health check
+        BULK            // configuration files, firmware, images
+    }
+
+    private static final class Ticket implements Comparable<Ticket> {
+        final Thread thread;
+        final Priority priority;
+        final long seq;
+
+        Ticket(Thread thread, Priority priority, long seq) {
+            this.thread   = thread;
+            this.priority = priority;
+            this.seq      = seq;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            if (priority != o.priority)
+                return priority.compareTo(o.priority);
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Ticket> waiters = new PriorityQueue<>();
+    private Ticket owner;
+    private int holds;
+    private long nextSeq;
+
+    /**
+     * Wait until the device is granted to the calling thread. An interrupt does not abort the wait,
+     * the interrupt status is restored once the device is granted.
+     * @param priority priority class of the command
+     */
+    synchronized void acquire(Priority priority) {
+        final Thread current = Thread.currentThread();
+        if (owner != null && owner.thread == current) {
+            ++holds;
+            return;
+        }
+        grant(new Ticket(current, priority, nextSeq++), 1);
+    }
+
+    /**
+     * Take the device only if no command holds it or waits for it
+     * @return true if the device was granted
+     */
+    synchronized boolean tryAcquire(Priority priority) {
+        if (owner != null || !waiters.isEmpty())
+            return false;
+        owner = new Ticket(Thread.currentThread(), priority, nextSeq++);
+        holds = 1;
+        return true;
+    }
+
+    synchronized void release() {
+        if (owner == null || owner.thread != Thread.currentThread())
+            throw new IllegalMonitorStateException("device not owned by " + Thread.currentThread().getName());
+        if (--holds == 0) {
+            owner = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return true if a command of higher priority than the owner is waiting
+     */
+    synchronized boolean isPreempted() {
+        Ticket first = waiters.peek();
+        return owner != null && first != null && first.priority.compareTo(owner.priority) < 0;
+    }
+
+    /**
+     * Let the waiting commands of higher priority run, then take the device back.
+     * The owner keeps its place ahead of the commands of its own priority.
+     * @return true if the device was handed over
+     */
+    synchronized boolean yieldPoint() {
+        if (!isPreempted() || owner.thread != Thread.currentThread())
+            return false;
+        final Ticket ticket = owner;
+        final int count = holds;
+        owner = null;
+        holds = 0;
+        notifyAll();
+        grant(ticket, count);
+        return true;
+    }
+
+    private void grant(Ticket ticket, int count) {
+        waiters.add(ticket);
+        boolean interrupted = false;
+        while (owner != null || waiters.peek() != ticket) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        waiters.poll();
+        owner = ticket;
+        holds = count;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
@@ -0,0 +1,111 @@
+package com.nlscan.nlsdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Groups configuration commands into batch UCS frames while they are parsed.
+ *  Consecutive commands with the same 3-letter tag are merged, like "@128ENA1,MIN4;" for 128ENA1 and 128MIN4,
+ *  and a frame is emitted as soon as it exceeds MAX_BATCH_LENGTH characters.
+ *  Communication related commands (INTERF, AUTOUR, 232xxx) may switch the port, so they are collected
+ *  separately and emitted last by finish().
+ */
+class NLConfigBatcher {
+    static final int MAX_BATCH_LENGTH = 200;
+
+    interface BatchSink {
+        /**
+         * @param frame    batch command, e.g. "@128ENA1,MIN4;SCNMOD0;"
+         * @param commands the {name, value} commands contained in the frame
+         * @param comm     whether the frame contains the communication related commands
+         * @return false to stop batching
+         */
+        boolean onBatch(String frame, List<String[]> commands, boolean comm);
+    }
+
+    private final BatchSink sink;
+    private final char prefix;      // '@' saved on the device, '#' temporary
+    private final StringBuilder sbCommandList = new StringBuilder();
+    private final StringBuilder sbCommCommandList = new StringBuilder();  // Communication related command list
+    private final List<String[]> batch = new ArrayList<>();
+    private final List<String[]> commBatch = new ArrayList<>();
+    private String prexTag = "";
+    private String commPrexTag = "";
+    private boolean failed = false;
+
+    NLConfigBatcher(BatchSink sink) {
+        this(sink, '@');
+    }
+
+    NLConfigBatcher(BatchSink sink, char prefix) {
+        this.sink   = sink;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return false if the sink failed a batch
+     */
+    boolean add(String name, String value) {
+        if (failed)
+            return false;
+        final String Tag = name.substring(0, 3);
+        if (isCommCommand(name)) {
+            commPrexTag = append(sbCommCommandList, commPrexTag, Tag, name, value);
+            commBatch.add(new String[]{name, value});
+            return true;
+        }
+        prexTag = append(sbCommandList, prexTag, Tag, name, value);
+        batch.add(new String[]{name, value});
+        if (sbCommandList.length() > MAX_BATCH_LENGTH)
+            flush();
+        return !failed;
+    }
+
+    /**
+     * Emit the remaining commands and keep the communication related commands for finish(),
+     * so the frames of another batcher can be sent before the port switches
+     * @return false if the sink failed a batch
+     */
+    boolean flushCommands() {
+        if (!failed && sbCommandList.length() > 0)
+            flush();
+        return !failed;
+    }
+
+    /**
+     * Emit the remaining commands, then the communication related commands
+     * @return >0:update completed;<0:update failed ; =0 the update was successful and the port switching was performed
+     */
+    int finish() {
+        if (!flushCommands())
+            return -1;
+        if (sbCommCommandList.length() > 0) {
+            sink.onBatch(prefix + sbCommCommandList.toString() + ";", commBatch, true);
+            return 0;
+        }
+        return 1;
+    }
+
+    static boolean isCommCommand(String name) {
+        return name.equals("INTERF") || name.equals("AUTOUR") || name.startsWith("232");
+    }
+
+    private void flush() {
+        if (!sink.onBatch(prefix + sbCommandList.toString() + ";", batch, false))
+            failed = true;
+        sbCommandList.setLength(0);
+        batch.clear();
+        prexTag = "";
+    }
+
+    private static String append(StringBuilder sb, String prexTag, String Tag, String name, String value) {
+        if (Tag.equals(prexTag)) {
+            sb.append(',').append(name, 3, name.length()).append(value);
+        } else {
+            if (sb.length() > 0)
+                sb.append(';');
+            sb.append(name).append(value);
+        }
+        return Tag;
+    }
+}
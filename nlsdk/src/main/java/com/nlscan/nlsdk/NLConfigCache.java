@@ -0,0 +1,112 @@
+package com.nlscan.nlsdk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Cache of the device settings known to the SDK, keyed by the serial number reported by QRYSYS.
+ *  updateConfig fills it with batched queries and compares the target configuration against it,
+ *  so only the settings whose value differs are sent to the device.
+ *  The cache is shared by all NLDevice instances, so a device opened through two interfaces sees one set of values.
+ *  Only acknowledged settings are cached, an entry is dropped whenever the SDK cannot know the new value,
+ *  e.g. after a saved setting through setConfig or a firmware update. The settings can also change without the
+ *  SDK, a configuration barcode or another host, so the settings of a device are queried again after it is opened
+ *  and an entry older than the maximum age is unknown again.
+ */
+class NLConfigCache {
+    static final long DEFAULT_MAX_AGE_MS = 5 * 60 * 1000L;
+    private static final NLConfigCache instance = new NLConfigCache(NLClock.SYSTEM);
+    private final Map<String, Map<String, Entry>> devices = new HashMap<>();
+    private final NLClock clock;
+    private long maxAgeMs = DEFAULT_MAX_AGE_MS;
+
+    private static class Entry {
+        final String value;
+        final long time;
+
+        Entry(String value, long time) {
+            this.value = value;
+            this.time  = time;
+        }
+    }
+
+    NLConfigCache(NLClock clock) {
+        this.clock = clock;
+    }
+
+    static NLConfigCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param ms time after which a cached value is queried again
+     */
+    synchronized void setMaxAge(long ms) {
+        maxAgeMs = ms;
+    }
+
+    /**
+     * @return The cached value of the setting, null if unknown or expired
+     */
+    synchronized String get(String serial, String name) {
+        Map<String, Entry> values = devices.get(serial);
+        Entry entry = values == null ? null : values.get(name);
+        if (entry == null)
+            return null;
+        if (clock.millis() - entry.time >= maxAgeMs) {
+            values.remove(name);
+            return null;
+        }
+        return entry.value;
+    }
+
+    synchronized void put(String serial, String name, String value) {
+        Map<String, Entry> values = devices.get(serial);
+        if (values == null) {
+            values = new HashMap<>();
+            devices.put(serial, values);
+        }
+        values.put(name, new Entry(value, clock.millis()));
+    }
+
+    synchronized void remove(String serial, String name) {
+        Map<String, Entry> values = devices.get(serial);
+        if (values != null)
+            values.remove(name);
+    }
+
+    /**
+     * Forget all the settings of a device
+     */
+    synchronized void invalidate(String serial) {
+        devices.remove(serial);
+    }
+
+    synchronized void clear() {
+        devices.clear();
+    }
+
+    /**
+     * Extract the serial number from the QRYSYS response. The response is a list of "key: value" lines,
+     * the line whose key contains "serial" or is "SN" is used.
+     * @param info QRYSYS response
+     * @return The serial number, or the whole response if no serial line is found
+     */
+    static String parseSerial(String info) {
+        if (info == null)
+            return null;
+        String[] lines = info.split("[\r\n]+");
+        for (String line : lines) {
+            final int sep = line.indexOf(':');
+            if (sep <= 0)
+                continue;
+            String key = line.substring(0, sep).trim().toLowerCase();
+            if (key.contains("serial") || key.equals("sn") || key.equals("s/n")) {
+                String value = line.substring(sep + 1).trim();
+                if (value.length() > 0)
+                    return value;
+            }
+        }
+        return info.trim();
+    }
+}
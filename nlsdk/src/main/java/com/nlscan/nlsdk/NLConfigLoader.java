@@ -0,0 +1,156 @@
+package com.nlscan.nlsdk;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *  Streaming loader of the batch configuration files used by updateConfig.
+ *  The XML file exported by the Newland configuration tool is read with a pull parser, every Command element
+ *  is handed to the sink as soon as it is parsed, so thousands of commands never build a document in memory.
+ *  A configuration that is rolled out repeatedly can be compiled once into a binary file, which updateConfig
+ *  also accepts and loads without any XML parsing.
+ *  <pre>
+ *  XML     : &lt;Command CommandName="128ENA" Value="1"/&gt; ...
+ *  binary  : | "NLCF" | version (1) | { name (UTF) | value (UTF) } ... | "" (UTF, end) |
+ *  </pre>
+ */
+public class NLConfigLoader {
+    private static final byte[] MAGIC   = {'N', 'L', 'C', 'F'};
+    private static final int    VERSION = 1;
+
+    /**
+     * Receiver of the parsed configuration commands
+     */
+    interface CommandSink {
+        /**
+         * @param name  UCS command name, e.g. 128ENA
+         * @param value command value, e.g. 1
+         * @return false to stop loading
+         */
+        boolean onCommand(String name, String value);
+    }
+
+    private NLConfigLoader() {
+    }
+
+    /**
+     * Compile an XML configuration file into the binary format
+     * @param xml XML configuration file
+     * @param out binary configuration file to create
+     * @return Number of commands written
+     */
+    public static int compile(File xml, File out) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+        final int[] count = {0};
+        try {
+            dos.write(MAGIC);
+            dos.writeByte(VERSION);
+            final IOException[] error = {null};
+            load(xml, new CommandSink() {
+                @Override
+                public boolean onCommand(String name, String value) {
+                    try {
+                        dos.writeUTF(name);
+                        dos.writeUTF(value);
+                        ++count[0];
+                        return true;
+                    } catch (IOException e) {
+                        error[0] = e;
+                        return false;
+                    }
+                }
+            });
+            if (error[0] != null)
+                throw error[0];
+            dos.writeUTF("");
+        } finally {
+            dos.close();
+        }
+        return count[0];
+    }
+
+    /**
+     * @return true if the file is in the compiled binary format
+     */
+    public static boolean isCompiled(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return hasMagic(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /* ============================= package =====================================================*/
+    /**
+     * Parse a configuration file, XML or compiled, and pass every command to the sink in file order
+     * @return false if the sink stopped the loading
+     */
+    static boolean load(File f, CommandSink sink) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(f));
+        try {
+            in.mark(MAGIC.length);
+            if (hasMagic(in))
+                return loadCompiled(new DataInputStream(in), sink);
+            in.reset();
+            return loadXml(in, sink);
+        } finally {
+            in.close();
+        }
+    }
+
+    /* ============================= private =====================================================*/
+    private static boolean hasMagic(InputStream in) throws IOException {
+        for (byte b : MAGIC) {
+            if (in.read() != b)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean loadCompiled(DataInputStream in, CommandSink sink) throws IOException {
+        final int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported compiled configuration version " + version);
+        for (;;) {
+            String name = in.readUTF();
+            if (name.isEmpty())
+                return true;
+            String value = in.readUTF();
+            if (!sink.onCommand(name, value))
+                return false;
+        }
+    }
+
+    private static boolean loadXml(InputStream in, CommandSink sink) throws IOException {
+        try {
+            // The factory finds the platform parser on Android and the parser on the classpath of the JVM tests
+            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+            parser.setInput(in, null);
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event != XmlPullParser.START_TAG || !"Command".equals(parser.getName()))
+                    continue;
+                String name  = parser.getAttributeValue(null, "CommandName");
+                String value = parser.getAttributeValue(null, "Value");
+                if (name == null || name.length() < 3)
+                    continue;
+                if (!sink.onCommand(name, value == null ? "" : value))
+                    return false;
+            }
+            return true;
+        } catch (XmlPullParserException e) {
+            throw new IOException("Invalid configuration file: " + e.getMessage());
+        }
+    }
+}
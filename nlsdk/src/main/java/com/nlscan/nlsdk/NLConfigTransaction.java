@@ -0,0 +1,165 @@
+package com.nlscan.nlsdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Batch of UCS settings committed in one pass.
+ *  The staged commands are packed into as few batch frames as possible, commands sharing the 3-letter tag
+ *  are merged like "@128ENA1,MIN4;", and all frames are sent with the receive routing disabled once.
+ *  Commands with the '@' prefix (or none) are saved on the device, commands with '#' only last until the
+ *  device restarts. The communication commands of both prefixes are sent last, since they may switch the port.
+ *  The status of every command is taken from the combined response.
+ *  <pre>
+ *  NLConfigTransaction.Result r = device.beginConfig().set("@128ENA1").set("@128MIN4").set("#SCNMOD0").commit();
+ *  </pre>
+ */
+public class NLConfigTransaction {
+    public enum Status {
+        ACK,            // <ACK> (HEX: 06 ) successful operation
+        NAK,            // <NAK> (HEX: 15 ) the value is not in the supported range
+        ENQ,            // <ENQ> (HEX: 05 ) the setting class or function does not exist
+        NO_RESPONSE     // the frame of the command was not answered
+    }
+
+    /**
+     * Status of the committed commands, in the order they were staged
+     */
+    public static final class Result {
+        private final List<String> commands;
+        private final Status[] status;
+        private final boolean portSwitched;
+
+        Result(List<String> commands, Status[] status, boolean portSwitched) {
+            this.commands     = commands;
+            this.status       = status;
+            this.portSwitched = portSwitched;
+        }
+
+        public int size() {
+            return status.length;
+        }
+
+        public String getCommand(int index) {
+            return commands.get(index);
+        }
+
+        public Status getStatus(int index) {
+            return status[index];
+        }
+
+        /**
+         * @return true if communication commands (INTERF, AUTOUR, 232xxx) were sent, the device may now use another
+         * interface or baud rate and the port has to be opened again
+         */
+        public boolean isPortSwitched() {
+            return portSwitched;
+        }
+
+        /**
+         * @return true if every command was acknowledged
+         */
+        public boolean isSuccess() {
+            for (Status s : status) {
+                if (s != Status.ACK)
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    static final int NAME_LENGTH = 6;     // 3-letter tag and 3-letter setting, e.g. 128ENA
+
+    private final NLDevice device;
+    private final List<String> commands = new ArrayList<>();
+
+    NLConfigTransaction(NLDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Stage a setting
+     * @param command UCS setting such as "@128ENA1", "#SCNMOD0" or "128ENA1" (saved like '@')
+     * @return this transaction
+     */
+    public NLConfigTransaction set(String command) {
+        if (command == null)
+            throw new NullPointerException("command");
+        if (stripPrefix(command).length() < NAME_LENGTH)
+            throw new IllegalArgumentException("command:" + command);
+        commands.add(command);
+        return this;
+    }
+
+    /**
+     * @return Number of staged commands
+     */
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * Send all staged commands, the transaction can be committed again afterwards
+     * @return Status of every staged command
+     */
+    public Result commit() {
+        List<String> staged = new ArrayList<>(commands);
+        Status[] status = new Status[staged.size()];
+        final boolean portSwitched = device.commitConfig(staged, status);
+        return new Result(staged, status, portSwitched);
+    }
+
+    /* ============================= package =====================================================*/
+    /**
+     * @return true if the command is saved on the device
+     */
+    static boolean isPersistent(String command) {
+        return command.charAt(0) != '#';
+    }
+
+    static String stripPrefix(String command) {
+        String body = command;
+        if (body.startsWith("@") || body.startsWith("#"))
+            body = body.substring(1);
+        if (body.endsWith(";"))
+            body = body.substring(0, body.length() - 1);
+        return body;
+    }
+
+    /**
+     * Parse the body of a batch response, e.g. "128ENA1[ACK],MIN4[NAK];SCNMOD0[ACK]", into the status of each command.
+     * Commands merged under one tag may share the status at the end of their segment.
+     * @param body  response without its header and ";" ETX trailer, null if the frame was not answered
+     * @param count number of commands in the frame
+     * @return Status of the commands of the frame, in frame order
+     */
+    static Status[] parseStatus(String body, int count) {
+        Status[] status = new Status[count];
+        int n = 0;
+        if (body == null)
+            body = "";
+        for (String segment : body.split(";")) {
+            if (segment.isEmpty())
+                continue;
+            final Status segmentStatus = toStatus(segment.charAt(segment.length() - 1));
+            for (String item : segment.split(",")) {
+                if (n >= count)
+                    return status;
+                Status s = item.isEmpty() ? null : toStatus(item.charAt(item.length() - 1));
+                status[n++] = s != null ? s : (segmentStatus != null ? segmentStatus : Status.NO_RESPONSE);
+            }
+        }
+        while (n < count)
+            status[n++] = Status.NO_RESPONSE;
+        return status;
+    }
+
+    private static Status toStatus(char c) {
+        switch (c) {
+            case 0x06: return Status.ACK;
+            case 0x15: return Status.NAK;
+            case 0x05: return Status.ENQ;
+            default:   return null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.nlscan.nlsdk
+
+import android.content.Context
+import com.nlscan.nlsdk.NLDeviceStream.NLUpdateState
+import kotlinx.coroutines.ExecutorCoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.channels.BufferOverflow
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.runInterruptible
+import java.io.File
+import java.util.concurrent.Executors
+
+/**
+ * Coroutine API of a device.
+ * Every command runs on a single thread owned by this device, so the commands of one device never overlap and
+ * the calling coroutine is suspended instead of blocked. Cancelling the caller interrupts that thread, the
+ * response wait in progress returns at once and the command reports failure, the device stays usable. A command
+ * not written yet is not sent, the late response of a command already sent is read and discarded before the
+ * barcodes are routed to the flows again.
+ * Barcodes and USB plug events are hot flows, they are emitted from the receive thread without blocking it:
+ * with BufferOverflow.SUSPEND an event that finds the buffer full is dropped.
+ *
+ * @param device          device to drive, e.g. NLDevice(DevClass.DEV_CDC)
+ * @param eventBuffer     number of barcodes and plug events buffered for slow collectors
+ * @param onEventOverflow what to drop when the buffer is full
+ */
+class NLCoroutineDevice @JvmOverloads constructor(
+    val device: NLDeviceStream,
+    eventBuffer: Int = 64,
+    onEventOverflow: BufferOverflow = BufferOverflow.DROP_OLDEST
+) {
+    private val executor = Executors.newSingleThreadExecutor(NLIoThreads.factory("NLDevice-command"))
+
+    /** Dispatcher of the commands of this device */
+    val dispatcher: ExecutorCoroutineDispatcher = executor.asCoroutineDispatcher()
+
+    private val barcodeFlow = MutableSharedFlow<ByteArray>(0, eventBuffer, onEventOverflow)
+    private val plugFlow = MutableSharedFlow<Int>(0, eventBuffer, onEventOverflow)
+
+    /** Received barcodes, each one a copy owned by the collector */
+    val barcodes: SharedFlow<ByteArray> = barcodeFlow.asSharedFlow()
+
+    /** USB plug events of NLUsbListener.actionUsbPlug */
+    val plugEvents: SharedFlow<Int> = plugFlow.asSharedFlow()
+
+    private val usbListener = object : NLDeviceStream.NLUsbListener {
+        override fun actionUsbPlug(event: Int) {
+            plugFlow.tryEmit(event)
+        }
+
+        override fun actionUsbRecv(RecvBuff: ByteArray, len: Int) {
+            barcodeFlow.tryEmit(RecvBuff.copyOf(len))
+        }
+    }
+
+    private val uartListener = NLDeviceStream.NLUartListener { RecvBuff, len ->
+        barcodeFlow.tryEmit(RecvBuff.copyOf(len))
+    }
+
+    private suspend fun <T> call(block: () -> T): T = runInterruptible(dispatcher) { block() }
+
+    suspend fun open(context: Context): Boolean = call { device.open(context, usbListener) }
+
+    suspend fun open(pathName: String, baudrate: Int): Boolean =
+        call { device.open(pathName, baudrate, uartListener) }
+
+    suspend fun close() = call { device.close() }
+
+    suspend fun isOpen(): Boolean = call { device.isOpen }
+
+    suspend fun checkHealth(): Boolean = call { device.checkHealth() }
+
+    suspend fun getDeviceInformation(): String? = call { device.deviceInformation }
+
+    suspend fun startScan(): Boolean = call { device.startScan() }
+
+    suspend fun stopScan(): Boolean = call { device.stopScan() }
+
+    suspend fun startContinuousScan(retriggerMs: Int = 0): Boolean = call { device.startContinuousScan(retriggerMs) }
+
+    suspend fun stopContinuousScan(): Boolean = call { device.stopContinuousScan() }
+
+    suspend fun restartDevice(): Boolean = call { device.restartDevice() }
+
+    suspend fun setConfig(command: String): Boolean = call { device.setConfig(command) }
+
+    suspend fun getConfig(command: String): String? = call { device.getConfig(command) }
+
+    suspend fun negotiateBaudrate(maxBaudrate: Int): Int = call { device.negotiateBaudrate(maxBaudrate) }
+
+    suspend fun updateConfig(file: File): Int = call { device.updateConfig(file) }
+
+    suspend fun commit(transaction: NLConfigTransaction): NLConfigTransaction.Result = call { transaction.commit() }
+
+    suspend fun updateFirmware(
+        firmware: ByteArray,
+        onProgress: (String, NLUpdateState, Int) -> Unit = { _, _, _ -> }
+    ): Int = call {
+        device.updateFirmware(firmware) { type, state, percent -> onProgress(type, state, percent) }
+    }
+
+    suspend fun updateFirmware(
+        pkg: NLFirmwarePackage,
+        onProgress: (String, NLUpdateState, Int) -> Unit = { _, _, _ -> }
+    ): Int = call {
+        device.updateFirmware(pkg) { type, state, percent -> onProgress(type, state, percent) }
+    }
+
+    suspend fun getImgSize(): IntArray = call { device.imgSize }
+
+    suspend fun getImgBuff(imgBuff: ByteArray, imgSize: Int, onProgress: (Int) -> Unit = {}): Boolean =
+        call { device.getImgBuff(imgBuff, imgSize) { percent -> onProgress(percent) } }
+
+    /**
+     * Stop the command thread, call it after close when the device is no longer used
+     */
+    fun shutdown() {
+        dispatcher.close()
+    }
+}
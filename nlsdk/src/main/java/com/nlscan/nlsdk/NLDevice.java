@@ -1,18 +1,21 @@
 package com.nlscan.nlsdk;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.CRC32;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 /**
  * This class mainly implements all the functions of the interface NLDeviceStream
  */
@@ -20,15 +23,95 @@ public class NLDevice implements NLDeviceStream{
 	private NLCommStream curCommStream;
 	private byte[] recvBuffer = new byte[4 * 1024];
 	private String pathName;
-	final private  int frameSize = 512;
+	final private  int frameSize = NLFirmwarePackage.FRAME_SIZE;
 	private byte[] buffer = new byte[frameSize + 64];
 	private CRC32 crc32   = new CRC32();
-    private boolean runable = false;
+    private volatile boolean runable = false;
+	private Thread readThread;
     private boolean readFlag=true;
 	private Context mContext;
 	private int READ_TIMEOUT = 20;		// The read timeout of the reader thread
-	private int WAIT_TIMEOUT = 30;      // Send command switch timeout,usually needs to be greater than READ_TIMEOUT, so that the reading thread can be suspended
+	private int WAIT_TIMEOUT = 30;      // Send command switch timeout of the serial port,usually needs to be greater than READ_TIMEOUT, so that the reading thread can be suspended
 	private NLUsbListener mListener;
+	private NLUartListener mUartListener;
+	private final NLScanPublisher scanPublisher = new NLScanPublisher(this, NLScanPublisher.DEFAULT_BUFFER_SIZE);
+	private final NLScanDedupe scanDedupe = new NLScanDedupe();
+	private final NLScanTracer scanTracer = new NLScanTracer();
+	private long readFirstNanos, readLastNanos;	// stamps of the first and last chunk of the serial read
+	private final NLHealthMonitor healthMonitor = new NLHealthMonitor(this);
+	private volatile NLScanJournal scanJournal;
+	private volatile NLBarcodeListener barcodeListener;
+	private volatile NLBarcode barcodeView;
+	private final NLConfigCache configCache = NLConfigCache.getInstance();
+	private String deviceSerial;
+	private final NLTimingModel timing = new NLTimingModel();
+	private final NLCommandScheduler scheduler = new NLCommandScheduler();
+	private final NLFrameMatcher ucsMatcher   = new NLFrameMatcher(NLFrameMatcher.Type.UCS);
+	private final NLFrameMatcher paramMatcher = new NLFrameMatcher(NLFrameMatcher.Type.PARAM);
+	private final NLFrameMatcher rawMatcher   = new NLFrameMatcher(NLFrameMatcher.Type.RAW);
+	private long ackFirstByteTime;       // uptime of the first byte received by the last readAck, 0 if none
+	private File stateDir;
+	private volatile NLArtifactStore artifactStore;
+	private int uartBaudrate;
+	private NLFirmwareCheckpoint fwCheckpoint;
+	private volatile boolean continuousScan;
+	private volatile byte[] pendingStopAck;      // response of the fire-and-forget stop, swallowed on receive
+	private volatile long stopAckDeadline;       // System.nanoTime() after which the stop response is no longer expected
+	private volatile long lastTriggerNanos;      // System.nanoTime() of the latest trigger write
+	private volatile long lastRecvNanos;         // System.nanoTime() of the latest barcode or stop response received
+	private final Object dispatchLock = new Object();    // one thread at a time in the receive pipeline
+	private int abandonedReplyMs;                // wait of a response cut short by an interrupt, command owner only
+	private volatile NLSegmentListener segmentListener;
+	// Segmented barcode being received, delivery thread only
+	private boolean segmentStarted;
+	private boolean segmentCopied;               // its content is kept for the stages needing the whole barcode
+	private byte[] segmentCopy = new byte[0];
+	private int segmentLength;
+	private long segmentFirstNanos;
+	private ScheduledExecutorService retrigger;
+	private static final int RESUME_RETRIES    = 2;     // resumed transfers after a communication error
+	private static final int FLASH_MS_PER_KB   = 50;    // programming time per KB until it is learned
+	private static final int FLASH_MIN_MS_PER_KB = 10;  // floor of the learned programming time per KB
+	private static final int FLASH_SLACK_MS    = 5000;  // added to the programming time of a section
+	// Baud rates of the UCS command 232BAD, the index is the command value; rates above 115200 depend on the module
+	private static final int[] UART_BAUDRATES = {1200, 2400, 4800, 9600, 14400, 19200, 38400, 57600, 115200, 230400, 460800, 921600};
+	private static final int BOOT_BAUDRATE = 115200;
+	private static final long TRIGGER_SESSION_NANOS = 5000000000L;   // longest decode session of one trigger
+	private static final long STOP_ACK_NANOS = 2000000000L;          // time the stop response is waited for
+	private static final int SEGMENT_COPY_KEEP = 64 * 1024;          // larger copies are released after their barcode
+
+	/**
+	 * Listener installed on the communication stream, every received barcode passes through dispatchRecv
+	 */
+	private final NLUsbListener usbRecvListener = new NLUsbListener() {
+		@Override
+		public void actionUsbPlug(int event) {
+			healthMonitor.recordPlug(event);
+			if (mListener != null)
+				mListener.actionUsbPlug(event);
+		}
+
+		@Override
+		public void actionUsbRecv(byte[] RecvBuff, int len) {
+			// The USB classes stamp their packets, other streams deliver a barcode as one block
+			if (!(curCommStream instanceof NLUSBStream) && scanTracer.isEnabled()) {
+				final long now = System.nanoTime();
+				scanTracer.assembled(now, now, now);
+			}
+			dispatchRecv(RecvBuff, len);
+		}
+	};
+
+	/**
+	 * Segment listener installed on the communication stream, every segment passes through dispatchSegment
+	 */
+	private final NLSegmentListener segmentRecvListener = new NLSegmentListener() {
+		@Override
+		public void onSegment(byte[] buff, int offset, int len, boolean last) {
+			dispatchSegment(buff, offset, len, last);
+		}
+	};
+
     private void setCommandFlag(boolean flag){
         readFlag = flag;
     }
@@ -37,14 +120,15 @@ public class NLDevice implements NLDeviceStream{
         return readFlag;
     }
 	private String TAG = "NLDevice";
-	static class UpdateInfo {
-		int    pos;
-		int    length;
-		String type;
-	}
 
-	private UpdateInfo[] updateInfos = new UpdateInfo[4];
 
+	/**
+	 * Create a device on a specific communication stream, such as a transport of the application
+	 * @param stream communication stream, not opened yet
+	 */
+	public NLDevice(NLCommStream stream) {
+		curCommStream = stream;
+	}
 
     public NLDevice(DevClass classType)	{
 
@@ -60,12 +144,11 @@ public class NLDevice implements NLDeviceStream{
                 break;
 			case DEV_UART:
 				curCommStream = new NLUartStream();
+				break;
             default:
                 Log.e(TAG, "USB class is error!");
                 break;
         }
-		for (int i = 0; i < updateInfos.length; ++i)
-			updateInfos[i] = new UpdateInfo();
 	}
 
 	public  NLCommStream getDevObj(){
@@ -81,8 +164,10 @@ public class NLDevice implements NLDeviceStream{
 	public boolean open(Context context, final NLUsbListener listener) {
 		if(curCommStream.open(context)){
 			mContext = context;
-			curCommStream.setUsbListener(listener);
 			mListener = listener;
+			curCommStream.setUsbListener(usbRecvListener);
+			if (curCommStream instanceof NLUSBStream)
+				((NLUSBStream) curCommStream).setTracer(scanTracer);
             runable = true;
             return true;
         }
@@ -93,14 +178,30 @@ public class NLDevice implements NLDeviceStream{
 	public boolean open(String devPathName, int baudrate, final NLUartListener listener) {
 		pathName = devPathName;
 		if(curCommStream.open(pathName, baudrate)){
+			uartBaudrate = baudrate;
+			timing.setBaudrate(baudrate);
+			// Start at the rate negotiated last time, or the caller's rate if the device does not answer there
+			final int stored = stateDir == null ? 0 : new NLBaudrateStore(stateDir).get(pathName);
+			if (stored > 0 && stored != baudrate) {
+				changeBaudrate(stored);
+				if (!checkHealthCommand())
+					changeBaudrate(baudrate);
+			}
+			mUartListener = listener;
 			runable = true;
 			class RecvDataStream implements Runnable {
 				public  void run() {
 					while(runable){
 						if(getCommandFlag()) {
 							int recvLen = read(recvBuffer,  READ_TIMEOUT);
-							if(recvLen > 0)
-								listener.actionRecv(recvBuffer, recvLen);
+							if(recvLen > 0) {
+								if (scanTracer.isEnabled()) {
+									final long now = System.nanoTime();
+									scanTracer.assembled(readFirstNanos != 0 ? readFirstNanos : now,
+											readLastNanos != 0 ? readLastNanos : now, now);
+								}
+								dispatchRecv(recvBuffer, recvLen);
+							}
 						}
 						else {
 							try {
@@ -112,8 +213,8 @@ public class NLDevice implements NLDeviceStream{
 					}
 				}
 			}
-			Thread t = new Thread(new RecvDataStream());
-			t.start();
+			readThread = NLIoThreads.factory("NLDevice-read" + pathName).newThread(new RecvDataStream());
+			readThread.start();
 			return true;
 		}
 		return false;
@@ -123,7 +224,91 @@ public class NLDevice implements NLDeviceStream{
 	@Override
 	public void close() {
 		runable = false;
+		healthMonitor.stop();
+		stopRetrigger();
+		// Stop the reader before the port is closed, so it never reads a closed descriptor
+		NLIoThreads.join(readThread);
+		readThread = null;
     	curCommStream.close(mContext);
+		deviceSerial = null;
+		scanPublisher.complete();
+	}
+
+	@Override
+	public NLScanPublisher getScanPublisher() {
+		return scanPublisher;
+	}
+
+	@Override
+	public NLScanDedupe getScanDedupe() {
+		return scanDedupe;
+	}
+
+	@Override
+	public NLScanTracer getScanTracer() {
+		return scanTracer;
+	}
+
+	@Override
+	public NLHealthMonitor getHealthMonitor() {
+		return healthMonitor;
+	}
+
+	@Override
+	public void setScanJournal(NLScanJournal journal) {
+		scanJournal = journal;
+	}
+
+	@Override
+	public synchronized void setBarcodeListener(NLBarcode.Format format, NLBarcodeListener listener) {
+		if (listener == null) {
+			barcodeListener = null;
+			return;
+		}
+		barcodeView = new NLBarcode(format);
+		barcodeListener = listener;
+	}
+
+	@Override
+	public void setSegmentListener(int segmentSize, NLSegmentListener listener) {
+		segmentListener = listener;
+		curCommStream.setSegmentListener(segmentSize, listener == null ? null : segmentRecvListener);
+	}
+
+	@Override
+	public void setStateDirectory(File dir) {
+		stateDir = dir;
+	}
+
+	@Override
+	public void setArtifactStore(NLArtifactStore store) {
+		artifactStore = store;
+	}
+
+	@Override
+	public int negotiateBaudrate(int maxBaudrate) {
+		if (!isOpen() || pathName == null)
+			return 0;
+
+		scheduler.acquire(NLCommandScheduler.Priority.BULK);
+		setRecvRouting(false);
+		try {
+			parkReader();
+			curCommStream.flushInput();
+			for (int code = UART_BAUDRATES.length - 1; code >= 0; --code) {
+				final int rate = UART_BAUDRATES[code];
+				if (rate > maxBaudrate || rate <= uartBaudrate)
+					continue;
+				if (switchBaudrate(code))
+					break;
+			}
+			if (stateDir != null)
+				new NLBaudrateStore(stateDir).put(pathName, uartBaudrate);
+		} finally {
+			setRecvRouting(true);
+			scheduler.release();
+		}
+		return uartBaudrate;
 	}
 
 	@Override
@@ -136,27 +321,115 @@ public class NLDevice implements NLDeviceStream{
 	public boolean checkHealth() {
     	boolean ret;
 
+		scheduler.acquire(NLCommandScheduler.Priority.QUERY);
 		setRecvRouting(false);
 		try {
-			Thread.sleep(WAIT_TIMEOUT);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			parkReader();
+			ret = checkHealthCommand();
+		} finally {
+			setRecvRouting(true);
+			scheduler.release();
 		}
-		ret = checkHealthCommand();
-		setRecvRouting(true);
 
 		return ret;
 	}
 
+	/**
+	 * Heartbeat of the health monitor, sent only if no command holds or waits for the device and no scan is
+	 * in progress. A barcode of the physical trigger may still arrive while the routing is disabled: the input
+	 * is not flushed, the bytes read around the answer are passed to the receive pipeline once the device is
+	 * released. The USB routing switches at once, only the serial reader thread needs the wait to suspend.
+	 * @return 1 answered, 0 not answered, -1 skipped because the device is busy
+	 */
+	int heartbeat() {
+		if (isScanning() || !scheduler.tryAcquire(NLCommandScheduler.Priority.QUERY))
+			return -1;
+		boolean ret = false;
+		byte[] foreign = null;
+		setRecvRouting(false);
+		try {
+			parkReader();
+			byte[] data = packUnifyCommand("DEVQRY*".getBytes());
+			if (isOpen() && write(data)) {
+				final int len = readAck(NLTimingModel.CmdClass.HEALTH, 50, data.length, recvBuffer, 0, recvBuffer.length, 10, true);
+				final int at  = indexOfAnswer(recvBuffer, len, data);
+				final int end = endOfAnswer(recvBuffer, at, len);
+				ret = end > 0 && end - at >= 16 && recvBuffer[at + 13] == '0';
+				// The bytes around the answer are a barcode, unless they are the late answer of an earlier command;
+				// a partial answer is dropped
+				final int head = isUcsAnswer(recvBuffer, 0, at) ? 0 : at;
+				final int tail = end < 0 || isUcsAnswer(recvBuffer, end, len) ? 0 : len - end;
+				if (head + tail > 0) {
+					foreign = new byte[head + tail];
+					System.arraycopy(recvBuffer, 0, foreign, 0, head);
+					System.arraycopy(recvBuffer, len - tail, foreign, head, tail);
+				}
+			}
+		} finally {
+			setRecvRouting(true);
+			scheduler.release();
+		}
+		if (foreign != null)
+			dispatchRecv(foreign, foreign.length);
+		return ret ? 1 : 0;
+	}
+
+	/**
+	 * @param cmd UCS command, its answer repeats the header of the command after STX
+	 * @return Offset of the answer to the command in the len bytes of buff, len if none starts there.
+	 *         An answer cut off at the end of the data is found as well.
+	 */
+	private static int indexOfAnswer(byte[] buff, int len, byte[] cmd) {
+		for (int at = 0; at < len; ++at) {
+			if (buff[at] != 2)
+				continue;
+			int i = 1;
+			while (i < 13 && at + i < len && buff[at + i] == cmd[i])
+				++i;
+			if (i == 13 || at + i == len)
+				return at;
+		}
+		return len;
+	}
+
+	/**
+	 * @return true if the bytes from offset from to len start with the header of a UCS answer
+	 */
+	private static boolean isUcsAnswer(byte[] buff, int from, int len) {
+		return len - from >= 6 && buff[from] == 2 && buff[from + 1] == 1 && buff[from + 2] == '0'
+				&& buff[from + 3] == '0' && buff[from + 4] == '0' && buff[from + 5] == '0';
+	}
+
+	/**
+	 * @return Offset after the ACK ; ETX ending the answer at offset at, -1 if the answer is not complete
+	 */
+	private static int endOfAnswer(byte[] buff, int at, int len) {
+		for (int i = at + 13; i + 2 < len; ++i) {
+			if (buff[i] == 6 && buff[i + 1] == 0x3b && buff[i + 2] == 3)
+				return i + 3;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true while continuous scanning runs or a trigger has not brought its barcode yet
+	 */
+	private boolean isScanning() {
+		if (continuousScan)
+			return true;
+		final long trigger = lastTriggerNanos;
+		return trigger != 0 && trigger - lastRecvNanos > 0 && System.nanoTime() - trigger < TRIGGER_SESSION_NANOS;
+	}
+
 	private boolean checkHealthCommand() {
 		if (!isOpen())         return false;
 
 		byte[] data = packUnifyCommand("DEVQRY*".getBytes());
 		if (data == null)      return false;
 
-		clean(20);
+		curCommStream.flushInput();
 		if (!write(data)) return false;
-		int len = readAck(recvBuffer, 0, recvBuffer.length, 50, 10, true);
+		int len = readAck(NLTimingModel.CmdClass.HEALTH, 50, data.length, recvBuffer, 0, recvBuffer.length, 10, true);
 
 		if (len < 16)       return false;
 		if (recvBuffer[0] != 2) return false;
@@ -174,14 +447,15 @@ public class NLDevice implements NLDeviceStream{
 	public String getDeviceInformation() {
 		String stringInfo;
 
+		scheduler.acquire(NLCommandScheduler.Priority.QUERY);
 		setRecvRouting(false);
 		try {
-			Thread.sleep(WAIT_TIMEOUT);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			parkReader();
+			stringInfo = getDeviceInformationCommand();
+		} finally {
+			setRecvRouting(true);
+			scheduler.release();
 		}
-		stringInfo = getDeviceInformationCommand();
-		setRecvRouting(true);
 
 		return stringInfo;
 	}
@@ -192,9 +466,9 @@ public class NLDevice implements NLDeviceStream{
 		byte[] data = packUnifyCommand("QRYSYS".getBytes());
 		if (data == null)      return null;
 
-		clean(20);
+		curCommStream.flushInput();
 		if (!write(data)) return null;
-		int len = readAck(recvBuffer, 0, recvBuffer.length, 300, 50, true);
+		int len = readAck(NLTimingModel.CmdClass.INFO, 300, data.length, recvBuffer, 0, recvBuffer.length, 50, true);
 
 		if (len < 16)       return null;
 		if (recvBuffer[0] != 2) return null;
@@ -210,14 +484,70 @@ public class NLDevice implements NLDeviceStream{
 //	}
 	public boolean startScan() {
 		byte[] data = {0x01, 0x54, 0x04};
+		boolean ret;
 
-		return write(data);
+		// The trigger has no response, it only needs the device between two commands
+		scheduler.acquire(NLCommandScheduler.Priority.TRIGGER);
+		try {
+			lastTriggerNanos = System.nanoTime();
+			ret = write(data);
+		} finally {
+			scheduler.release();
+		}
+		return ret;
+	}
+
+	@Override
+	public boolean startContinuousScan(int retriggerMs) {
+		if (!isOpen()) return false;
+		synchronized (this) {
+			pendingStopAck = null;
+			continuousScan = true;
+			if (retrigger == null)
+				retrigger = Executors.newSingleThreadScheduledExecutor(NLIoThreads.factory("NLDevice-retrigger"));
+			if (retriggerMs > 0) {
+				// Trigger again when the decode timeout of the device ended a trigger without barcode
+				final long timeoutNanos = retriggerMs * 1000000L;
+				retrigger.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						if (continuousScan && System.nanoTime() - lastTriggerNanos >= timeoutNanos)
+							startScan();
+					}
+				}, retriggerMs, Math.max(1, retriggerMs / 4), TimeUnit.MILLISECONDS);
+			}
+		}
+		return startScan();
+	}
+
+	@Override
+	public boolean stopContinuousScan() {
+		if (!isOpen()) return false;
+		stopRetrigger();
+		byte[] data = packUnifyCommand("#SCNTRG0".getBytes());
+		// The response arrives with the barcodes: header 0x02, the echoed command, then <ACK> ';' ETX
+		byte[] ack = new byte[data.length + 1];
+		System.arraycopy(data, 0, ack, 0, data.length - 2);
+		ack[0] = 2;
+		ack[ack.length - 3] = 6;
+		ack[ack.length - 2] = 0x3b;
+		ack[ack.length - 1] = 3;
+		stopAckDeadline = System.nanoTime() + STOP_ACK_NANOS;
+		pendingStopAck = ack;
+		boolean ret;
+		scheduler.acquire(NLCommandScheduler.Priority.TRIGGER);
+		try {
+			ret = write(data);
+		} finally {
+			scheduler.release();
+		}
+		return ret;
 	}
 
 
 	@Override
 	public boolean stopScan() {
-		return setConfig("#SCNTRG0");
+		return setConfig("#SCNTRG0", NLCommandScheduler.Priority.TRIGGER);
 	}
 
 	@Override
@@ -232,16 +562,24 @@ public class NLDevice implements NLDeviceStream{
 	 */
 	@Override
 	public boolean setConfig(String command) {
+		return setConfig(command, NLCommandScheduler.Priority.QUERY);
+	}
+
+	private boolean setConfig(String command, NLCommandScheduler.Priority priority) {
 		boolean ret;
 
+		scheduler.acquire(priority);
 		setRecvRouting(false);
 		try {
-			Thread.sleep(WAIT_TIMEOUT);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			parkReader();
+			ret = setConfigCommand(command);
+		} finally {
+			setRecvRouting(true);
+			scheduler.release();
 		}
-		ret = setConfigCommand(command);
-		setRecvRouting(true);
+		// Only a saved setting the device acknowledged changes a cached value
+		if (ret)
+			invalidateConfigValues(command);
 		return ret;
 	}
 
@@ -250,10 +588,10 @@ public class NLDevice implements NLDeviceStream{
 		byte[] data = packUnifyCommand(command.getBytes());
 		if(data == null)
 			return false;
-		clean(20);
+		curCommStream.flushInput();
 		if (!write(data))
 			return false;
-		int len = readAck(recvBuffer, 0, data.length + 1, 200, 10, true);
+		int len = readAck(NLTimingModel.CmdClass.SET_CONFIG, 200, data.length, recvBuffer, 0, data.length + 1, 10, true);
 		if (len != data.length + 1 || len < 6) return false;
 		data[0] = 2;
 		if (recvBuffer[len - 1] != 3)    return false;
@@ -274,15 +612,15 @@ public class NLDevice implements NLDeviceStream{
 	@Override
 	public String getConfig(String command) {
 		String retString;
+		scheduler.acquire(NLCommandScheduler.Priority.QUERY);
 		setRecvRouting(false);
 		try {
-			Thread.sleep(WAIT_TIMEOUT);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			parkReader();
+			retString = getConfigCommand(command);
+		} finally {
+			setRecvRouting(true);
+			scheduler.release();
 		}
-
-		retString = getConfigCommand(command);
-		setRecvRouting(true);
 		return retString;
 	}
 
@@ -296,8 +634,7 @@ public class NLDevice implements NLDeviceStream{
 		//clean(20);
 		if (!write(data))
 			return null;
-		int timeout = data.length * 2;
-		int len = readAck(recvBuffer, 0, recvBuffer.length, timeout, 10, true);
+		int len = readAck(NLTimingModel.CmdClass.GET_CONFIG, data.length * 2, data.length, recvBuffer, 0, recvBuffer.length, 10, true);
 		if (len < 6)
 			return null;
 
@@ -317,198 +654,379 @@ public class NLDevice implements NLDeviceStream{
 		return new String(recvBuffer, 7, len - (3 + 7));
 	}
 
-	private int setConfigBulk(String command)
+	/**
+	 * @param frame batch command such as "@128ENA1,MIN4;SCNMOD0;"
+	 * @return Response body without header and trailer, null if the device did not answer
+	 */
+	private String setConfigBulk(String frame)
 	{
-		int ret;
+		String ret;
 
 		setRecvRouting(false);
-		try {
-			Thread.sleep(WAIT_TIMEOUT);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		parkReader();
+		if (!isOpen())
+			ret = null;
+		else {
+			Log.i(TAG, "CommList:" + frame);
+			ret = sendConfigFrame(frame);
 		}
-		ret = setConfigBulkCommand(command);
 		setRecvRouting(true);
 		return ret;
 	}
 
-	private int setConfigBulkCommand(String command)
-	{
-		if (!isOpen())
-			return -1;
-		setRecvRouting(false);
-		try {
-			Thread.sleep(WAIT_TIMEOUT);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		byte[] data = packUnifyCommand(command.getBytes());
-		if(data == null)
-			return -2;
-		//clean(20);
-		if (!write(data))
-			return -3;
-		Log.i(TAG, "CommList:" + command );
 
-		int timeout = data.length * 2 + 200;
-		int len = readAck(recvBuffer, 0, recvBuffer.length, timeout, 10, true);
-		if (len < 6)
-			return -4;
+	@Override
+	public int updateFirmware(final byte[] filedata, updateListner listner) {
+		if (!isOpen()) return NLError.ERROR_INVALID_PARAMS;
 
-		// Determine whether the packet has the end suffix Suffix ";<ETX ETX>" (HEX: 3B 03), consisting of 2 characters
-		if (recvBuffer[len - 1] != 3)
-			return -5;
-		if (recvBuffer[len - 2] != 0x3b)
-			return -6;
-		return 1;
+		// The parsed index is cached with the other device state, the same package is not parsed again
+		NLArtifactStore store = artifactStore;
+		NLFirmwarePackage pkg = store != null ? store.putFirmware(filedata)
+				: NLFirmwarePackage.load(filedata, stateDir == null ? null : new File(stateDir, "firmware"));
+		if (pkg == null) return NLError.ERROR_FIRMWARE_FILE;
+		return updateFirmware(pkg, listner);
 	}
 
-
 	@Override
-	public int updateFirmware(final byte[] filedata, updateListner listner) {
-		NLCommStream.DevClass firmwareType;    // 0->SOC products；1->MCU products
-		final int McuMd5Prefix = 0x89abcdef;
+	public int updateFirmware(NLFirmwarePackage pkg, updateListner listner) {
+		int error;
 
 		if (!isOpen()) return NLError.ERROR_INVALID_PARAMS;
-
-		int error = NLError.ERROR_FIRMWARE_FILE;
-		final int len  = filedata.length;
-		if (len < 600) return error;
-		int tpos;
-		int total=0;
-		UpdateInfo info;
-
-		// SOC device update
-		if(McuMd5Prefix !=  readLE(filedata, 0)){
-			firmwareType = NLCommStream.DevClass.DEV_SOC;
-			tpos = len - 368;
-			for (int i = 0; i < 4; ++i, tpos += 76) {
-				final int offset  = readLE(filedata, tpos);
-				final int datalen = readLE(filedata, tpos + 4);
-				final int type    = readLE(filedata, tpos + 8);
-				final int target  = readLE(filedata, tpos + 40);
-				if (datalen == 0) break;
-				String str;
-				switch (type) {
-					case 0x6E72656B: str = "kern"; break;
-					case 0x746F6F62: str = "boot"; break;
-					case 0x6c707061: str = "appl"; break;
-					case 0x68616c66: str = String.format("flah:%s", target); break;
-					default: return error;
+		if (pkg == null) return NLError.ERROR_FIRMWARE_FILE;
+
+		// The checkpoint is kept per device by serial number, a device in the bootloader is known by its port
+		if (fwCheckpoint == null)
+			fwCheckpoint = new NLFirmwareCheckpoint(stateDir == null ? null : new File(stateDir, "firmware"));
+		final NLFirmwareCheckpoint checkpoint = fwCheckpoint;
+		final String serial = getDeviceSerial();
+		final String deviceKey = checkpoint.deviceKey(serial, curCommStream.getDeviceName());
+		final String packageId = pkg.getTransferId();
+		// Only a device that reported its serial number skips the sections it already has
+		boolean resume = checkpoint.load(deviceKey, packageId, serial != null);
+
+		scheduler.acquire(NLCommandScheduler.Priority.BULK);
+		setRecvRouting(false);
+		try {
+			parkReader();
+			listner.curProgress("updateFirmware", NLUpdateState.STATE_PAESE_FORMATE, 100);
+
+			// New firmware may come with other default settings
+			invalidateConfigCache();
+			for (int retry = 0; ; ++retry) {
+				error = updateDevice(pkg, listner, checkpoint, deviceKey, packageId, resume);
+				if (error == NLError.ERROR_SUCCESS) {
+					checkpoint.clear(deviceKey, packageId);
+					break;
 				}
-
-				if (offset < 0  || offset > len)  return error;
-				if (datalen < 0 || datalen > len) return error;
-				if (offset + datalen > len)       return error;
-				info = updateInfos[total++];
-				info.pos     = offset;
-				info.length  = datalen;
-				info.type    = str;
+				checkpoint.save(deviceKey, packageId);
+				// A transient failure during the transfer continues with the section it stopped in
+				if (error != NLError.ERROR_COMMUNICATION || !checkpoint.hasProgress() || retry >= RESUME_RETRIES)
+					break;
+				if (!reconnect())
+					break;
+				resume = true;
 			}
-		} // MCU device update
-		else {
-				firmwareType = NLCommStream.DevClass.DEV_MCU;
-				tpos = 0x5c;
-				if (filedata[tpos] != 1)
-					return error;
+			if (error != NLError.ERROR_SUCCESS)
+				setParam("@Exit");
+		} finally {
+			setRecvRouting(true);
+			scheduler.release();
+		}
+		return error;
+	}
 
-				info = updateInfos[total++];
-				info.pos = readLE(filedata, tpos + 8);
-				info.length = readLE(filedata, tpos + 4);
-				info.type = "kern";
-
-				tpos += 0x70;
-				if (filedata[tpos] == 1) {
-					info = updateInfos[total++];
-					info.pos = readLE(filedata, tpos + 12);
-					info.length = readLE(filedata, tpos + 8);
-					info.type = "flah";
-				}
+	@Override
+	public int updateConfig(File file) {
+		if (!isOpen()) return -1;
+
+		NLArtifactStore store = artifactStore;
+		File compiled = null;
+		if (store != null) {
+			// The XML is compiled once per content, the store returns the compiled file on the next rollouts.
+			// The compiled file is pinned while it is sent, trim() from another device does not evict it
+			compiled = store.putConfig(file);
+			if (compiled != null && store.acquire(compiled))
+				file = compiled;
+			else
+				compiled = null;
 		}
-		if (total == 0) return error;
 
-		setRecvRouting(false);
 		try {
-			Thread.sleep(WAIT_TIMEOUT);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			scheduler.acquire(NLCommandScheduler.Priority.BULK);
+			try {
+				return updateConfigCommand(file);
+			} finally {
+				scheduler.release();
+			}
+		} finally {
+			if (compiled != null)
+				store.release(compiled);
 		}
-		listner.curProgress("updateFirmware", NLUpdateState.STATE_PAESE_FORMATE, 100);
+	}
 
-		error  = updateDevice(filedata, firmwareType, updateInfos, total, listner);
-		if (error != NLError.ERROR_SUCCESS)
-			setParam("@Exit");
-		setRecvRouting(true);
-		return error;
+	private int updateConfigCommand(File file) {
+		final String serial = getDeviceSerial();
+		NLConfigBatcher batcher = new NLConfigBatcher(new NLConfigBatcher.BatchSink() {
+			@Override
+			public boolean onBatch(String frame, List<String[]> commands, boolean comm) {
+				// Every batch is a complete exchange, triggers waiting for the device run in between
+				scheduler.yieldPoint();
+				String body = setConfigBulk(frame);
+				if (body == null && !comm)
+					return false;
+				// A command the device did not acknowledge keeps an unknown value
+				cacheConfigValues(serial, commands, NLConfigTransaction.parseStatus(body, commands.size()));
+				return true;
+			}
+		});
+		ConfigDiff diff = new ConfigDiff(serial, batcher);
+		try {
+			if (!NLConfigLoader.load(file, diff) || !diff.flush())
+				return -1;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+		Log.i(TAG, "updateConfig: " + diff.changed + " of " + diff.total + " settings changed");
+		return batcher.finish();
 	}
 
 	@Override
-	public int updateConfig(File file) {
-		if (!isOpen()) return -1;
+	public NLConfigTransaction beginConfig() {
+		return new NLConfigTransaction(this);
+	}
 
+	/**
+	 * Send the commands of a transaction, the routing is disabled once for all frames
+	 * @param commands staged commands
+	 * @param status   receives the status of every command
+	 * @return true if communication commands were sent, the port may have switched
+	 */
+	boolean commitConfig(List<String> commands, final NLConfigTransaction.Status[] status) {
+		Arrays.fill(status, NLConfigTransaction.Status.NO_RESPONSE);
+		if (!isOpen() || commands.isEmpty()) return false;
+
+		scheduler.acquire(NLCommandScheduler.Priority.BULK);
+		setRecvRouting(false);
 		try {
-			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder dbBuilder = dbFactory.newDocumentBuilder();
-			Document doc = dbBuilder.parse(file);
-			NodeList nList = doc.getElementsByTagName("Command");
-
-			String prexTag = "";
-			String command;
-			StringBuilder sbCommandList = new StringBuilder();
-			StringBuilder sbCommCommandList = new StringBuilder();  // Communication related command list
-			boolean firstCmd = true;
-
-			for(int i = 0;i < nList.getLength();i++) {
-				// Get every configuration command
-				Element CommandElement = (Element) nList.item(i);
-
-				String value  = CommandElement.getAttribute("Value");
-				String name = CommandElement.getAttribute("CommandName");
-				//Log.i(TAG, "name:" + name + " value:" + value );
-
-				String Tag =  name.substring(0, 3);
-				if(Tag.equals(prexTag)){
-					command =  "," + name.substring(3) + value;
-				}
-				else{
-					if(firstCmd)
-						command = name + value;
-					else
-						command = ";" + name + value;
-					prexTag = Tag;
-				}
-				firstCmd = false;
-				if(name.equals("INTERF") || name.equals("AUTOUR") || name.startsWith("232")) {
-					sbCommCommandList.append(command);
-				}
-				else {
-					sbCommandList.append(command);
+			parkReader();
+			curCommStream.flushInput();
+			// Saved and temporary settings need frames of their own, '@' and '#'
+			final char[] prefixes = {'@', '#'};
+			NLConfigBatcher[] batchers = new NLConfigBatcher[prefixes.length];
+			for (int p = 0; p < prefixes.length; ++p) {
+				final char prefix = prefixes[p];
+				// Indexes of the commands in batcher order, the communication commands are sent last
+				final List<Integer> order = new ArrayList<>();
+				final List<Integer> commOrder = new ArrayList<>();
+				final int[] next = {0, 0};
+				batchers[p] = new NLConfigBatcher(new NLConfigBatcher.BatchSink() {
+					@Override
+					public boolean onBatch(String frame, List<String[]> batch, boolean comm) {
+						if (scheduler.isPreempted()) {
+							setRecvRouting(true);
+							scheduler.yieldPoint();
+							setRecvRouting(false);
+							parkReader();
+							curCommStream.flushInput();
+						}
+						NLConfigTransaction.Status[] frameStatus = NLConfigTransaction.parseStatus(sendConfigFrame(frame), batch.size());
+						final List<Integer> indexes = comm ? commOrder : order;
+						final int k = comm ? 1 : 0;
+						for (int i = 0; i < frameStatus.length; ++i) {
+							status[indexes.get(next[k]++)] = frameStatus[i];
+							// Only an acknowledged command changed the setting
+							if (frameStatus[i] == NLConfigTransaction.Status.ACK)
+								invalidateConfigValues(prefix + batch.get(i)[0] + batch.get(i)[1]);
+						}
+						return true;
+					}
+				}, prefix);
+				for (int i = 0; i < commands.size(); ++i) {
+					final String command = commands.get(i);
+					if (NLConfigTransaction.isPersistent(command) != (prefix == '@'))
+						continue;
+					final String body  = NLConfigTransaction.stripPrefix(command);
+					final String name  = body.substring(0, NLConfigTransaction.NAME_LENGTH);
+					(NLConfigBatcher.isCommCommand(name) ? commOrder : order).add(i);
+					batchers[p].add(name, body.substring(NLConfigTransaction.NAME_LENGTH));
 				}
+			}
+			// The communication commands may switch the port, they go out after the other frames of both prefixes
+			for (NLConfigBatcher batcher : batchers)
+				batcher.flushCommands();
+			boolean portSwitched = false;
+			for (NLConfigBatcher batcher : batchers)
+				portSwitched |= batcher.finish() == 0;
+			return portSwitched;
+		} finally {
+			setRecvRouting(true);
+			scheduler.release();
+		}
+	}
 
-				// Assume that the length of each batch configuration command does not exceed 200 characters
-				if(sbCommandList.toString().length() > 200){
-					String strCommanList = "@" + sbCommandList.toString() + ";";
-					if(setConfigBulk(strCommanList) < 0 )
-						return -1;
-					sbCommandList = new StringBuilder();
-					prexTag = "";
-					firstCmd = true;
+	/**
+	 * @param frame batch command such as "@128ENA1,MIN4;SCNMOD0;"
+	 * @return Response body without header and trailer, null if the device did not answer
+	 */
+	private String sendConfigFrame(String frame) {
+		byte[] data = packUnifyCommand(frame.getBytes());
+		if (data == null || !write(data))
+			return null;
+		int len = readAck(NLTimingModel.CmdClass.BULK_CONFIG, data.length * 2 + 200, data.length, recvBuffer, 0, recvBuffer.length, 10, true);
+		if (len < 10 || recvBuffer[len - 1] != 3 || recvBuffer[len - 2] != 0x3b)
+			return null;
+		return new String(recvBuffer, 7, len - 2 - 7, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Streaming comparison of the configuration file against the cached settings of the device.
+	 * Commands whose value is unknown are held back until about one query frame is collected,
+	 * they are then queried in one round trip and only the changed commands go on to the batcher, in file order.
+	 */
+	private class ConfigDiff implements NLConfigLoader.CommandSink {
+		private final String serial;
+		private final NLConfigBatcher batcher;
+		private final List<String[]> pending = new ArrayList<>();
+		private final List<String> unknown = new ArrayList<>();
+		private int unknownLen = 0;
+		int total   = 0;
+		int changed = 0;
+
+		ConfigDiff(String serial, NLConfigBatcher batcher) {
+			this.serial  = serial;
+			this.batcher = batcher;
+		}
+
+		@Override
+		public boolean onCommand(String name, String value) {
+			++total;
+			if (serial == null)
+				return forward(name, value);
+			String cached = configCache.get(serial, name);
+			if (cached == null) {
+				if (!unknown.contains(name)) {
+					unknown.add(name);
+					unknownLen += name.length() + 2;
 				}
+			} else if (pending.isEmpty()) {
+				return cached.equals(value) || forward(name, value);
+			}
+			pending.add(new String[]{name, value});
+			return unknownLen <= NLConfigBatcher.MAX_BATCH_LENGTH || flush();
+		}
+
+		boolean flush() {
+			if (!unknown.isEmpty()) {
+				scheduler.yieldPoint();
+				queryConfigBatch(serial, unknown);
+			}
+			boolean ret = true;
+			for (String[] cmd : pending) {
+				if (!cmd[1].equals(configCache.get(serial, cmd[0])) && !(ret = forward(cmd[0], cmd[1])))
+					break;
 			}
+			pending.clear();
+			unknown.clear();
+			unknownLen = 0;
+			return ret;
+		}
 
-			// Send the remaining configuration commands
-			String strCommanList = "@" + sbCommandList.toString() + ";";
-			if(setConfigBulk(strCommanList) < 0)
-				return -1;
+		private boolean forward(String name, String value) {
+			++changed;
+			return batcher.add(name, value);
+		}
+	}
+
+	private void cacheConfigValues(String serial, List<String[]> commands, NLConfigTransaction.Status[] status) {
+		if (serial == null) return;
+		for (int i = 0; i < commands.size(); ++i) {
+			final String[] cmd = commands.get(i);
+			if (status[i] == NLConfigTransaction.Status.ACK)
+				configCache.put(serial, cmd[0], cmd[1]);
+			else
+				configCache.remove(serial, cmd[0]);
+		}
+	}
+
+	/**
+	 * @return Serial number of the opened device from QRYSYS, null if the device does not answer
+	 */
+	private String getDeviceSerial() {
+		if (deviceSerial == null) {
+			deviceSerial = NLConfigCache.parseSerial(getDeviceInformation());
+			// First query since the device was opened, its settings may have changed while it was not ours
+			invalidateConfigCache();
+		}
+		return deviceSerial;
+	}
+
+	private void invalidateConfigCache() {
+		if (deviceSerial != null)
+			configCache.invalidate(deviceSerial);
+	}
 
-			// Send communication related commands
-			if(sbCommCommandList.length() > 0) {
-				String strCommList = "@" + sbCommCommandList.toString().substring(1) + ";";
-				setConfigBulk(strCommList);
-				return 0;
+	/**
+	 * Forget the cached values of the settings changed by a saved command such as "@128ENA1,MIN4;SCNMOD0"
+	 */
+	private void invalidateConfigValues(String command) {
+		if (deviceSerial == null || command.isEmpty() || !NLConfigTransaction.isPersistent(command))
+			return;
+		for (String segment : NLConfigTransaction.stripPrefix(command).split(";")) {
+			if (segment.length() < NLConfigTransaction.NAME_LENGTH)
+				continue;
+			// Settings merged under one tag omit it, "128ENA1,MIN4" changes 128ENA and 128MIN
+			final String tag = segment.substring(0, 3);
+			String[] items = segment.split(",");
+			configCache.remove(deviceSerial, segment.substring(0, NLConfigTransaction.NAME_LENGTH));
+			for (int i = 1; i < items.length; ++i) {
+				if (items[i].length() >= 3)
+					configCache.remove(deviceSerial, tag + items[i].substring(0, 3));
 			}
-		}catch (Exception e) {e.printStackTrace();}
-		return 1;
+		}
+	}
+
+	/**
+	 * Query several settings with one command like "SCNMOD*;128ENA*;", the answers are put in the cache
+	 */
+	private void queryConfigBatch(String serial, List<String> names) {
+		setRecvRouting(false);
+		parkReader();
+		queryConfigBatchCommand(serial, names);
+		setRecvRouting(true);
+	}
+
+	private void queryConfigBatchCommand(String serial, List<String> names) {
+		if (!isOpen()) return;
+		StringBuilder sb = new StringBuilder();
+		for (String name : names)
+			sb.append(name).append("*;");
+		byte[] data = packUnifyCommand(sb.toString().getBytes());
+		if (data == null || !write(data))
+			return;
+		int len = readAck(NLTimingModel.CmdClass.BULK_CONFIG, data.length * 2 + 200, data.length, recvBuffer, 0, recvBuffer.length, 10, true);
+		if (len < 10 || recvBuffer[len - 1] != 3 || recvBuffer[len - 2] != 0x3b)
+			return;
+
+		// Response body: every answer ends with its status, <ACK> (HEX: 06 ) for a valid query,
+		// answers are separated by ';', answers sharing the 3-letter tag may be merged with ','
+		String body = new String(recvBuffer, 7, len - 2 - 7);
+		for (String segment : body.split(";")) {
+			if (segment.isEmpty() || segment.charAt(segment.length() - 1) != 0x06)
+				continue;
+			String[] items = segment.substring(0, segment.length() - 1).split(",");
+			final String tag = items[0].length() >= 3 ? items[0].substring(0, 3) : "";
+			for (int i = 0; i < items.length; ++i) {
+				String item = (i == 0) ? items[i] : tag + items[i];
+				String name = null;
+				for (String n : names) {
+					if (item.startsWith(n) && (name == null || n.length() > name.length()))
+						name = n;
+				}
+				if (name != null)
+					configCache.put(serial, name, item.substring(name.length()));
+			}
+		}
 	}
 
 	private int read(byte[] dst, int timeout) {
@@ -516,10 +1034,14 @@ public class NLDevice implements NLDeviceStream{
 		int pos = 0, length = dst.length;
 
 		int ret = 0;
+		readFirstNanos = readLastNanos = 0;
 		while (true) {
 			if (timeout < 10) timeout = 10;
 			int len = curCommStream.readPacket(dst, pos, length, timeout);
 			if (len <= 0) break;
+			if (readFirstNanos == 0)
+				readFirstNanos = curCommStream.getFirstReadNanos();
+			readLastNanos = curCommStream.getLastReadNanos();
 			ret    += len;
 			pos    += len;
 			length -= len;
@@ -555,16 +1077,24 @@ public class NLDevice implements NLDeviceStream{
 
 	@Override
 	public boolean getImgBuff(byte[] ImgBuff, int imgSize, transImgListner listner)	{
+		if (!isOpen()) return false;
+
+		// The image is one response, it cannot be interrupted by a trigger
+		scheduler.acquire(NLCommandScheduler.Priority.BULK);
+		try {
+			return getImgBuffCommand(ImgBuff, imgSize, listner);
+		} finally {
+			setRecvRouting(true);
+			scheduler.release();
+		}
+	}
+
+	private boolean getImgBuffCommand(byte[] ImgBuff, int imgSize, transImgListner listner)	{
 		final String command = "IMGGET0T0R0F";
 		int recvLen;
 
-		if (!isOpen()) return false;
 		setRecvRouting(false);
-		try {
-			Thread.sleep(WAIT_TIMEOUT);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+		parkReader();
 		byte[] data = packUnifyCommand(command.getBytes());
 		if(data == null)
 			return false;
@@ -572,7 +1102,7 @@ public class NLDevice implements NLDeviceStream{
 		// package response header (equal to 2 bytes 3b 03 after sending command removed) + image length field (8 bytes) + image content + suffix
 		recvLen = (data.length-2) + 8 + imgSize + 3;
 		byte[] recvbuf = new byte[recvLen];
-		clean(20);
+		curCommStream.flushInput();
 		if (!write(data))
 			return false;
 
@@ -602,11 +1132,173 @@ public class NLDevice implements NLDeviceStream{
 			return false;
 
 		System.arraycopy(recvbuf, data.length + 8, ImgBuff, 0, imgSize);
-		setRecvRouting(true);
 		return true;
 	}
 
 	/* ============================= private =====================================================*/
+	/**
+	 * Receive pipeline of barcode data, called on the USB delivery thread or the serial reading thread, and with a
+	 * barcode received during a heartbeat on the monitor thread; the lock keeps the stages in one thread at a time.
+	 * The buffer is reused by the caller, so everything here must copy what it keeps. The response of the
+	 * fire-and-forget stop is cut out of it in place.
+	 * @param buff receive buffer
+	 * @param len  data length
+	 */
+	private void dispatchRecv(byte[] buff, int len) {
+		synchronized (dispatchLock) {
+			lastRecvNanos = System.nanoTime();
+			healthMonitor.onReceive();
+			len = cutStopAck(buff, 0, len);
+			if (len > 0)
+				dispatchBarcode(buff, len, true);
+		}
+	}
+
+	/**
+	 * Receive pipeline of the segments of a large USB barcode, called on the USB delivery thread.
+	 * The segments go to the application while they arrive, the whole barcode then passes through the stages of
+	 * dispatchBarcode. The copy it needs is only kept when one of them is enabled, the stream bounds its size.
+	 */
+	private void dispatchSegment(byte[] buff, int offset, int len, boolean last) {
+		synchronized (dispatchLock) {
+			dispatchSegmentLocked(buff, offset, len, last);
+		}
+	}
+
+	private void dispatchSegmentLocked(byte[] buff, int offset, int len, boolean last) {
+		final long now = System.nanoTime();
+		lastRecvNanos = now;
+		healthMonitor.onReceive();
+		if (!segmentStarted) {
+			segmentStarted    = true;
+			segmentFirstNanos = now;
+			segmentLength     = 0;
+			segmentCopied     = scanJournal != null || barcodeListener != null
+					|| scanDedupe.getWindow() > 0 || scanPublisher.getSubscriberCount() > 0;
+			// The stop response arrives ahead of the barcode data
+			len = cutStopAck(buff, offset, len);
+		}
+		NLSegmentListener l = segmentListener;
+		if (l != null)
+			l.onSegment(buff, offset, len, last);
+		if (segmentCopied && len > 0) {
+			if (segmentLength + len > segmentCopy.length)
+				segmentCopy = Arrays.copyOf(segmentCopy, Math.max(segmentLength + len, segmentCopy.length * 2));
+			System.arraycopy(buff, offset, segmentCopy, segmentLength, len);
+			segmentLength += len;
+		}
+		if (!last)
+			return;
+		segmentStarted = false;
+		if (segmentCopied && segmentLength > 0) {
+			if (scanTracer.isEnabled())
+				scanTracer.assembled(segmentFirstNanos, now, now);
+			dispatchBarcode(segmentCopy, segmentLength, false);
+		} else if (continuousScan) {
+			retriggerNow();
+		}
+		if (segmentCopy.length > SEGMENT_COPY_KEEP)
+			segmentCopy = new byte[0];
+	}
+
+	/**
+	 * Cut the response of the fire-and-forget stop out of received data, in place
+	 * @return Length of the data left
+	 */
+	private int cutStopAck(byte[] buff, int offset, int len) {
+		byte[] ack = pendingStopAck;
+		if (ack == null)
+			return len;
+		if (System.nanoTime() - stopAckDeadline > 0) {
+			pendingStopAck = null;
+			return len;
+		}
+		// The response may be merged with barcodes into one delivery, it is cut out of it
+		final int at = indexOf(buff, offset, len, ack);
+		if (at < 0)
+			return len;
+		pendingStopAck = null;
+		System.arraycopy(buff, at + ack.length, buff, at, offset + len - at - ack.length);
+		return len - ack.length;
+	}
+
+	/**
+	 * Stages of the receive pipeline applied to a whole barcode
+	 * @param toListener false for a segmented barcode, the segment listener received it instead of the USB listener
+	 */
+	private void dispatchBarcode(byte[] buff, int len, boolean toListener) {
+		if (scanDedupe.isDuplicate(buff, len)) {
+			if (continuousScan)
+				retriggerNow();
+			return;
+		}
+		NLScanJournal journal = scanJournal;
+		if (journal != null)
+			journal.append(curCommStream.getDeviceName(), buff, len, System.currentTimeMillis());
+		scanPublisher.publish(buff, len);
+		final long invoked = scanTracer.isEnabled() ? System.nanoTime() : 0;
+		if (toListener) {
+			if (mListener != null)
+				mListener.actionUsbRecv(buff, len);
+			else if (mUartListener != null)
+				mUartListener.actionRecv(buff, len);
+		}
+		NLBarcodeListener barcode = barcodeListener;
+		if (barcode != null)
+			barcode.onBarcode(barcodeView.wrap(buff, 0, len));
+		if (invoked != 0)
+			scanTracer.delivered(len, invoked, System.nanoTime());
+		if (continuousScan)
+			retriggerNow();
+	}
+
+	/**
+	 * @return Offset of the complete frame in the len bytes of buff from offset, -1 if it is not there
+	 */
+	private static int indexOf(byte[] buff, int offset, int len, byte[] frame) {
+		for (int i = offset; i + frame.length <= offset + len; ++i) {
+			int j = 0;
+			while (j < frame.length && buff[i + j] == frame[j])
+				++j;
+			if (j == frame.length)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Trigger the next decode of the continuous scan, off the receive thread so a command holding the device
+	 * never blocks the delivery of barcodes
+	 */
+	private synchronized void retriggerNow() {
+		if (retrigger == null)
+			return;
+		retrigger.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (continuousScan)
+					startScan();
+			}
+		});
+	}
+
+	private void stopRetrigger() {
+		ScheduledExecutorService e;
+		synchronized (this) {
+			continuousScan = false;
+			e = retrigger;
+			retrigger = null;
+		}
+		NLIoThreads.shutdown(e);
+	}
+
+	/**
+	 * @return System.nanoTime() of the latest trigger, 0 if none was sent
+	 */
+	long getLastTriggerNanos() {
+		return lastTriggerNanos;
+	}
+
 	/**
 	 * Whether to enable receiving USB data routing, enable when ready to receive codeword data,
 	 * must be disabled when sending configuration commands and firmware updates
@@ -614,17 +1306,88 @@ public class NLDevice implements NLDeviceStream{
 	 *              false：disabled，
 	 */
 	private void setRecvRouting(boolean enable) {
+		if (enable && abandonedReplyMs > 0)
+			drainAbandonedReply();
 		setCommandFlag(enable);
 		curCommStream.setReadAck(enable);
 	}
 
+	/**
+	 * A cancelled command stopped waiting for its response, the response still arrives and must be read here
+	 * instead of reaching the barcode listener. The interrupt is cleared for the drain and set again.
+	 */
+	private void drainAbandonedReply() {
+		final int timeout = abandonedReplyMs;
+		abandonedReplyMs = 0;
+		final boolean interrupted = Thread.interrupted();
+		try {
+			clean(timeout);
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Let the serial reader thread finish its read of READ_TIMEOUT before the command reads the port itself.
+	 * The USB streams stop routing as soon as setReadAck is cleared, there is no reader thread to wait for.
+	 */
+	private void parkReader() {
+		if (!isSerialStream())
+			return;
+		try {
+			Thread.sleep(WAIT_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean isSerialStream() {
+		return curCommStream instanceof NLUartStream;
+	}
+
 	private void changeBaudrate(int baudrate){
 		curCommStream.close(mContext);
 		curCommStream.open(pathName, baudrate);
+		uartBaudrate = baudrate;
+		timing.setBaudrate(baudrate);
+	}
+
+	/**
+	 * Switch the device and the host to the baud rate of the 232BAD value, the device acknowledges at the old rate.
+	 * If the device does not answer at the new rate, it is told to go back and the host returns to the old rate.
+	 * @param code 232BAD value, index of UART_BAUDRATES
+	 * @return true if the device answers at the new rate
+	 */
+	private boolean switchBaudrate(int code) {
+		final int oldRate = uartBaudrate;
+		int oldCode = -1;
+		for (int i = 0; i < UART_BAUDRATES.length; ++i)
+			if (UART_BAUDRATES[i] == oldRate) oldCode = i;
+		if (oldCode < 0 || !setConfigCommand(String.format("#232BAD%d", code)))
+			return false;
+
+		changeBaudrate(UART_BAUDRATES[code]);
+		for (int i = 0; i < 3; ++i) {
+			if (checkHealthCommand())
+				return true;
+		}
+		Log.e(TAG, "No answer at " + UART_BAUDRATES[code] + ", back to " + oldRate);
+		byte[] data = packUnifyCommand(String.format("#232BAD%d", oldCode).getBytes());
+		if (data != null)
+			write(data);
+		changeBaudrate(oldRate);
+		clean(20);
+		return false;
 	}
 
 	private boolean write(byte[] src, @SuppressWarnings("SameParameterValue")int pos, int len) {
-        return curCommStream.writePacket(src, pos, len);
+		// A cancelled caller sends nothing, a command written now would answer into the barcode stream
+		if (Thread.currentThread().isInterrupted())
+			return false;
+        final boolean ok = curCommStream.writePacket(src, pos, len);
+        healthMonitor.recordWrite(ok);
+        return ok;
     }
 
 
@@ -656,31 +1419,51 @@ public class NLDevice implements NLDeviceStream{
      * @return Correct response packet length, 0 means error
      */
     private int readAck(byte[] dst, @SuppressWarnings("SameParameterValue")int pos, int length, int timeout, int interval, boolean isUnifyCmd) {
+        return readAck(dst, pos, length, timeout, interval, isUnifyCmd ? ucsMatcher : rawMatcher);
+    }
+
+    /**
+     * Receive a response, it returns as soon as the matcher detects the end of the frame
+     * @param matcher end of frame detection of the expected response
+     */
+    private int readAck(byte[] dst, int pos, int length, int timeout, int interval, NLFrameMatcher matcher) {
         if (!isOpen())   return 0;
         final int minTimeout = 20;
         timeout  = Math.max(minTimeout, timeout);interval = Math.max(minTimeout, interval);
 
-        int ret = 0;
-        while (true) {
-            int len = curCommStream.readPacket(dst, pos, length, timeout);
-
-            if (len <= 0)
-            	break;
-            ret    += len;
-            pos    += len;
-            length -= len;
-            // 判断统一指令应答数据包接收完成
-            if (isUnifyCmd && (ret > 2) && (dst[pos - 1] == 3) && (dst[pos - 2] == 0x3b))
-            	break;
-            if (pos >= dst.length)
-            	break;
-            if (length == 0)
-            	break;
-            timeout = interval;
-        }
+        matcher.reset();
+        int ret = curCommStream.readFrame(dst, pos, Math.min(length, dst.length - pos), timeout, interval, matcher);
+        ackFirstByteTime = matcher.getFirstByteTime();
+        if (Thread.currentThread().isInterrupted() && !matcher.isComplete())
+            abandonedReplyMs = Math.max(abandonedReplyMs, timeout);
         return ret;
     }
 
+	/**
+	 * readAck with the first packet timeout taken from the timing model of the command class,
+	 * the response time is fed back to the model
+	 * @param cls        command class
+	 * @param defaultMs  timeout used while the model has too few observations
+	 * @param sentBytes  number of bytes of the command, used to account for the link transfer time
+	 */
+	private int readAck(NLTimingModel.CmdClass cls, int defaultMs, int sentBytes, byte[] dst, @SuppressWarnings("SameParameterValue")int pos, int length, int interval, boolean isUnifyCmd) {
+		return readAck(cls, defaultMs, sentBytes, dst, pos, length, interval, isUnifyCmd ? ucsMatcher : rawMatcher);
+	}
+
+	private int readAck(NLTimingModel.CmdClass cls, int defaultMs, int sentBytes, byte[] dst, int pos, int length, int interval, NLFrameMatcher matcher) {
+		final int timeout = timing.timeout(cls, defaultMs, sentBytes);
+		final long start  = SystemClock.uptimeMillis();
+		int len = readAck(dst, pos, length, timeout, interval, matcher);
+		// A wait cut short by the caller says nothing about the device
+		if (Thread.currentThread().isInterrupted())
+			return len;
+		timing.record(cls, ackFirstByteTime - start, sentBytes, len > 0);
+		// Bootloader exchanges are expected to miss answers while probing
+		if (cls.ordinal() <= NLTimingModel.CmdClass.BULK_CONFIG.ordinal())
+			healthMonitor.recordResponse(len > 0);
+		return len;
+	}
+
 	private static byte[] packUnifyCommand(byte[] data) {
 		if (data == null || data.length == 0) return null;
 		int len = data.length;
@@ -717,10 +1500,6 @@ public class NLDevice implements NLDeviceStream{
 		return ((str[pos] & 0xFF) << 24) | ((str[pos + 1] & 0xFF) << 16) |  ((str[pos + 2] & 0xFF) << 8);
 	}
 
-	static private int readLE(byte[] str, int pos) {
-		return ((str[pos + 3] & 0xFF) << 24) | ((str[pos + 2] & 0xFF) << 16) |  ((str[pos + 1] & 0xFF) << 8) | (str[pos] & 0xFF);
-	}
-
 	private int getCRC32(byte[] str, @SuppressWarnings("SameParameterValue")int pos, int len) {
 		crc32.reset();
 		crc32.update(str, pos, len);
@@ -742,15 +1521,16 @@ public class NLDevice implements NLDeviceStream{
 			buffer[4 + i] = (byte)(str.charAt(i));
 		writeBE(buffer, len + 4, getCRC32(buffer, 0, 4 + len));
 
-		clean(0);
+		curCommStream.flushInput();
 		if (!write(buffer, 0, len + 8))
 			return false;
 
 		recvBuffer[0] = 0;
 		recvBuffer[1] = 0;
 
-		// The device replies with 9 bytes, but older firmware may reply with 10 bytes
-		int rlen = readAck(recvBuffer, 0, 10, 2000, 20, false);
+		// The device replies with 9 bytes, but older firmware may reply with 10 bytes. The matcher completes
+		// the frame at 9 bytes without waiting for a 10th, every bootloader exchange flushes it before its request
+		int rlen = readAck(NLTimingModel.CmdClass.PARAM, 2000, len + 8, recvBuffer, 0, 10, 20, paramMatcher);
 		if (rlen != 9 && rlen != 10)
 			return false;
 		if (recvBuffer[0] != 2 || recvBuffer[1] != 5 || recvBuffer[2] != 0)
@@ -774,19 +1554,33 @@ public class NLDevice implements NLDeviceStream{
 
 	private boolean readExactly(byte wanted) {
 		final int timeout = 3000;
-		return readExactly(wanted, timeout);
-	}
-
-	private boolean readExactly(byte wanted, int timeout) {
 		recvBuffer[0] = 0;
-		if (readAck(recvBuffer, 0, 1, timeout, 0, false) < 1)
+		if (readAck(NLTimingModel.CmdClass.HANDSHAKE, timeout, 0, recvBuffer, 0, 1, 0, false) < 1)
 			return false;
 		return recvBuffer[0] == wanted;
 	}
 
+	/**
+	 * Wait for the end of the programming of a section, the timeout comes from the learned time per KB
+	 * @param kbytes programmed KB, 0 if the section was erased before the transfer
+	 * @param scale  slowdown of the section type, the flah sections are about 10 times slower
+	 */
+	private boolean waitFlashed(byte wanted, int kbytes, int scale) {
+		// The learned rate may shorten the timeout as well, the floor protects against a few fast sections
+		final int perKb   = Math.max(FLASH_MIN_MS_PER_KB, timing.timeout(NLTimingModel.CmdClass.FLASH, FLASH_MS_PER_KB, 0));
+		final int timeout = kbytes * perKb * scale + FLASH_SLACK_MS;
+		final long start  = SystemClock.uptimeMillis();
+		recvBuffer[0] = 0;
+		final boolean ok = readAck(recvBuffer, 0, 1, timeout, 0, false) >= 1;
+		// A missed end of programming backs the timeout off for the next section
+		if (kbytes > 0)
+			timing.record(NLTimingModel.CmdClass.FLASH, ok ? (ackFirstByteTime - start) / kbytes / scale : 0, 0, ok);
+		return ok && recvBuffer[0] == wanted;
+	}
+
 	private int readExactlyEx(byte wanted, int timeout) {
 		recvBuffer[0] = 0;
-		if (readAck(recvBuffer, 0, 1, timeout, 0, false) < 1)
+		if (readAck(NLTimingModel.CmdClass.FRAME, timeout, frameSize + 5, recvBuffer, 0, 1, 0, false) < 1)
 			return -1;
 		if(recvBuffer[0] == wanted)
 			return 1;
@@ -795,8 +1589,36 @@ public class NLDevice implements NLDeviceStream{
 	}
 
 
-	private int updateDevice(byte[] data, NLCommStream.DevClass firmwareType, UpdateInfo[] updateInfos, int total, updateListner listner) {
+	/**
+	 * Wait for the link after a transfer failed, reopening the USB connection if it was lost
+	 * @return false if the device is gone
+	 */
+	private boolean reconnect() {
+		try {
+			Thread.sleep(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		if (isSerialStream() || curCommStream.isOpen())
+			return true;
+		if (!curCommStream.open(mContext))
+			return false;
+		curCommStream.setUsbListener(usbRecvListener);
+		return true;
+	}
+
+	/**
+	 * @param checkpoint section to start from, saved with every programmed section
+	 * @param resume     whether the device may still be in the bootloader of an interrupted update
+	 */
+	private int updateDevice(NLFirmwarePackage pkg, updateListner listner, NLFirmwareCheckpoint checkpoint, String deviceKey,
+			String packageId, boolean resume) {
 		final int error = NLError.ERROR_COMMUNICATION;
+		final byte[] data = pkg.getData();
+		final NLCommStream.DevClass firmwareType = pkg.getFirmwareType();
+		final int total = pkg.getSectionCount();
+		final int dataBaudrate  = uartBaudrate;
 		final byte[] quotes     = { 0x3f}; // '?'
 		final byte[] cmdUpgrade = { 0x7e, 0, 0, 0x09, 0x7e, 0x75, 0x70, 0x47, 0x72, 0x61, 0x64, 0x65, 0x7e, (byte)0xa6};   // For SOC devices
 		final byte[] cmdupDate = {  0x7e, 0, 0, 0x08, 0x7e, 0x75, 0x70, 0x44, 0x61, 0x74, 0x65, 0x7e, (byte)0xc6};         // For MCU devices
@@ -811,17 +1633,23 @@ public class NLDevice implements NLDeviceStream{
 		else{
 			updateStar = cmdupDate;
 		}
-		if (!write(updateStar) || !readExactly((byte) 0x06))
-			return error;
+		// A device left in the bootloader by an interrupted update does not answer, it is probed with '?' below
+		boolean inBoot = false;
+		if (!write(updateStar) || !readExactly((byte) 0x06)) {
+			if (!resume)
+				return error;
+			inBoot = true;
+		}
 		listner.curProgress("updateDevice", NLUpdateState.STATE_HANDSHAKE, 100);
 
 		// For MCU devices, after sending "~upDate~", the device will restart and enter Boot, which is equivalent to unplugging the device.
-		if(!curCommStream.getClass().equals(NLUartStream.class)  && (firmwareType == NLCommStream.DevClass.DEV_MCU)) {
+		if(!inBoot && !isSerialStream()  && (firmwareType == NLCommStream.DevClass.DEV_MCU)) {
 			//curCommStream.close(mContext);
 			try {
 				Thread.sleep(1000);
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				return error;
 			}
 
 			/* Since the MCU restarts will cause the USB to be unplugged,
@@ -833,23 +1661,26 @@ public class NLDevice implements NLDeviceStream{
 				try {
 					Thread.sleep(2000);
 				} catch (InterruptedException e) {
-					e.printStackTrace();
+					Thread.currentThread().interrupt();
+					return error;
 				}
 
 				if (!curCommStream.open(mContext))
 					return NLError.ERROR_DEVICE_NOT_EXIST;
 			}
-			curCommStream.setUsbListener(mListener);
+			curCommStream.setUsbListener(usbRecvListener);
 			listner.curProgress("updateDevice", NLUpdateState.STATE_RECONNECTED, 100);
 		}
 
-		for (int idx = 0; idx < total; ++idx) {
-            final UpdateInfo info = updateInfos[idx];
-            final int datalen     = info.length;
-            int   pos             = info.pos;
+		// Sections before the checkpoint were programmed completely
+		final int startSection = Math.min(checkpoint.section, total - 1);
+		for (int idx = startSection; idx < total; ++idx) {
+            final NLFirmwarePackage.Section info = pkg.getSection(idx);
+            final int datalen     = info.getLength();
+            int   pos             = info.getOffset();
 
             // 2. enter update mode
-            if(curCommStream.getClass().equals(NLUartStream.class)) {
+            if(isSerialStream()) {
                 changeBaudrate(9600);
             }
 
@@ -857,9 +1688,11 @@ public class NLDevice implements NLDeviceStream{
 				try {
 					Thread.sleep(20);
 				} catch (InterruptedException e) {
-					e.printStackTrace();
+					Thread.currentThread().interrupt();
+					return error;
 				}
 
+                curCommStream.flushInput();
                 if (!write(quotes)) return error;
 				recvBuffer[0] = 0;
                 if (readAck(recvBuffer, 0, 1, 100, 0, false) == 0) {
@@ -870,26 +1703,32 @@ public class NLDevice implements NLDeviceStream{
                 if (recvBuffer[0] == '<')
                     break;
             }
-			listner.curProgress(info.type, NLUpdateState.STATE_ENTER_UPDATE, 100);
+			listner.curProgress(info.getType(), NLUpdateState.STATE_ENTER_UPDATE, 100);
 
             // 3.  switch baud rate (optional)
-            if(curCommStream.getClass().equals(NLUartStream.class)) {
-                if (!setParam("#COMM:115200,8,0,1", result)) {
+            if(isSerialStream()) {
+                // Use the negotiated rate for the data phase if the bootloader accepts it
+                int bootRate = BOOT_BAUDRATE;
+                if (dataBaudrate > BOOT_BAUDRATE && setParam(String.format("#COMM:%d,8,0,1", dataBaudrate))) {
+                    bootRate = dataBaudrate;
+                } else if (!setParam(String.format("#COMM:%d,8,0,1", BOOT_BAUDRATE), result)) {
                     if (result[0] != '0')
                         return error;
                 }
-                changeBaudrate(115200);
+                changeBaudrate(bootRate);
 
                 // Send a byte '*' directly after waiting 20 milliseconds, and the device will respond with a '*'
                 try {
                     Thread.sleep(20);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    Thread.currentThread().interrupt();
+                    return error;
                 }
 
                 for (int i = 0; i<20; i++) {
                     if (++i >= 20)
                         return error;
+                    curCommStream.flushInput();
                     if (!write(quotesProbe)) return error;
 					recvBuffer[0] = 0;
                     if (readAck(recvBuffer, 0, 1, 100, 0, false) == 0)
@@ -897,15 +1736,15 @@ public class NLDevice implements NLDeviceStream{
                     if (recvBuffer[0] == '*')
                         break;
                 }
-				listner.curProgress(info.type, NLUpdateState.STATE_SERIAL_CHANGE, 100);
+				listner.curProgress(info.getType(), NLUpdateState.STATE_SERIAL_CHANGE, 100);
             }
 
 
             // 4. Set update block information
-            final int frames = (datalen + frameSize - 1) / frameSize;
+            final int frames = info.getFrames();
             if (!setParam(String.format("!DataLens:%s", datalen)))
                 return error;
-            if (!setParam(String.format("!FileType:%s", info.type)))
+            if (!setParam(String.format("!FileType:%s", info.getType())))
                 return error;
             if (!setParam(String.format("!FrameSize:%s", frameSize)))
                 return error;
@@ -914,7 +1753,7 @@ public class NLDevice implements NLDeviceStream{
             if (!setParam(String.format("!Frames:%s", frames)))
                 return error;
 
-            listner.curProgress(info.type, NLUpdateState.STATE_SET_PARAM, 100);
+            listner.curProgress(info.getType(), NLUpdateState.STATE_SET_PARAM, 100);
 
             // 6. start Update
             boolean erased = false;
@@ -923,6 +1762,7 @@ public class NLDevice implements NLDeviceStream{
                 	return error;
                 if (!setParam(">Erase"))
                 	return error;
+                curCommStream.flushInput();
                 erased = true;
                 for (; ;) {
 					recvBuffer[0] = 0;
@@ -936,26 +1776,37 @@ public class NLDevice implements NLDeviceStream{
                 }
             }
 
+            // 6.1 an interrupted section is sent again from its first frame, the sections before it are kept
+            if (idx == startSection && idx > 0)
+                listner.curProgress(info.getType(), NLUpdateState.STATE_RESUME, (idx * 100) / total);
+            checkpoint.section = idx;
+
             // 7. send data
-            int  sendLen=0;
+            // frame: | 0x02 | payload | zero padding up to frameSize | CRC32 (BE) |, written with one gathering write,
+            // the CRC of every frame was computed when the package was parsed
+            final byte[] frameHead = {0x02};
+            final byte[] framePad  = new byte[frameSize];
+            final byte[] frameCrc  = new byte[4];
+            final ByteBuffer[] frame = new ByteBuffer[4];
+            int  sendLen = 0;
+            curCommStream.flushInput();
             for (int i = 0, remain = datalen; i < frames; ++i) {
-				buffer[0] = 0x02;
-
                 final int sendbytes = Math.min(remain, frameSize);
-                System.arraycopy(data, pos,  buffer, 1, sendbytes);
+                final int padbytes  = frameSize - sendbytes;
+                writeBE(frameCrc, 0, info.getFrameCrc(i));
+                final int framePos = pos;
                 pos     += sendbytes;
                 sendLen += sendbytes;
                 remain  -= sendbytes;
 
-                final int tsize = frameSize + 1;
-                for (int j = sendbytes + 1; j < tsize; ++j) buffer[j] = 0;
-
-                writeBE(buffer, tsize, getCRC32(buffer, 0, tsize));
-
                 /* Send content, return '*' is normal, '!' resend 3 times if receiving error, and exit if 3 times are not successful.*/
 				int j;
                 for(j=0; j<3; j++) {
-                    if (!write(buffer, 0, frameSize + 5))
+                    frame[0] = ByteBuffer.wrap(frameHead);
+                    frame[1] = ByteBuffer.wrap(data, framePos, sendbytes);
+                    frame[2] = ByteBuffer.wrap(framePad, 0, padbytes);
+                    frame[3] = ByteBuffer.wrap(frameCrc);
+                    if (!curCommStream.writePacket(frame))
                         continue;
                     int ret = readExactlyEx((byte) '*', 1000);    // Received send success reply
                     if(ret < 0)     // The timeout return indicates that the receiving communication has been destroyed, and the upgrade is terminated
@@ -965,17 +1816,18 @@ public class NLDevice implements NLDeviceStream{
                 }
                 if(j>=3)
                 	return error;
-                listner.curProgress(info.type, NLUpdateState.STATE_SEND_DATA, (sendLen*100)/datalen);
+                listner.curProgress(info.getType(), NLUpdateState.STATE_SEND_DATA, (sendLen*100)/datalen);
 
             }
-            listner.curProgress(info.type, NLUpdateState.STATE_WAIT_UPDATE, 100);
+            listner.curProgress(info.getType(), NLUpdateState.STATE_WAIT_UPDATE, 100);
             if (!readExactly((byte)'*'))
                 return error;
-            final int factor = info.type.startsWith("flah") ? 500 : 50;
-            final int timeout =  (erased ? 0 : (datalen / 1024 * factor)) + 5000;
-            if (!readExactly((byte)'^', timeout))
+            if (!waitFlashed((byte)'^', erased ? 0 : Math.max(1, datalen / 1024), info.getType().startsWith("flah") ? 10 : 1))
                 return error;
-            listner.curProgress(info.type, NLUpdateState.STATE_UPDATE_COMPLETE, 100);
+            listner.curProgress(info.getType(), NLUpdateState.STATE_UPDATE_COMPLETE, 100);
+            // The section is programmed, an interruption from here on continues with the next one
+            checkpoint.section = idx + 1;
+            checkpoint.save(deviceKey, packageId);
             if(firmwareType == NLCommStream.DevClass.DEV_SOC) {
 				if (idx + 1 < total)
 					setParam("@NextDown");
@@ -0,0 +1,115 @@
+package com.nlscan.nlsdk;
+
+import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import java.util.Map;
+
+/**
+ *  Opens a Newland USB device without knowing its interface class in advance.
+ *  The USB devices are enumerated once, the interface class of every Newland device is derived from the low byte
+ *  of its PID, and the interface of that class with both data endpoints is looked up in its descriptors, a composite
+ *  device also exposes interfaces without them. The matching stream is opened on that device and interface; it finds
+ *  them again by serial number and interface id when the device is re-enumerated.
+ *  When several devices or interfaces are available, the one with the highest throughput is chosen:
+ *  CDC (bulk endpoints) before HID POS before the KBW/POS composite device.
+ */
+public class NLDeviceFactory {
+    private static final String TAG = "NLDeviceFactory";
+    private static final int NEWLAND_VID = 0x1EAB;
+
+    private NLDeviceFactory() {
+    }
+
+    /**
+     * @param context The Android context is used to enumerate devices
+     * @return The interface class of the best Newland USB device, null if there is none
+     */
+    public static NLDeviceStream.DevClass detect(Context context) {
+        UsbDevice device = findBest(context);
+        return device == null ? null : devClassOf(device);
+    }
+
+    /**
+     * Detect and open the best Newland USB device. As with NLDevice.open, the application must have
+     * permission for the device, otherwise permission is requested and null is returned.
+     * @param context  The Android context is used to enumerate devices
+     * @param listener System USB event listener
+     * @return The opened device, null if none could be opened
+     */
+    public static NLDevice open(Context context, NLDeviceStream.NLUsbListener listener) {
+        UsbDevice device = findBest(context);
+        if (device == null) {
+            Log.e(TAG, "No Device found.");
+            return null;
+        }
+        NLUSBStream stream;
+        switch (devClassOf(device)) {
+            case DEV_CDC:
+                stream = new NLUsbCdc();
+                break;
+            case DEV_POS:
+                stream = new NLUsbPos();
+                break;
+            case DEV_COMPOSITE:
+                stream = new NLUsbComposite();
+                break;
+            default:
+                return null;
+        }
+        // A composite device has several interfaces of the class, the usable one is claimed
+        UsbInterface iface = NLUSBStream.findInterface(device, NLUSBStream.getDevCls(device.getProductId() & 0xFF), -1);
+        stream.setTargetDevice(device, iface == null ? -1 : iface.getId());
+        NLDevice nlDevice = new NLDevice(stream);
+        return nlDevice.open(context, listener) ? nlDevice : null;
+    }
+
+    /* ============================= private =====================================================*/
+    private static UsbDevice findBest(Context context) {
+        UsbManager usbManager = (UsbManager)context.getSystemService(Context.USB_SERVICE);
+        if (usbManager == null) {
+            Log.e(TAG, "Don't support USB service.");
+            return null;
+        }
+        UsbDevice best = null;
+        int bestRank = 0;
+        for (Map.Entry<String, UsbDevice> entry : usbManager.getDeviceList().entrySet()) {
+            UsbDevice device = entry.getValue();
+            if (device.getVendorId() != NEWLAND_VID)
+                continue;
+            final int rank = rank(device);
+            if (rank > bestRank) {
+                best     = device;
+                bestRank = rank;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return Throughput rank of the device interface, 0 if it is not supported
+     */
+    private static int rank(UsbDevice device) {
+        NLDeviceStream.DevClass cls = devClassOf(device);
+        if (cls == null || NLUSBStream.findInterface(device, NLUSBStream.getDevCls(device.getProductId() & 0xFF), -1) == null)
+            return 0;
+        switch (cls) {
+            case DEV_CDC:       return 3;
+            case DEV_POS:       return 2;
+            case DEV_COMPOSITE: return 1;
+            default:            return 0;
+        }
+    }
+
+    private static NLDeviceStream.DevClass devClassOf(UsbDevice device) {
+        switch (device.getProductId() & 0xFF) {
+            case 0x06: return NLDeviceStream.DevClass.DEV_CDC;
+            case 0x10: return NLDeviceStream.DevClass.DEV_POS;
+            case 0x22: return NLDeviceStream.DevClass.DEV_COMPOSITE;
+            default:   return null;
+        }
+    }
+}
@@ -36,7 +36,8 @@ public interface NLDeviceStream {
 		STATE_SET_PARAM,
 		STATE_SEND_DATA,
 		STATE_WAIT_UPDATE,
-		STATE_UPDATE_COMPLETE
+		STATE_UPDATE_COMPLETE,
+		STATE_RESUME			// the transfer continues with the section an interrupted update stopped in
 	}
 
 	/**
@@ -66,6 +67,30 @@ public interface NLDeviceStream {
 		void actionRecv(byte [] RecvBuff, int len);
 	}
 
+	/**
+	 *  Receives every barcode as a parsed decode result, in addition to the USB or serial listener
+	 */
+	interface NLBarcodeListener {
+		/**
+		 * @param barcode decode result over the receive buffer, only valid during the call
+		 */
+		void onBarcode(NLBarcode barcode);
+	}
+
+	/**
+	 *  Receives large USB barcodes in segments while they arrive
+	 */
+	interface NLSegmentListener {
+		/**
+		 * Called on the delivery thread of the device, the buffer is reused after the call
+		 * @param buff   receive buffer
+		 * @param offset segment offset in the buffer
+		 * @param len    segment length, may be 0 for the last segment
+		 * @param last   true for the last segment of the barcode
+		 */
+		void onSegment(byte[] buff, int offset, int len, boolean last);
+	}
+
 
 	/**
 	 *  Monitor the progress of transferring images
@@ -117,6 +142,88 @@ public interface NLDeviceStream {
 	 */
 	boolean open(String pathName, int baudrate, NLUartListener listener);
 
+	/**
+	 * Scan stream of this device with back pressure. Every barcode is also delivered here as an immutable copy
+	 * with its receive time, independent of the listener passed to open, so slow processing does not block
+	 * the receive path. The stream of the current subscribers completes when the device is closed.
+	 * @return The scan stream publisher of this device
+	 */
+	NLScanPublisher getScanPublisher();
+
+	/**
+	 * Duplicate suppression of this device, disabled by default. Enable it with getScanDedupe().setWindow(ms),
+	 * a barcode identical to one received within the window is then dropped before the scan stream and the listener.
+	 * @return The duplicate suppression stage of this device
+	 */
+	NLScanDedupe getScanDedupe();
+
+	/**
+	 * Latency tracing of the receive pipeline, disabled by default. Enable it with getScanTracer().setEnabled(true),
+	 * every barcode is then stamped from its first received packet to the return of the listener.
+	 * @return The latency tracer of this device
+	 */
+	NLScanTracer getScanTracer();
+
+	/**
+	 * Background health monitoring, stopped by default. Started with getHealthMonitor().start(), it sends
+	 * heartbeats in the idle gaps of scanning and reports a degrading device through its listener.
+	 * @return The health monitor of this device
+	 */
+	NLHealthMonitor getHealthMonitor();
+
+	/**
+	 * Append every received barcode to a crash-safe journal before it is delivered,
+	 * so scans are not lost when the application is killed or the backend is unreachable.
+	 * The same journal may be set on several devices, records carry the device name.
+	 * @param journal scan journal, null to stop journaling
+	 */
+	void setScanJournal(NLScanJournal journal);
+
+	/**
+	 * Deliver every barcode as an NLBarcode parsed with the given format. The barcode is reused for every scan,
+	 * so delivering it does not allocate; keep it beyond the call with NLBarcode.Pool
+	 * @param format   prefix sequence and suffix configured on the device
+	 * @param listener barcode listener, null to stop
+	 */
+	void setBarcodeListener(NLBarcode.Format format, NLBarcodeListener listener);
+
+	/**
+	 * Stream USB barcodes longer than the segment size to the segment listener while they arrive, instead of
+	 * collecting them for the USB listener. Once complete, such a barcode passes through duplicate suppression, the
+	 * journal, the scan stream and the barcode listener like the others; a duplicate is only dropped from those,
+	 * its segments were already delivered. Without a segment listener every barcode is delivered whole.
+	 * Serial devices deliver every barcode whole.
+	 * @param segmentSize segment length in bytes, e.g. 4096
+	 * @param listener    segment listener, null to stop
+	 */
+	void setSegmentListener(int segmentSize, NLSegmentListener listener);
+
+	/**
+	 * Directory where the SDK keeps state between sessions, such as the baud rate negotiated on each serial port
+	 * and the index of the firmware packages already parsed.
+	 * Set it before open, e.g. with context.getFilesDir(), nothing is persisted when it is not set.
+	 * @param dir state directory
+	 */
+	void setStateDirectory(File dir);
+
+	/**
+	 * Keep the firmware packages and configuration files passed to updateFirmware(byte[]) and updateConfig in a
+	 * local store, so a package or configuration rolled out again is neither parsed nor validated again.
+	 * The same store may be shared by several devices.
+	 * @param store artifact store, null to parse every artifact
+	 */
+	void setArtifactStore(NLArtifactStore store);
+
+	/**
+	 * Switch a serial device and the host to the highest baud rate both support, up to maxBaudrate.
+	 * Higher rates are tried first, a rate the device rejects or does not answer at is skipped and the
+	 * previous rate is restored. The result is stored for the port and used by the next open,
+	 * and firmware updates use it for the data phase when the bootloader accepts it.
+	 * @param maxBaudrate highest baud rate to try, such as 921600
+	 * @return The baud rate in use after the negotiation, 0 if the device is not an open serial device
+	 */
+	int negotiateBaudrate(int maxBaudrate);
+
     /**
      *  turn off the device
      */
@@ -141,7 +248,8 @@ public interface NLDeviceStream {
 	String  getDeviceInformation();
 
     /**
-     * The device starts to read the code
+     * The device starts to read the code.
+     * Triggers take precedence over waiting commands, during updateConfig they run between two batches
      * @return true or false
      */
 	boolean startScan();
@@ -152,6 +260,22 @@ public interface NLDeviceStream {
      */
 	boolean stopScan();
 
+    /**
+     * Continuous scan for presentation use: the device is triggered again as soon as a barcode was delivered,
+     * so it decodes as fast as the device and the listener allow.
+     * @param retriggerMs time without barcode after which a trigger is repeated, e.g. the decode timeout of the
+     *                    device; 0 to trigger again only after a barcode
+     * @return true or false
+     */
+	boolean startContinuousScan(int retriggerMs);
+
+    /**
+     * Stop the continuous scan. The stop command is sent without waiting for its response, which is dropped
+     * from the received barcodes, so a barcode decoded meanwhile is still delivered
+     * @return true if the stop command was sent
+     */
+	boolean stopContinuousScan();
+
     /**
      * Restart the device
      * @return true or false
@@ -188,14 +312,32 @@ public interface NLDeviceStream {
 	 */
 	int updateFirmware(byte[] fireware, updateListner listner);
 
+	/**
+	 * Update the firmware with a package parsed beforehand by NLFirmwarePackage.load, so a rollout validates
+	 * the package once before any device leaves the scanning mode, and every device starts transmitting at once
+	 * @param pkg Parsed firmware package
+	 * @param listner Monitor progress listener for updating firmware
+	 * @return Error types described in{class NLError}
+	 */
+	int updateFirmware(NLFirmwarePackage pkg, updateListner listner);
+
 	/**
 	 * Update the module header configuration. The configuration file of the device usually contains multiple pieces of configuration information.
 	 * After the configuration is sent to the device, it takes a long time to execute
+	 * Only the settings whose value differs from the device are sent. Besides the xml format,
+	 * the file may be in the binary format produced by NLConfigLoader.compile, which loads faster.
 	 *  @param f Batch configuration file handle in xml format
 	 * @return  >0:update completed;<0:update failed ; =0 the update was successful and the port switching was performed
 	 * */
 	int updateConfig(File f);
 
+	/**
+	 * Start a batch of UCS settings, the staged settings are packed into the fewest batch frames and
+	 * committed in one pass, instead of one setConfig round trip per setting
+	 * @return An empty transaction of this device
+	 */
+	NLConfigTransaction beginConfig();
+
 
 	/**
 	 * Get the length information (length, width) of the current image on the device
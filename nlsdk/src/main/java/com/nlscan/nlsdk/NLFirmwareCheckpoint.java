@@ -0,0 +1,148 @@
+package com.nlscan.nlsdk;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ *  Progress of an interrupted firmware transfer, per device and package.
+ *  The checkpoint is the section being sent. Sections before it were programmed completely and are not sent
+ *  again, the section being sent is sent again from its first frame: the bootloader has no command to continue
+ *  a section. Without a state directory the checkpoints only live as long as the NLDevice, with one they survive
+ *  a restart of the application, the file is replaced atomically so a crash while saving keeps the previous one.
+ *  A device in the bootloader does not report its serial number, so the serial number last seen on a port is
+ *  kept with the checkpoints to find the transfer of the device found there. That device may be another one
+ *  plugged into the port, so its sections are only skipped once it reported the serial number itself.
+ *  <pre>
+ *  key   : device serial (or port name) / package transfer id
+ *  value : section
+ *  key   : port.&lt;port name&gt;
+ *  value : serial number of the device last seen on the port
+ *  </pre>
+ */
+class NLFirmwareCheckpoint {
+    private static final String TAG  = "NLFirmwareCheckpoint";
+    private static final String FILE = "checkpoint.properties";
+    private static final String PORT = "port.";
+    private final Properties props = new Properties();
+    private final File file;
+
+    int section;
+
+    /**
+     * @param dir directory of the checkpoint file, null to keep the checkpoints in memory
+     */
+    NLFirmwareCheckpoint(File dir) {
+        this.file = dir == null ? null : new File(dir, FILE);
+        if (file != null && file.exists()) {
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    props.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot load checkpoints", e);
+            }
+        }
+    }
+
+    /**
+     * @param serial serial number reported by the device, null if it does not answer, e.g. in the bootloader
+     * @param port   name of the port the device is on
+     * @return Key of the checkpoints of the device: its serial number, the one last seen on the port, or the port name
+     */
+    synchronized String deviceKey(String serial, String port) {
+        if (port == null)
+            return serial;
+        if (serial == null) {
+            String known = props.getProperty(PORT + port);
+            return known != null ? known : port;
+        }
+        if (!serial.equals(props.setProperty(PORT + port, serial)))
+            store();
+        return serial;
+    }
+
+    /**
+     * Load the checkpoint of a transfer into section, 0 if there is none
+     * @param confirmed whether the device reported the serial number of the key itself, the sections of a
+     *                  device only known by its port are all sent again
+     * @return true if a transfer to the device was interrupted, the device may still be in its bootloader
+     */
+    synchronized boolean load(String device, String packageId, boolean confirmed) {
+        section = 0;
+        String value = props.getProperty(key(device, packageId));
+        if (value == null)
+            return false;
+        try {
+            // Checkpoints of earlier versions end with the frame
+            final int comma = value.indexOf(',');
+            final int saved = Integer.parseInt(comma < 0 ? value : value.substring(0, comma));
+            if (confirmed)
+                section = saved;
+        } catch (NumberFormatException e) {
+            section = 0;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the transfer stopped after some progress
+     */
+    boolean hasProgress() {
+        return section > 0;
+    }
+
+    /**
+     * Store the current section
+     */
+    synchronized void save(String device, String packageId) {
+        if (hasProgress())
+            props.setProperty(key(device, packageId), Integer.toString(section));
+        else
+            props.remove(key(device, packageId));
+        store();
+    }
+
+    /**
+     * Forget the transfer, it completed
+     */
+    synchronized void clear(String device, String packageId) {
+        section = 0;
+        if (props.remove(key(device, packageId)) != null)
+            store();
+    }
+
+    private static String key(String device, String packageId) {
+        return device + "/" + packageId;
+    }
+
+    private void store() {
+        if (file == null)
+            return;
+        try {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                props.store(out, "Firmware transfer checkpoints");
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Cannot rename " + tmp);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save checkpoints", e);
+        }
+    }
+}
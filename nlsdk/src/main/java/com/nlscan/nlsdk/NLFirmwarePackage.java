@@ -0,0 +1,407 @@
+package com.nlscan.nlsdk;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ *  Firmware package parsed, validated and indexed once, ready to be sent to any number of devices.
+ *  The package knows its format (SOC section table or MCU header), its sections with their offsets and frame
+ *  counts, and the CRC32 of every transfer frame, so updateFirmware starts transmitting without parsing.
+ *  The index can be cached on disk keyed by the SHA-256 of the package, a package seen before is then
+ *  only hashed instead of parsed and checksummed again. The index file ends with the CRC32 of its content, and
+ *  its section table and the first and last frame CRCs of every section are checked against the package, an
+ *  index that does not match is deleted and the package parsed again. Without a cache directory the
+ *  package is not hashed until getSha256 is called.
+ *  <pre>
+ *  SOC : 4 section entries at length-368, 76 bytes each: offset, length, type (kern/boot/appl/flah), ..., target
+ *  MCU : 0x89abcdef prefix, kern entry at 0x5c, optional flah entry at 0xcc
+ *  </pre>
+ */
+public class NLFirmwarePackage {
+    private static final String TAG = "NLFirmwarePackage";
+    static final int FRAME_SIZE = 512;
+    private static final int MCU_MD5_PREFIX = 0x89abcdef;
+    private static final int INDEX_MAGIC    = 0x4e4c4657;     // "NLFW"
+    private static final int INDEX_VERSION  = 2;
+    private static final String INDEX_SUFFIX = ".fwidx";
+
+    /**
+     * One section of the package, sent to the bootloader as one file
+     */
+    public static final class Section {
+        private final String type;
+        private final int offset;
+        private final int length;
+        private final int[] frameCrcs;
+
+        Section(String type, int offset, int length, int[] frameCrcs) {
+            this.type      = type;
+            this.offset    = offset;
+            this.length    = length;
+            this.frameCrcs = frameCrcs;
+        }
+
+        /**
+         * @return Section type as sent with !FileType, kern, boot, appl or flah:target
+         */
+        public String getType()  { return type; }
+        public int getOffset()   { return offset; }
+        public int getLength()   { return length; }
+        public int getFrames()   { return frameCrcs.length; }
+
+        /**
+         * @return CRC32 of the frame | 0x02 | payload | zero padding |
+         */
+        int getFrameCrc(int frame) {
+            return frameCrcs[frame];
+        }
+    }
+
+    private final byte[] data;
+    private final NLCommStream.DevClass firmwareType;
+    private final Section[] sections;
+    private volatile String sha256;
+    private volatile String transferId;
+
+    private NLFirmwarePackage(byte[] data, NLCommStream.DevClass firmwareType, Section[] sections, String sha256) {
+        this.data         = data;
+        this.firmwareType = firmwareType;
+        this.sections     = sections;
+        this.sha256       = sha256;
+    }
+
+    /**
+     * Parse and validate a package without caching the index
+     * @param data firmware package content, it must not be modified afterwards
+     * @return The package, null if the content is not a valid firmware package
+     */
+    public static NLFirmwarePackage parse(byte[] data) {
+        return load(data, null);
+    }
+
+    /**
+     * Parse and validate a package, or load its index from the cache directory if the same package was seen before
+     * @param data     firmware package content, it must not be modified afterwards
+     * @param cacheDir directory of the cached indexes, null to always parse
+     * @return The package, null if the content is not a valid firmware package
+     */
+    public static NLFirmwarePackage load(byte[] data, File cacheDir) {
+        if (data == null)
+            return null;
+        final String hash = cacheDir == null ? null : sha256(data);
+        if (hash != null) {
+            NLFirmwarePackage cached = readIndex(new File(cacheDir, hash + INDEX_SUFFIX), data, hash);
+            if (cached != null)
+                return cached;
+        }
+        NLFirmwarePackage pkg = parseSections(data, hash, true);
+        if (pkg != null && hash != null)
+            pkg.writeIndex(new File(cacheDir, hash + INDEX_SUFFIX));
+        return pkg;
+    }
+
+    public NLCommStream.DevClass getFirmwareType() {
+        return firmwareType;
+    }
+
+    public int getSectionCount() {
+        return sections.length;
+    }
+
+    public Section getSection(int index) {
+        return sections[index];
+    }
+
+    /**
+     * @return SHA-256 of the package content in hex, hashed on the first call if the package was not cached
+     */
+    public String getSha256() {
+        String hash = sha256;
+        if (hash == null)
+            sha256 = hash = sha256(data);
+        return hash;
+    }
+
+    /**
+     * @return Identity of the package for the transfer checkpoints: its length and the CRC32 of its section
+     *         table and frame CRCs, computed from the index without hashing the package
+     */
+    String getTransferId() {
+        String id = transferId;
+        if (id == null) {
+            CRC32 crc32 = new CRC32();
+            for (Section s : sections) {
+                crc32.update(s.type.getBytes());
+                updateInt(crc32, s.offset);
+                updateInt(crc32, s.length);
+                for (int crc : s.frameCrcs)
+                    updateInt(crc32, crc);
+            }
+            transferId = id = String.format("%08x-%08x", data.length, crc32.getValue());
+        }
+        return id;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    /* ============================= private =====================================================*/
+    /**
+     * @param withCrcs false to only read the section table, the sections then have no frame CRCs
+     */
+    private static NLFirmwarePackage parseSections(byte[] data, String hash, boolean withCrcs) {
+        final int len = data.length;
+        if (len < 600) return null;
+        Section[] found = new Section[4];
+        int total = 0;
+        NLCommStream.DevClass firmwareType;
+
+        if (MCU_MD5_PREFIX != readLE(data, 0)) {
+            firmwareType = NLCommStream.DevClass.DEV_SOC;
+            for (int i = 0, tpos = len - 368; i < 4; ++i, tpos += 76) {
+                final int offset  = readLE(data, tpos);
+                final int datalen = readLE(data, tpos + 4);
+                final int type    = readLE(data, tpos + 8);
+                final int target  = readLE(data, tpos + 40);
+                if (datalen == 0) break;
+                String str;
+                switch (type) {
+                    case 0x6E72656B: str = "kern"; break;
+                    case 0x746F6F62: str = "boot"; break;
+                    case 0x6c707061: str = "appl"; break;
+                    case 0x68616c66: str = String.format("flah:%s", target); break;
+                    default: return null;
+                }
+                if (!inRange(offset, datalen, len)) return null;
+                found[total++] = new Section(str, offset, datalen, withCrcs ? frameCrcs(data, offset, datalen) : null);
+            }
+        } else {
+            firmwareType = NLCommStream.DevClass.DEV_MCU;
+            int tpos = 0x5c;
+            if (data[tpos] != 1)
+                return null;
+            int offset  = readLE(data, tpos + 8);
+            int datalen = readLE(data, tpos + 4);
+            if (!inRange(offset, datalen, len)) return null;
+            found[total++] = new Section("kern", offset, datalen, withCrcs ? frameCrcs(data, offset, datalen) : null);
+
+            tpos += 0x70;
+            if (data[tpos] == 1) {
+                offset  = readLE(data, tpos + 12);
+                datalen = readLE(data, tpos + 8);
+                if (!inRange(offset, datalen, len)) return null;
+                found[total++] = new Section("flah", offset, datalen, withCrcs ? frameCrcs(data, offset, datalen) : null);
+            }
+        }
+        if (total == 0) return null;
+        Section[] sections = new Section[total];
+        System.arraycopy(found, 0, sections, 0, total);
+        return new NLFirmwarePackage(data, firmwareType, sections, hash);
+    }
+
+    private static boolean inRange(int offset, int datalen, int len) {
+        return offset >= 0 && datalen > 0 && offset <= len && datalen <= len && offset + datalen <= len;
+    }
+
+    /**
+     * Check an index against the package before it is used: the section table is read again from the package,
+     * and the first and last frame CRCs of every section are computed again
+     */
+    private boolean matchesData() {
+        NLFirmwarePackage header = parseSections(data, sha256, false);
+        if (header == null || header.firmwareType != firmwareType || header.sections.length != sections.length)
+            return false;
+        for (int i = 0; i < sections.length; ++i) {
+            final Section a = sections[i];
+            final Section b = header.sections[i];
+            if (!a.type.equals(b.type) || a.offset != b.offset || a.length != b.length)
+                return false;
+            final int last = a.frameCrcs.length - 1;
+            if (a.frameCrcs[0] != frameCrc(data, a.offset, a.length, 0)
+                    || a.frameCrcs[last] != frameCrc(data, a.offset, a.length, last))
+                return false;
+        }
+        return true;
+    }
+
+    private static int frameCrc(byte[] data, int pos, int datalen, int frame) {
+        final int start     = frame * FRAME_SIZE;
+        final int sendbytes = Math.min(datalen - start, FRAME_SIZE);
+        CRC32 crc32 = new CRC32();
+        crc32.update(0x02);
+        crc32.update(data, pos + start, sendbytes);
+        crc32.update(new byte[FRAME_SIZE - sendbytes]);
+        return (int) crc32.getValue();
+    }
+
+    private static int[] frameCrcs(byte[] data, int pos, int datalen) {
+        final byte[] head = {0x02};
+        final byte[] pad  = new byte[FRAME_SIZE];
+        final int frames  = (datalen + FRAME_SIZE - 1) / FRAME_SIZE;
+        final int[] crcs  = new int[frames];
+        CRC32 crc32 = new CRC32();
+        for (int i = 0, remain = datalen; i < frames; ++i) {
+            final int sendbytes = Math.min(remain, FRAME_SIZE);
+            crc32.reset();
+            crc32.update(head, 0, 1);
+            crc32.update(data, pos, sendbytes);
+            crc32.update(pad, 0, FRAME_SIZE - sendbytes);
+            crcs[i] = (int) crc32.getValue();
+            pos    += sendbytes;
+            remain -= sendbytes;
+        }
+        return crcs;
+    }
+
+    private static NLFirmwarePackage readIndex(File f, byte[] data, String hash) {
+        if (!f.isFile())
+            return null;
+        NLFirmwarePackage pkg = null;
+        try {
+            pkg = readIndex(readFile(f), data, hash);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid firmware index " + f, e);
+        }
+        if (pkg == null && !f.delete())
+            Log.e(TAG, "Cannot delete firmware index " + f);
+        return pkg;
+    }
+
+    /**
+     * @param index index file content, the body followed by the CRC32 of the body
+     * @return The package, null if the index is corrupt or does not belong to the data
+     */
+    static NLFirmwarePackage readIndex(byte[] index, byte[] data, String hash) throws IOException {
+        if (index.length < 4)
+            return null;
+        final int bodyLen = index.length - 4;
+        CRC32 crc32 = new CRC32();
+        crc32.update(index, 0, bodyLen);
+        if ((int) crc32.getValue() != readBE(index, bodyLen))
+            return null;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(index, 0, bodyLen));
+        if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION || in.readInt() != FRAME_SIZE)
+            return null;
+        if (in.readInt() != data.length)
+            return null;
+        NLCommStream.DevClass firmwareType = NLCommStream.DevClass.valueOf(in.readUTF());
+        Section[] sections = new Section[in.readInt()];
+        if (sections.length == 0 || sections.length > 4)
+            return null;
+        for (int i = 0; i < sections.length; ++i) {
+            String type = in.readUTF();
+            int offset  = in.readInt();
+            int length  = in.readInt();
+            if (!inRange(offset, length, data.length))
+                return null;
+            int[] crcs = new int[in.readInt()];
+            if (crcs.length != (length + FRAME_SIZE - 1) / FRAME_SIZE)
+                return null;
+            for (int j = 0; j < crcs.length; ++j)
+                crcs[j] = in.readInt();
+            sections[i] = new Section(type, offset, length, crcs);
+        }
+        if (in.available() != 0)
+            return null;
+        NLFirmwarePackage pkg = new NLFirmwarePackage(data, firmwareType, sections, hash);
+        return pkg.matchesData() ? pkg : null;
+    }
+
+    private void writeIndex(File f) {
+        try {
+            File dir = f.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create " + dir);
+            File tmp = new File(f.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(toIndex());
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f))
+                throw new IOException("Cannot rename " + tmp);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot save firmware index", e);
+        }
+    }
+
+    /**
+     * @return Index file content, the body followed by the CRC32 of the body
+     */
+    byte[] toIndex() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeInt(FRAME_SIZE);
+        out.writeInt(data.length);
+        out.writeUTF(firmwareType.name());
+        out.writeInt(sections.length);
+        for (Section s : sections) {
+            out.writeUTF(s.type);
+            out.writeInt(s.offset);
+            out.writeInt(s.length);
+            out.writeInt(s.frameCrcs.length);
+            for (int crc : s.frameCrcs)
+                out.writeInt(crc);
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes.toByteArray());
+        out.writeInt((int) crc32.getValue());
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        final long size = f.length();
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Index too large " + f);
+        byte[] buf = new byte[(int) size];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(buf);
+        } finally {
+            in.close();
+        }
+        return buf;
+    }
+
+    static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                sb.append(String.format("%02x", b & 0xFF));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static void updateInt(CRC32 crc32, int value) {
+        crc32.update(value >>> 24);
+        crc32.update(value >>> 16);
+        crc32.update(value >>> 8);
+        crc32.update(value);
+    }
+
+    private static int readBE(byte[] str, int pos) {
+        return ((str[pos] & 0xFF) << 24) | ((str[pos + 1] & 0xFF) << 16) | ((str[pos + 2] & 0xFF) << 8) | (str[pos + 3] & 0xFF);
+    }
+
+    private static int readLE(byte[] str, int pos) {
+        return (str[pos] & 0xFF) | ((str[pos + 1] & 0xFF) << 8) | ((str[pos + 2] & 0xFF) << 16) | ((str[pos + 3] & 0xFF) << 24);
+    }
+}
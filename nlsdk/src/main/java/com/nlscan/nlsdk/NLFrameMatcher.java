@@ -0,0 +1,79 @@
+package com.nlscan.nlsdk;
+
+import android.os.SystemClock;
+
+/**
+ *  Incremental end-of-frame detection of a command response.
+ *  The stream feeds every chunk as soon as it is received, the matcher tells when the frame is complete, so the
+ *  response is returned without waiting for the line to become idle.
+ *  <pre>
+ *  UCS   : ... ";" ETX (HEX: 3B 03)
+ *  PARAM : | 0x02 | 0x05 | length (BE, 2 bytes) | data | CRC32 (4 bytes) |
+ *  RAW   : complete when the expected number of bytes is received
+ *  </pre>
+ *  A matcher keeps the state of one response, reset() prepares it for the next one.
+ */
+class NLFrameMatcher {
+    enum Type {UCS, PARAM, RAW}
+
+    private final Type type;
+    private int count;            // bytes received
+    private int frameLength;      // PARAM: total length once the header is received
+    private byte prev;
+    private boolean complete;
+    private long firstByteTime;
+
+    NLFrameMatcher(Type type) {
+        this.type = type;
+    }
+
+    void reset() {
+        count         = 0;
+        frameLength   = 0;
+        prev          = 0;
+        complete      = false;
+        firstByteTime = 0;
+    }
+
+    /**
+     * @param buf  receive buffer
+     * @param from offset of the bytes received now
+     * @param to   end of the bytes received now
+     * @return true once the frame is complete
+     */
+    boolean feed(byte[] buf, int from, int to) {
+        if (to > from && count == 0)
+            firstByteTime = SystemClock.uptimeMillis();
+        if (type == Type.RAW) {           // the caller completes it on the expected length
+            count += to - from;
+            return false;
+        }
+        for (int i = from; i < to && !complete; ++i) {
+            final byte b = buf[i];
+            switch (type) {
+                case UCS:
+                    complete = count > 0 && prev == 0x3b && b == 3;
+                    break;
+                default:
+                    if (count == 3)
+                        frameLength = 8 + (((prev & 0xFF) << 8) | (b & 0xFF));
+                    complete = frameLength > 0 && count + 1 >= frameLength;
+                    break;
+            }
+            prev = b;
+            ++count;
+        }
+        return complete;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return Uptime of the first response byte, 0 if none was received
+     */
+    long getFirstByteTime() {
+        return firstByteTime;
+    }
+}
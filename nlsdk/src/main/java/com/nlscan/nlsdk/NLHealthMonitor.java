@@ -0,0 +1,236 @@
+package com.nlscan.nlsdk;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Background health monitoring of a device.
+ *  Heartbeats (DEVQRY*) are only sent in idle gaps: when no barcode was received for the idle gap and no command
+ *  holds the device, so they never delay a scan or a command. The time spent in heartbeats is kept below the duty
+ *  cycle, a slow device is probed less often. Besides the heartbeats the monitor counts the unanswered commands,
+ *  write failures and USB plug events of the device, and raises DEGRADING when the recent failure rate or the
+ *  heartbeat latency rises, before the device stops answering altogether (FAILED).
+ *  Stopped by default, stopped again when the device is closed.
+ */
+public class NLHealthMonitor {
+    public enum State {HEALTHY, DEGRADING, FAILED}
+
+    public interface Listener {
+        /**
+         * Called on the monitor thread when the state changes
+         */
+        void onStateChanged(NLHealthMonitor monitor, State state);
+    }
+
+    private static final int   WINDOW            = 32;      // recent outcomes used for the failure rate
+    private static final float DEGRADING_RATE    = 0.1f;
+    private static final float LATENCY_FACTOR    = 3f;      // heartbeat latency over its baseline
+    private static final int   FAILED_HEARTBEATS = 3;       // consecutive missed heartbeats
+
+    private final NLDevice device;
+    private final NLClock clock;
+    private ScheduledExecutorService executor;
+    private volatile Listener listener;
+    private volatile int   intervalMs = 5000;
+    private volatile int   idleGapMs  = 1000;
+    private volatile float dutyCycle  = 0.01f;
+
+    private volatile long lastActivity;
+    private long  lastBeat = Long.MIN_VALUE / 2;        // the first heartbeat is not held back
+    private long  lastBeatMs;
+    private float baselineMs = -1;
+    private int   missedBeats;
+    private final boolean[] outcomes = new boolean[WINDOW];
+    private int   next;
+    private int   size;
+    private int   failures;
+    private long  heartbeats;
+    private long  skippedBeats;
+    private long  commandFailures;
+    private long  writeFailures;
+    private long  plugEvents;
+    private State state = State.HEALTHY;
+
+    NLHealthMonitor(NLDevice device) {
+        this(device, NLClock.SYSTEM);
+    }
+
+    NLHealthMonitor(NLDevice device, NLClock clock) {
+        this.device = device;
+        this.clock  = clock;
+    }
+
+    /**
+     * @param ms minimum time between two heartbeats
+     */
+    public void setInterval(int ms) {
+        intervalMs = Math.max(100, ms);
+    }
+
+    /**
+     * @param ms time without received barcodes before a heartbeat may be sent
+     */
+    public void setIdleGap(int ms) {
+        idleGapMs = Math.max(0, ms);
+    }
+
+    /**
+     * @param ratio maximum share of the time the device is busy with heartbeats, e.g. 0.01
+     */
+    public void setDutyCycle(float ratio) {
+        if (ratio <= 0 || ratio > 1)
+            throw new IllegalArgumentException("ratio:" + ratio);
+        dutyCycle = ratio;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (executor != null)
+            return;
+        lastActivity = clock.millis();
+        executor = Executors.newSingleThreadScheduledExecutor(NLIoThreads.factory("NLHealthMonitor"));
+        final int tick = Math.max(50, Math.min(intervalMs, idleGapMs) / 2);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        ScheduledExecutorService e;
+        synchronized (this) {
+            e = executor;
+            executor = null;
+        }
+        NLIoThreads.shutdown(e);
+    }
+
+    public synchronized State getState()            { return state; }
+    public synchronized long getHeartbeats()        { return heartbeats; }
+    public synchronized long getSkippedHeartbeats() { return skippedBeats; }
+    public synchronized long getCommandFailures()   { return commandFailures; }
+    public synchronized long getWriteFailures()     { return writeFailures; }
+    public synchronized long getPlugEvents()        { return plugEvents; }
+
+    /**
+     * @return Latency of the last heartbeat in milliseconds, -1 if none was answered
+     */
+    public synchronized long getLastHeartbeatMillis() {
+        return missedBeats > 0 ? -1 : lastBeatMs;
+    }
+
+    /**
+     * @return Share of the recent commands and heartbeats that failed
+     */
+    public synchronized float getFailureRate() {
+        return size == 0 ? 0 : (float) failures / size;
+    }
+
+    /* ============================= package =====================================================*/
+    /**
+     * A barcode was received, the device is busy scanning
+     */
+    void onReceive() {
+        lastActivity = clock.millis();
+    }
+
+    void recordResponse(boolean ok) {
+        State changed;
+        synchronized (this) {
+            if (!ok) ++commandFailures;
+            addOutcome(ok);
+            changed = evaluate();
+        }
+        notifyState(changed);
+    }
+
+    synchronized void recordWrite(boolean ok) {
+        if (!ok) ++writeFailures;
+    }
+
+    void recordPlug(int event) {
+        synchronized (this) {
+            ++plugEvents;
+        }
+        // An unplugged device gets its next heartbeat at once
+        lastActivity = clock.millis() - idleGapMs;
+    }
+
+    /**
+     * Send a heartbeat if the device is idle and the interval elapsed, called by the monitor thread
+     */
+    void tick() {
+        final long now = clock.millis();
+        long minInterval;
+        synchronized (this) {
+            minInterval = Math.max(intervalMs, (long) (lastBeatMs / dutyCycle));
+            if (now - lastBeat < minInterval)
+                return;
+        }
+        if (!device.isOpen() || now - lastActivity < idleGapMs)
+            return;
+
+        final long start = clock.millis();
+        final int ret = device.heartbeat();
+        final long elapsed = clock.millis() - start;
+        State changed;
+        synchronized (this) {
+            if (ret < 0) {
+                ++skippedBeats;      // a command holds the device, it proves the link anyway
+                return;
+            }
+            ++heartbeats;
+            lastBeat   = clock.millis();
+            lastBeatMs = elapsed;
+            if (ret > 0) {
+                missedBeats = 0;
+                baselineMs  = baselineMs < 0 ? elapsed : baselineMs * 0.9f + elapsed * 0.1f;
+            } else {
+                ++missedBeats;
+            }
+            // The response itself was already recorded by the command
+            changed = evaluate();
+        }
+        notifyState(changed);
+    }
+
+    /* ============================= private =====================================================*/
+    private void addOutcome(boolean ok) {
+        if (size == WINDOW && !outcomes[next])
+            --failures;
+        outcomes[next] = ok;
+        if (!ok) ++failures;
+        next = (next + 1) % WINDOW;
+        if (size < WINDOW) ++size;
+    }
+
+    /**
+     * @return The new state, null if unchanged
+     */
+    private State evaluate() {
+        State s;
+        if (missedBeats >= FAILED_HEARTBEATS)
+            s = State.FAILED;
+        else if (missedBeats > 0 || (size > 0 && (float) failures / size > DEGRADING_RATE)
+                || (baselineMs > 0 && lastBeatMs > baselineMs * LATENCY_FACTOR))
+            s = State.DEGRADING;
+        else
+            s = State.HEALTHY;
+        if (s == state)
+            return null;
+        state = s;
+        return s;
+    }
+
+    private void notifyState(State changed) {
+        Listener l = listener;
+        if (changed != null && l != null)
+            l.onStateChanged(this, changed);
+    }
+}
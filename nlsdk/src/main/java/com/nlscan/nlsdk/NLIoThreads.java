@@ -0,0 +1,95 @@
+package com.nlscan.nlsdk;
+
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Creation and shutdown of the threads owned by the SDK.
+ *  Every thread is named after its role and device, so leaked threads can be identified in a thread dump,
+ *  and every owner stops and joins its threads when the device is closed, so the number of threads stays
+ *  constant across open/close cycles.
+ *  The threads are platform daemon threads unless the application installs its own factory, e.g. a JVM host
+ *  can pass Thread.ofVirtual().factory(). The waits of the SDK are native calls (poll, read, USB requestWait)
+ *  that pin the carrier of a virtual thread while they block, so virtual threads save the stacks and the
+ *  creation of the threads, not the OS threads of the devices blocked at the same time. The blocking read mode
+ *  of the UART streams removes the 10ms wake-ups of idle devices. On a JVM host the android.* classes the SDK
+ *  uses must be provided by the host, the serial waits need libserial_port_termios.
+ */
+public final class NLIoThreads {
+    private static final String TAG = "NLIoThreads";
+    static final long JOIN_TIMEOUT = 1000;      // ms
+    private static volatile ThreadFactory threadFactory;
+
+    private NLIoThreads() {
+    }
+
+    /**
+     * Install the factory creating the reader, assembling and delivery threads of the devices opened afterwards
+     * @param factory thread factory, null to use platform daemon threads
+     */
+    public static void setThreadFactory(ThreadFactory factory) {
+        threadFactory = factory;
+    }
+
+    /**
+     * @param name thread name, a sequence number is appended when the factory creates several threads
+     * @return Factory of named daemon threads
+     */
+    static ThreadFactory factory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                final int n = count.incrementAndGet();
+                final String threadName = n == 1 ? name : name + "-" + n;
+                final ThreadFactory external = threadFactory;
+                if (external != null) {
+                    Thread t = external.newThread(r);
+                    t.setName(threadName);
+                    return t;
+                }
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Wait for a thread to terminate, it must already have been told to stop
+     * @return true if the thread terminated within the timeout
+     */
+    static boolean join(Thread t) {
+        if (t == null || t == Thread.currentThread())
+            return true;
+        try {
+            t.join(JOIN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (t.isAlive()) {
+            Log.e(TAG, t.getName() + " did not stop");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Shut an executor down and wait for its running task to finish
+     */
+    static void shutdown(ExecutorService executor) {
+        if (executor == null)
+            return;
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(JOIN_TIMEOUT, TimeUnit.MILLISECONDS))
+                Log.e(TAG, "executor did not stop");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.nlscan.nlsdk;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  Reassembly of the barcodes of a USB device from its received packets, and their delivery to the listener.
+ *  The I/O thread only queues the packets, a delivery thread of the device joins the packets of a barcode and
+ *  calls the listener once no packet arrived for the idle gap. The I/O thread thus keeps reading while a listener
+ *  runs, so a listener can send commands to the device and read their responses.
+ *  The barcode buffer grows with the barcode, so large PDF417 or DataMatrix symbols are neither truncated
+ *  nor split by the collection time. Data that never pauses for the idle time is delivered in parts of at most
+ *  CODE_LENGTH_MAX bytes or CODE_NANOS_MAX of collection, so it cannot grow the buffer without bound. The bound
+ *  includes the segments already passed to a segment listener, so a receiver may keep a whole segmented barcode.
+ */
+class NLPacketAssembler {
+    private static final int CODE_BUFFER_SIZE = 4096;        // initial barcode buffer, grows with the barcodes
+    private static final int CODE_BUFFER_KEEP = 64 * 1024;   // larger buffers are released after their barcode
+    static final int  CODE_LENGTH_MAX = 1024 * 1024;         // a barcode reaching this size is delivered at once
+    static final long CODE_NANOS_MAX  = 10000000000L;        // nor is a barcode collected for longer than this
+
+    /**
+     * Packet format of the stream
+     */
+    interface Decoder {
+        /**
+         * Copy the barcode payload of a received packet
+         * @param packet received packet, its position is the received length
+         * @return Payload length, -1 if the packet is invalid
+         */
+        int copyPayload(ByteBuffer packet, byte[] dst, int pos);
+
+        /**
+         * Take back a packet buffer once its payload was copied
+         */
+        void recycle(ByteBuffer packet);
+    }
+
+    private final Decoder decoder;
+    private final BlockingQueue<ByteBuffer> packetQ = new LinkedBlockingQueue<>();
+    private final AtomicBoolean assembling = new AtomicBoolean();
+    private volatile NLDeviceStream.NLUsbListener listener;
+    private volatile long delayNanos;
+    private volatile int segmentSize;
+    private volatile NLDeviceStream.NLSegmentListener segmentListener;
+    private volatile NLScanTracer tracer;
+    private volatile long lastPacketNanos;
+    private volatile long firstRecvNanos;
+    private volatile long lastRecvNanos;
+    private volatile boolean running;
+    private Thread thread;
+
+    // Delivery thread only
+    private byte[] codeBuffer = new byte[CODE_BUFFER_SIZE];
+    private int codeLength;
+    private boolean segmented;                               // segments of the current barcode were delivered
+    private int segmentedLength;                             // bytes of the current barcode in those segments
+    private long codeStartNanos;                             // first packet of the barcode being collected
+
+    /**
+     * @param decoder packet format
+     */
+    NLPacketAssembler(Decoder decoder) {
+        this.decoder = decoder;
+    }
+
+    /**
+     * @param listener receiver of the barcodes
+     * @param delayMs  idle time ending a barcode
+     */
+    void setListener(NLDeviceStream.NLUsbListener listener, int delayMs) {
+        delayNanos    = delayMs * 1000000L;
+        this.listener = listener;
+    }
+
+    /**
+     * Stream barcodes longer than the segment size to the segment listener instead of the receive listener
+     * @param size     segment size in bytes
+     * @param listener segment listener, null to deliver every barcode whole
+     */
+    void setSegmentListener(int size, NLDeviceStream.NLSegmentListener listener) {
+        if (listener != null && size <= 0)
+            throw new IllegalArgumentException("size:" + size);
+        segmentSize     = size;
+        segmentListener = listener;
+    }
+
+    /**
+     * @param tracer latency tracer stamping the received packets, null to disable
+     */
+    void setTracer(NLScanTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Start the delivery thread
+     * @param name thread name
+     */
+    synchronized void start(String name) {
+        if (thread != null)
+            return;
+        packetQ.clear();
+        running = true;
+        thread = NLIoThreads.factory(name).newThread(new Runnable() {
+            @Override
+            public void run() {
+                deliverLoop();
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Stop the delivery thread, the barcode being collected is dropped
+     */
+    void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t == null)
+            return;
+        t.interrupt();
+        NLIoThreads.join(t);
+        ByteBuffer packet;
+        while ((packet = packetQ.poll()) != null)
+            decoder.recycle(packet);
+    }
+
+    /**
+     * Queue a received packet, called on the I/O thread
+     */
+    void offer(ByteBuffer packet) {
+        final long now = System.nanoTime();
+        NLScanTracer t = tracer;
+        if (t != null && t.isEnabled()) {
+            if (assembling.compareAndSet(false, true))
+                firstRecvNanos = now;
+            lastRecvNanos = now;
+        }
+        lastPacketNanos = now;
+        packetQ.offer(packet);
+    }
+
+    /* ============================= private =====================================================*/
+    private void deliverLoop() {
+        codeLength = 0;
+        segmented  = false;
+        segmentedLength = 0;
+        while (running) {
+            ByteBuffer packet;
+            try {
+                if (codeLength == 0 && !segmented) {
+                    packet = packetQ.take();
+                } else {
+                    final long wait = delayNanos - (System.nanoTime() - lastPacketNanos);
+                    packet = wait > 0 ? packetQ.poll(wait, TimeUnit.NANOSECONDS) : packetQ.poll();
+                }
+            } catch (InterruptedException e) {
+                // stop() interrupts the thread, a listener whose command was cancelled may leave the flag set too
+                continue;
+            }
+            if (packet != null) {
+                append(packet);
+            } else {
+                assembling.set(false);
+                deliverBarcode();
+            }
+        }
+    }
+
+    /**
+     * Append a packet to the barcode buffer, passing full segments on when streaming
+     */
+    private void append(ByteBuffer packet) {
+        if ((codeLength > 0 || segmented) && segmentedLength + codeLength + packet.capacity() > CODE_LENGTH_MAX)
+            deliverBarcode();
+        final int need = codeLength + packet.capacity();
+        if (need > codeBuffer.length)
+            codeBuffer = Arrays.copyOf(codeBuffer, Math.max(need, Math.min(codeBuffer.length * 2, CODE_LENGTH_MAX)));
+        if (codeLength == 0 && !segmented)
+            codeStartNanos = System.nanoTime();
+        final int len = decoder.copyPayload(packet, codeBuffer, codeLength);
+        decoder.recycle(packet);
+        if (len > 0)
+            codeLength += len;
+        if ((codeLength > 0 || segmented) && System.nanoTime() - codeStartNanos >= CODE_NANOS_MAX)
+            deliverBarcode();
+        NLDeviceStream.NLSegmentListener l = segmentListener;
+        final int size = segmentSize;
+        if (l == null)
+            return;
+        int pos = 0;
+        while (codeLength - pos >= size) {
+            l.onSegment(codeBuffer, pos, size, false);
+            pos += size;
+        }
+        if (pos > 0) {
+            segmented  = true;
+            segmentedLength += pos;
+            codeLength -= pos;
+            System.arraycopy(codeBuffer, pos, codeBuffer, 0, codeLength);
+        }
+    }
+
+    private void deliverBarcode() {
+        NLDeviceStream.NLSegmentListener s = segmentListener;
+        NLDeviceStream.NLUsbListener l = listener;
+        if (segmented && s != null) {
+            s.onSegment(codeBuffer, 0, codeLength, true);
+        } else if (codeLength > 0 && l != null) {
+            NLScanTracer t = tracer;
+            if (t != null && t.isEnabled())
+                t.assembled(firstRecvNanos, lastRecvNanos, System.nanoTime());
+            l.actionUsbRecv(codeBuffer, codeLength);
+        }
+        codeLength = 0;
+        segmented  = false;
+        segmentedLength = 0;
+        if (codeBuffer.length > CODE_BUFFER_KEEP)
+            codeBuffer = new byte[CODE_BUFFER_SIZE];
+    }
+}
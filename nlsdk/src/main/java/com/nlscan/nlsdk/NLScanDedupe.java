@@ -0,0 +1,135 @@
+package com.nlscan.nlsdk;
+
+/**
+ *  Optional duplicate suppression stage of the receive pipeline.
+ *  A barcode identical to one received within the time window is dropped before it reaches the scan stream
+ *  and the listener. The cache is a fixed ring of (hash, time) entries in arrival order, so entries are evicted
+ *  when they are older than the window or when the ring is full, and the check allocates nothing.
+ *  Each NLDevice owns one instance, so the window is configured per device. Disabled by default.
+ */
+public class NLScanDedupe {
+    public static final int DEFAULT_CAPACITY = 64;
+    private final NLClock clock;
+    private long[] hashes;
+    private long[] times;
+    private int head  = 0;     // index of the oldest entry
+    private int count = 0;
+    private int windowMs = 0;
+    private long suppressedCount = 0;
+    private long passedCount     = 0;
+
+    NLScanDedupe() {
+        this(NLClock.SYSTEM);
+    }
+
+    NLScanDedupe(NLClock clock) {
+        this.clock = clock;
+        setCapacity(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param milliseconds duplicate window, 0 disables the suppression
+     */
+    public synchronized void setWindow(int milliseconds) {
+        windowMs = Math.max(0, milliseconds);
+        clear();
+    }
+
+    /**
+     * @return Duplicate window in milliseconds, 0 means disabled
+     */
+    public synchronized int getWindow() {
+        return windowMs;
+    }
+
+    /**
+     * @param capacity maximum number of different barcodes remembered within the window
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity:" + capacity);
+        hashes = new long[capacity];
+        times  = new long[capacity];
+        clear();
+    }
+
+    /**
+     * @return Number of barcodes dropped as duplicates
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    /**
+     * @return Number of barcodes that passed the check while enabled
+     */
+    public synchronized long getPassedCount() {
+        return passedCount;
+    }
+
+    /**
+     * Forget all remembered barcodes, the counters are kept
+     */
+    public synchronized void clear() {
+        head  = 0;
+        count = 0;
+    }
+
+    public synchronized void resetCounters() {
+        suppressedCount = 0;
+        passedCount     = 0;
+    }
+
+    /* ============================= package =====================================================*/
+    /**
+     * @param data receive buffer
+     * @param len  barcode length
+     * @return true if the barcode was already received within the window and must be dropped
+     */
+    synchronized boolean isDuplicate(byte[] data, int len) {
+        if (windowMs == 0)
+            return false;
+        final long now = clock.millis();
+        final int capacity = hashes.length;
+
+        // Evict by age, the ring is ordered by arrival time
+        while (count > 0 && now - times[head] >= windowMs) {
+            head = (head + 1) % capacity;
+            --count;
+        }
+
+        final long hash = hash(data, len);
+        for (int i = 0, idx = head; i < count; ++i, idx = (idx + 1) % capacity) {
+            if (hashes[idx] == hash) {
+                ++suppressedCount;
+                return true;
+            }
+        }
+
+        // Evict by size, the oldest entry is overwritten
+        if (count == capacity) {
+            head = (head + 1) % capacity;
+            --count;
+        }
+        final int tail = (head + count) % capacity;
+        hashes[tail] = hash;
+        times[tail]  = now;
+        ++count;
+        ++passedCount;
+        return false;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the barcode content, the length is folded in to separate prefixes
+     */
+    static long hash(byte[] data, int len) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < len; ++i) {
+            h ^= data[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= len;
+        h *= 0x100000001b3L;
+        return h;
+    }
+}
@@ -0,0 +1,101 @@
+package com.nlscan.nlsdk;
+
+import java.nio.charset.Charset;
+
+/**
+ * One barcode delivered by the scan stream of {@link NLScanPublisher}.
+ * The event is immutable and holds its own copy of the received bytes, so it is not affected when the SDK
+ * overwrites its internal receive buffer on the next delivery. A subscriber may keep it or pass it to another
+ * thread after onNext returns, and all subscribers of a device receive the same event.
+ */
+public final class NLScanEvent {
+    private final byte[] data;
+    private final int length;
+    private final long timestampNanos;
+    private final long timestampMillis;
+    private final NLDeviceStream device;
+
+    /**
+     * @param src receive buffer, copied
+     * @param len barcode length
+     */
+    NLScanEvent(NLDeviceStream device, byte[] src, int len, long nanos, long millis) {
+        this.data            = new byte[len];
+        System.arraycopy(src, 0, data, 0, len);
+        this.length          = len;
+        this.device          = device;
+        this.timestampNanos  = nanos;
+        this.timestampMillis = millis;
+    }
+
+    /**
+     * @return The device that decoded the barcode
+     */
+    public NLDeviceStream getDevice() {
+        return device;
+    }
+
+    /**
+     * @return Barcode length in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @param index byte index, 0 <= index < getLength()
+     * @return The byte at the specified position
+     */
+    public byte byteAt(int index) {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index:" + index + " length:" + length);
+        return data[index];
+    }
+
+    /**
+     * Copy the barcode content to the specified buffer
+     * @param dst destination buffer
+     * @param pos destination offset
+     * @return Number of bytes copied
+     */
+    public int copyTo(byte[] dst, int pos) {
+        final int len = Math.min(length, dst.length - pos);
+        System.arraycopy(data, 0, dst, pos, len);
+        return len;
+    }
+
+    /**
+     * @return A new array containing the barcode content
+     */
+    public byte[] getData() {
+        byte[] ret = new byte[length];
+        System.arraycopy(data, 0, ret, 0, length);
+        return ret;
+    }
+
+    /**
+     * @return System.nanoTime() when the SDK received the barcode, used to measure intervals
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return System.currentTimeMillis() when the SDK received the barcode
+     */
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    /**
+     * Decode the barcode content with the specified character set
+     */
+    public String toString(Charset charset) {
+        return new String(data, 0, length, charset);
+    }
+
+    @Override
+    public String toString() {
+        return new String(data, 0, length);
+    }
+}
@@ -0,0 +1,578 @@
+package com.nlscan.nlsdk;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ *  Crash-safe journal of received barcodes, enabled with NLDevice.setScanJournal.
+ *  Every barcode is appended with its device name and receive time to a memory-mapped, append-only segment file,
+ *  the append is a memory copy so the receive path is not slowed down by disk I/O.
+ *  A background thread flushes the mapped pages to disk every sync interval, outside the lock of append, and
+ *  maps the next segment ahead of time, so a rotation when a segment is full only renames that file.
+ *  Consumers read with a Cursor from the last acknowledged offset and call acknowledge when
+ *  the records have been handled, segments entirely before that offset are deleted. A record whose checksum
+ *  does not match is logged and skipped.
+ *  <pre>
+ *  segment file  : name is the journal offset of its first record, 20 decimal digits + ".seg"
+ *  record        : | body length (4) | CRC32 of body (4) | body |
+ *  body          : | time millis (8) | device name length (2) | device name | barcode |
+ *  </pre>
+ *  A body length of 0 marks the end of the written part of a segment.
+ *  One journal may be shared by several devices.
+ */
+public class NLScanJournal {
+    public static final int DEFAULT_SEGMENT_SIZE  = 4 * 1024 * 1024;
+    public static final int DEFAULT_SYNC_INTERVAL = 200;     // ms
+    private static final String TAG          = "NLScanJournal";
+    private static final String SEGMENT_EXT  = ".seg";
+    private static final String ACK_FILE     = "ack";
+    private static final String SPARE_FILE   = "next.spare";
+    private static final int    RECORD_HEAD  = 8;
+    private static final int    BODY_HEAD    = 10;
+    private static final Charset CHARSET     = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final int segmentSize;
+    private final CRC32 crc32 = new CRC32();
+    private final byte[] bodyHead = new byte[BODY_HEAD];
+    private String lastName;
+    private byte[] lastNameBytes;
+    private final ScheduledExecutorService syncExecutor;
+    private final Object flushLock = new Object();     // serializes the forces, never held by append
+    private final Object ackLock   = new Object();     // serializes the writes of the acknowledged offset
+    private RandomAccessFile segmentFile;
+    private MappedByteBuffer segment;
+    private volatile long segmentBase;
+    private boolean dirty = false;
+    private MappedByteBuffer retired;                  // segment rotated out and not forced yet
+    private RandomAccessFile spareFile;                // next segment, mapped ahead by the sync thread
+    private MappedByteBuffer spare;
+    private long ackOffset;
+    private boolean closed = false;
+
+    /**
+     * One record read from the journal
+     */
+    public static class Record {
+        long   offset;
+        long   nextOffset;
+        long   timeMillis;
+        String deviceName;
+        byte[] data;
+
+        /** @return Journal offset of this record */
+        public long getOffset()     { return offset; }
+        /** @return Offset to acknowledge once this record has been handled */
+        public long getNextOffset() { return nextOffset; }
+        /** @return System.currentTimeMillis() when the barcode was received */
+        public long getTimeMillis() { return timeMillis; }
+        /** @return Name of the device that decoded the barcode */
+        public String getDeviceName() { return deviceName; }
+        /** @return Barcode content */
+        public byte[] getData()     { return data; }
+    }
+
+    /**
+     * Sequential reader of the journal, not thread safe. Reaching the end is not final,
+     * next() returns the records appended afterwards on a later call. The cursor keeps the segment it reads
+     * open, close it when done.
+     */
+    public class Cursor implements Closeable {
+        private long offset;
+        private long base = -1;                  // segment open in the cursor
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private final ByteBuffer head = ByteBuffer.allocate(RECORD_HEAD);
+        private ByteBuffer body = ByteBuffer.allocate(256);
+
+        private Cursor(long offset) {
+            this.offset = offset;
+        }
+
+        /** @return Offset of the next record to read */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The next record, or null when there is nothing more to read now
+         */
+        public Record next() throws IOException {
+            boolean retried = false;
+            for (;;) {
+                if (!openSegment())
+                    return null;
+                final long pos  = offset - base;
+                final long size = channel.size();
+                head.clear();
+                if (pos + RECORD_HEAD <= size)
+                    channel.read(head, pos);
+                final int bodyLen = head.position() < RECORD_HEAD ? 0 : head.getInt(0);
+                // A length that does not fit in the segment is corrupted, it is not trusted for allocating
+                final boolean corrupted = bodyLen != 0
+                        && (bodyLen < BODY_HEAD || pos + RECORD_HEAD + bodyLen > size - 4);
+                if (corrupted)
+                    Log.e(TAG, "Corrupted record length " + bodyLen + " at " + offset);
+                if (bodyLen == 0 || corrupted) {
+                    // End of this segment, continue with the next one if it exists. The segment being
+                    // appended to has none, the directory is not listed for it.
+                    final long next = base == segmentBase ? -1 : nextSegment(base);
+                    if (next < 0)
+                        return null;
+                    offset = next;
+                    open(next);
+                    continue;
+                }
+                final int crc = head.getInt(4);
+                if (body.capacity() < bodyLen)
+                    body = ByteBuffer.allocate(Math.max(bodyLen, body.capacity() * 2));
+                body.clear();
+                body.limit(bodyLen);
+                channel.read(body, pos + RECORD_HEAD);
+                if (body.position() < bodyLen || checksum(body.array(), bodyLen) != crc) {
+                    if (!retried) {
+                        // An append still in progress completes under the journal lock, the record is read again
+                        retried = true;
+                        getEndOffset();
+                        continue;
+                    }
+                    Log.e(TAG, "Corrupted record at " + offset + ", skipped");
+                    offset += RECORD_HEAD + bodyLen;
+                    retried = false;
+                    continue;
+                }
+                body.flip();
+                Record r = new Record();
+                r.offset     = offset;
+                r.nextOffset = offset + RECORD_HEAD + bodyLen;
+                r.timeMillis = body.getLong();
+                final int nameLen = body.getShort() & 0xFFFF;
+                r.deviceName = new String(body.array(), BODY_HEAD, nameLen, CHARSET);
+                r.data       = Arrays.copyOfRange(body.array(), BODY_HEAD + nameLen, bodyLen);
+                offset = r.nextOffset;
+                return r;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            base = -1;
+            channel = null;
+            if (file != null) {
+                file.close();
+                file = null;
+            }
+        }
+
+        /**
+         * Open the segment containing the offset unless a segment is open, the cursor then moves from one
+         * segment to the next at their end markers
+         * @return false if there is no segment
+         */
+        private boolean openSegment() throws IOException {
+            if (channel != null)
+                return true;
+            final long found = findSegment(offset);
+            if (found < 0)
+                return false;
+            if (found > offset)
+                offset = found;
+            open(found);
+            return true;
+        }
+
+        private void open(long segment) throws IOException {
+            close();
+            file    = new RandomAccessFile(segmentPath(segment), "r");
+            channel = file.getChannel();
+            base    = segment;
+        }
+    }
+
+    public NLScanJournal(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param dir          journal directory, created if it does not exist
+     * @param segmentSize  size of each segment file in bytes
+     * @param syncInterval interval of flushing appended records to disk in milliseconds
+     */
+    public NLScanJournal(File dir, int segmentSize, int syncInterval) throws IOException {
+        if (segmentSize < 1024)
+            throw new IllegalArgumentException("segmentSize:" + segmentSize);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create journal directory " + dir);
+        this.dir         = dir;
+        this.segmentSize = segmentSize;
+        ackOffset = readAck();
+
+        long[] bases = listSegments();
+        if (bases.length == 0)
+            mapSegment(Math.max(0, ackOffset));
+        else
+            recoverSegment(bases[bases.length - 1]);
+
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(NLIoThreads.factory("NLScanJournal-sync"));
+        syncExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        scheduleRotated();
+    }
+
+    /**
+     * Append a barcode, called on the receive path
+     * @param deviceName name of the device that decoded the barcode
+     * @param data       receive buffer
+     * @param len        barcode length
+     * @param timeMillis receive time
+     * @return Journal offset of the record, -1 if the journal is closed or the record cannot be written
+     */
+    public synchronized long append(String deviceName, byte[] data, int len, long timeMillis) {
+        if (closed)
+            return -1;
+        byte[] name = nameBytes(deviceName);
+        final int nameLen = Math.min(name.length, 0xFFFF);
+        final int bodyLen = BODY_HEAD + nameLen + len;
+        // keep room for the end marker
+        if (RECORD_HEAD + bodyLen + 4 > segmentSize)
+            return -1;
+        try {
+            if (segment.remaining() < RECORD_HEAD + bodyLen + 4)
+                rotate();
+        } catch (IOException e) {
+            Log.e(TAG, "Segment rotation failed", e);
+            return -1;
+        }
+
+        ByteBuffer.wrap(bodyHead).putLong(0, timeMillis).putShort(8, (short)nameLen);
+        crc32.reset();
+        crc32.update(bodyHead, 0, BODY_HEAD);
+        crc32.update(name, 0, nameLen);
+        crc32.update(data, 0, len);
+
+        final int start = segment.position();
+        segment.position(start + RECORD_HEAD);
+        segment.put(bodyHead);
+        segment.put(name, 0, nameLen);
+        segment.put(data, 0, len);
+        segment.putInt(start + 4, (int)crc32.getValue());
+        // The length is written last, a record is visible only when it is complete
+        segment.putInt(start, bodyLen);
+        dirty = true;
+        return segmentBase + start;
+    }
+
+    /**
+     * @return Offset of the next record to be appended
+     */
+    public synchronized long getEndOffset() {
+        return segmentBase + segment.position();
+    }
+
+    /**
+     * @return The offset last passed to acknowledge
+     */
+    public synchronized long getAckOffset() {
+        return ackOffset;
+    }
+
+    /**
+     * Record that all records before the offset have been handled, they are not replayed by openCursor()
+     * @param offset Record.getNextOffset() of the last handled record
+     */
+    public void acknowledge(long offset) throws IOException {
+        synchronized (ackLock) {
+            final long ack;
+            synchronized (this) {
+                if (offset <= ackOffset)
+                    return;
+                ack = Math.min(offset, getEndOffset());
+            }
+            // Written outside the lock of append, the receive path does not wait for the disk
+            RandomAccessFile raf = new RandomAccessFile(new File(dir, ACK_FILE), "rw");
+            try {
+                raf.seek(0);
+                raf.writeLong(ack);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+            synchronized (this) {
+                ackOffset = ack;
+            }
+            // Delete the segments whose records are all acknowledged
+            final long current = segmentBase;
+            long[] bases = listSegments();
+            for (int i = 0; i + 1 < bases.length; ++i) {
+                if (bases[i + 1] <= ack && bases[i] != current)
+                    //noinspection ResultOfMethodCallIgnored
+                    segmentPath(bases[i]).delete();
+            }
+        }
+    }
+
+    /**
+     * @return A cursor positioned at the last acknowledged offset
+     */
+    public Cursor openCursor() {
+        return new Cursor(getAckOffset());
+    }
+
+    /**
+     * @param offset journal offset of a record
+     * @return A cursor positioned at the specified offset
+     */
+    public Cursor openCursor(long offset) {
+        return new Cursor(offset);
+    }
+
+    /**
+     * Flush the appended records to disk. The segments to force are taken under the lock of append, the
+     * force itself runs outside it, so an append never waits for the disk.
+     */
+    public void sync() {
+        MappedByteBuffer current;
+        MappedByteBuffer old;
+        synchronized (this) {
+            if (closed)
+                return;
+            current = dirty ? segment : null;
+            old     = retired;
+            dirty   = false;
+            retired = null;
+        }
+        force(old, current);
+    }
+
+    public void close() {
+        NLIoThreads.shutdown(syncExecutor);
+        MappedByteBuffer current;
+        MappedByteBuffer old;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed  = true;
+            current = segment;
+            old     = retired;
+            retired = null;
+            try {
+                segmentFile.close();
+                if (spareFile != null) {
+                    spareFile.close();
+                    spareFile = null;
+                    spare     = null;
+                }
+                // Also a spare whose mapping was interrupted by the shutdown
+                //noinspection ResultOfMethodCallIgnored
+                new File(dir, SPARE_FILE).delete();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        // A mapping stays valid after its file is closed
+        force(old, current);
+    }
+
+    /* ============================= private =====================================================*/
+    private byte[] nameBytes(String deviceName) {
+        if (deviceName == null)
+            deviceName = "";
+        if (!deviceName.equals(lastName)) {
+            lastName      = deviceName;
+            lastNameBytes = deviceName.getBytes(CHARSET);
+        }
+        return lastNameBytes;
+    }
+
+    private static int checksum(byte[] body, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, len);
+        return (int)crc.getValue();
+    }
+
+    private void force(MappedByteBuffer old, MappedByteBuffer current) {
+        synchronized (flushLock) {
+            if (old != null)
+                old.force();
+            if (current != null)
+                current.force();
+        }
+    }
+
+    /**
+     * Continue on the next segment, the one mapped ahead by the sync thread if it is ready.
+     * The full segment is forced by the sync thread.
+     */
+    private void rotate() throws IOException {
+        final long next = segmentBase + segment.position();
+        segment.putInt(segment.position(), 0);
+        if (retired != null)
+            force(retired, null);           // two rotations within one sync interval, rare
+        retired = segment;
+        RandomAccessFile full = segmentFile;
+        if (spare != null && new File(dir, SPARE_FILE).renameTo(segmentPath(next))) {
+            segmentFile = spareFile;
+            segment     = spare;
+            segmentBase = next;
+            dirty       = false;
+            spareFile   = null;
+            spare       = null;
+        } else {
+            mapSegment(next);
+        }
+        full.close();
+        scheduleRotated();
+    }
+
+    /**
+     * Force the rotated segment and map the next one on the sync thread
+     */
+    private void scheduleRotated() {
+        try {
+            syncExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sync();
+                    prepareSpare();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing
+        }
+    }
+
+    /**
+     * Map the next segment under a temporary name, rotate renames it after the offset of its first record
+     */
+    private void prepareSpare() {
+        synchronized (this) {
+            if (closed || spare != null)
+                return;
+        }
+        File f = new File(dir, SPARE_FILE);
+        try {
+            // A spare left by an earlier run is recreated, a new segment must be zero filled
+            if (f.exists() && !f.delete())
+                throw new IOException("Cannot delete " + f);
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            synchronized (this) {
+                if (!closed && spare == null) {
+                    spareFile = raf;
+                    spare     = map;
+                    return;
+                }
+            }
+            raf.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot map the next segment", e);
+        }
+    }
+
+    private void mapSegment(long base) throws IOException {
+        segmentFile = new RandomAccessFile(segmentPath(base), "rw");
+        segment     = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segmentBase = base;
+        dirty       = false;
+    }
+
+    /**
+     * Find the end of the last segment after a restart, a record cut by a crash is discarded
+     */
+    private void recoverSegment(long base) throws IOException {
+        mapSegment(base);
+        int pos = 0;
+        byte[] body = new byte[1024];
+        while (pos + RECORD_HEAD <= segmentSize - 4) {
+            final int bodyLen = segment.getInt(pos);
+            // Compared without adding to the length, a corrupted length must not overflow
+            if (bodyLen <= 0 || bodyLen > segmentSize - 4 - RECORD_HEAD - pos)
+                break;
+            if (body.length < bodyLen)
+                body = new byte[bodyLen];
+            segment.position(pos + RECORD_HEAD);
+            segment.get(body, 0, bodyLen);
+            if (checksum(body, bodyLen) != segment.getInt(pos + 4))
+                break;
+            pos += RECORD_HEAD + bodyLen;
+        }
+        segment.putInt(pos, 0);
+        segment.position(pos);
+    }
+
+    private long readAck() {
+        File f = new File(dir, ACK_FILE);
+        if (!f.exists())
+            return 0;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                return raf.readLong();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read acknowledged offset", e);
+            return 0;
+        }
+    }
+
+    private File segmentPath(long base) {
+        return new File(dir, String.format("%020d%s", base, SEGMENT_EXT));
+    }
+
+    private long[] listSegments() {
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(SEGMENT_EXT);
+            }
+        });
+        if (names == null)
+            return new long[0];
+        long[] bases = new long[names.length];
+        for (int i = 0; i < names.length; ++i)
+            bases[i] = Long.parseLong(names[i].substring(0, names[i].length() - SEGMENT_EXT.length()));
+        Arrays.sort(bases);
+        return bases;
+    }
+
+    /** @return Base of the segment containing the offset, -1 if none */
+    private long findSegment(long offset) {
+        long[] bases = listSegments();
+        long found = -1;
+        for (long base : bases) {
+            if (base <= offset) found = base;
+            else break;
+        }
+        if (found < 0 && bases.length > 0)
+            found = bases[0];   // acknowledged segments were deleted, start with the oldest one
+        return found;
+    }
+
+    /** @return Base of the segment following the specified one, -1 if none */
+    private long nextSegment(long base) {
+        for (long b : listSegments())
+            if (b > base) return b;
+        return -1;
+    }
+}
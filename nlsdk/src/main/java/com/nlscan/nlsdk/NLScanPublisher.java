@@ -0,0 +1,242 @@
+package com.nlscan.nlsdk;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Scan stream of a device with demand-driven back pressure.
+ *  The interfaces follow the java.util.concurrent.Flow contract (which is only available from Android 11),
+ *  so a subscriber can be adapted to Flow or other reactive libraries with a thin wrapper.
+ *  The receive thread of the SDK only copies the barcode into one immutable NLScanEvent and queues it for every
+ *  subscriber, so a slow subscriber never blocks the USB or UART receive path. The subscribers are served by at
+ *  most MAX_WORKERS workers of the publisher, one worker per subscriber with events to deliver; a subscriber
+ *  blocking in onNext holds its worker, the others are served on the remaining ones.
+ *  When the buffer of a subscriber is full, new barcodes for that subscriber are dropped and counted.
+ */
+public class NLScanPublisher {
+
+    /**
+     * Receiver of the scan stream, see java.util.concurrent.Flow.Subscriber
+     */
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * @param event the barcode, immutable, it may be kept after this method returns
+         */
+        void onNext(NLScanEvent event);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    /**
+     * Link between the publisher and a subscriber, see java.util.concurrent.Flow.Subscription
+     */
+    public interface Subscription {
+        /**
+         * @param n number of additional events the subscriber is ready to receive, must be greater than 0
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    private static final String TAG = "NLScanPublisher";
+    static final int DEFAULT_BUFFER_SIZE = 256;
+    private static final int MAX_WORKERS = 4;            // subscribers served at the same time
+    private final NLDeviceStream device;
+    private final int bufferSize;
+    private final CopyOnWriteArrayList<ScanSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final ExecutorService executor;
+
+    NLScanPublisher(NLDeviceStream device, int bufferSize) {
+        this.device     = device;
+        this.bufferSize = bufferSize;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), NLIoThreads.factory("NLScanPublisher"));
+        pool.allowCoreThreadTimeOut(true);
+        this.executor   = pool;
+    }
+
+    /**
+     * Add a subscriber, it receives the barcodes decoded after this call according to its requested demand
+     * @param subscriber scan stream receiver
+     */
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException("subscriber");
+        ScanSubscription subscription = new ScanSubscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * @return Number of current subscribers
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return Number of barcodes dropped because a subscriber buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /* ============================= package =====================================================*/
+    /**
+     * Called on the receive thread, never blocks
+     * @param src receive buffer, may be overwritten after return
+     * @param len barcode length
+     */
+    void publish(byte[] src, int len) {
+        if (len <= 0 || subscriptions.isEmpty())
+            return;
+        NLScanEvent event = new NLScanEvent(device, src, len, System.nanoTime(), System.currentTimeMillis());
+        for (ScanSubscription subscription : subscriptions) {
+            if (!subscription.offer(event))
+                droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Complete the current subscribers after their queued events are delivered, called when the device is closed.
+     * Subscribers added afterwards receive the barcodes of the next open.
+     */
+    void complete() {
+        for (ScanSubscription subscription : subscriptions) {
+            subscriptions.remove(subscription);
+            subscription.complete();
+        }
+    }
+
+    private final class ScanSubscription implements Subscription, Runnable {
+        private final Subscriber subscriber;
+        private final ArrayBlockingQueue<NLScanEvent> eventQ = new ArrayBlockingQueue<>(bufferSize);
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled = false;
+        private volatile boolean completed = false;
+        private volatile Throwable error;
+
+        ScanSubscription(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        boolean offer(NLScanEvent event) {
+            if (cancelled || completed)
+                return false;
+            if (!eventQ.offer(event))
+                return false;
+            schedule();
+            return true;
+        }
+
+        void complete() {
+            completed = true;
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("non-positive subscription request: " + n);
+            } else {
+                long cur, next;
+                do {
+                    cur  = demand.get();
+                    next = cur + n;
+                    if (next < 0) next = Long.MAX_VALUE;
+                } while (!demand.compareAndSet(cur, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true))
+                return;
+            executor.execute(this);
+        }
+
+        /**
+         * Deliver queued events while there is demand, only one worker runs this at a time per subscription.
+         */
+        @Override
+        public void run() {
+            do {
+                drain();
+                scheduled.set(false);
+            } while (hasWork() && scheduled.compareAndSet(false, true));
+        }
+
+        private boolean hasWork() {
+            if (cancelled)
+                return !eventQ.isEmpty();
+            return error != null || (completed && eventQ.isEmpty()) || (demand.get() > 0 && !eventQ.isEmpty());
+        }
+
+        private void drain() {
+            if (cancelled) {
+                clear();
+                return;
+            }
+            Throwable err = error;
+            if (err != null) {
+                cancelled = true;
+                subscriptions.remove(this);
+                clear();
+                subscriber.onError(err);
+                return;
+            }
+            while (demand.get() > 0) {
+                NLScanEvent event = eventQ.poll();
+                if (event == null)
+                    break;
+                if (demand.get() != Long.MAX_VALUE)
+                    demand.decrementAndGet();
+                try {
+                    subscriber.onNext(event);
+                } catch (Throwable t) {
+                    Log.e(TAG, "subscriber onNext failed", t);
+                    cancelled = true;
+                    subscriptions.remove(this);
+                    clear();
+                    subscriber.onError(t);
+                    return;
+                }
+                if (cancelled) {
+                    clear();
+                    return;
+                }
+            }
+            if (completed && eventQ.isEmpty() && !cancelled) {
+                cancelled = true;
+                subscriptions.remove(this);
+                subscriber.onComplete();
+            }
+        }
+
+        private void clear() {
+            eventQ.clear();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.nlscan.nlsdk;
+
+import java.util.Arrays;
+
+/**
+ *  Optional latency tracing of the receive pipeline.
+ *  Every barcode is stamped with System.nanoTime() when its first and last packet are received, when its packets
+ *  are joined into one barcode, when the listener is invoked and when the listener returns. The stage durations
+ *  of the latest barcodes are kept for a percentile report, and every trace can be passed to a TraceListener.
+ *  On a serial port the first and last packet times are the times the first and last chunk of the barcode
+ *  were read from the port, on streams that do not stamp their reads they are the time the block was read.
+ *  Disabled by default, a disabled tracer costs one volatile read per packet.
+ */
+public class NLScanTracer {
+    public static final int DEFAULT_SAMPLES = 1024;
+
+    public enum Stage {
+        RECEIVE,        // first packet to last packet
+        ASSEMBLE,       // last packet to barcode joined, includes the collection delay of the USB classes
+        DISPATCH,       // barcode joined to listener invoked: dedupe, journal and scan stream
+        LISTENER,       // listener invoked to listener returned
+        TOTAL           // first packet to listener returned
+    }
+
+    /**
+     * Timestamps of one barcode, in System.nanoTime() nanoseconds
+     */
+    public static final class Trace {
+        private final int  length;
+        private final long firstPacket;
+        private final long lastPacket;
+        private final long assembled;
+        private final long invoked;
+        private final long returned;
+
+        Trace(int length, long firstPacket, long lastPacket, long assembled, long invoked, long returned) {
+            this.length      = length;
+            this.firstPacket = firstPacket;
+            this.lastPacket  = lastPacket;
+            this.assembled   = assembled;
+            this.invoked     = invoked;
+            this.returned    = returned;
+        }
+
+        public int getLength()          { return length; }
+        public long getFirstPacketNanos() { return firstPacket; }
+        public long getLastPacketNanos()  { return lastPacket; }
+        public long getAssembledNanos()   { return assembled; }
+        public long getInvokedNanos()     { return invoked; }
+        public long getReturnedNanos()    { return returned; }
+
+        /**
+         * @return Duration of the stage in nanoseconds
+         */
+        public long getNanos(Stage stage) {
+            switch (stage) {
+                case RECEIVE:  return lastPacket - firstPacket;
+                case ASSEMBLE: return assembled - lastPacket;
+                case DISPATCH: return invoked - assembled;
+                case LISTENER: return returned - invoked;
+                default:       return returned - firstPacket;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Trace{len=").append(length);
+            for (Stage stage : Stage.values())
+                sb.append(", ").append(stage).append('=').append(getNanos(stage) / 1000).append("us");
+            return sb.append('}').toString();
+        }
+    }
+
+    public interface TraceListener {
+        /**
+         * Called on the receive thread after the listener returned, must not block
+         */
+        void onTrace(Trace trace);
+    }
+
+    /**
+     * Percentiles of the stage durations over the latest traced barcodes
+     */
+    public static final class Report {
+        private final long[][] sorted;
+        private final long count;
+
+        Report(long[][] sorted, long count) {
+            this.sorted = sorted;
+            this.count  = count;
+        }
+
+        /**
+         * @return Number of barcodes traced since the tracer was enabled or reset
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param stage      pipeline stage
+         * @param percentile 0.0 to 1.0, e.g. 0.99
+         * @return Duration in nanoseconds, -1 if nothing was traced
+         */
+        public long getNanos(Stage stage, float percentile) {
+            long[] s = sorted[stage.ordinal()];
+            if (s.length == 0)
+                return -1;
+            final int i = (int)(s.length * percentile);
+            return s[Math.max(0, Math.min(s.length - 1, i))];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("count=").append(count);
+            for (Stage stage : Stage.values()) {
+                sb.append('\n').append(stage)
+                  .append(" p50=").append(getNanos(stage, 0.5f) / 1000)
+                  .append("us p90=").append(getNanos(stage, 0.9f) / 1000)
+                  .append("us p99=").append(getNanos(stage, 0.99f) / 1000)
+                  .append("us max=").append(getNanos(stage, 1f) / 1000).append("us");
+            }
+            return sb.toString();
+        }
+    }
+
+    private volatile boolean enabled = false;
+    private volatile TraceListener listener;
+    private final long[][] samples = new long[Stage.values().length][];
+    private int next  = 0;
+    private int size  = 0;
+    private long count = 0;
+    // Stamps of the barcode being delivered, set by the stream on the thread that then calls dispatchRecv
+    private long firstPacket;
+    private long lastPacket;
+    private long assembled;
+
+    NLScanTracer() {
+        setSamples(DEFAULT_SAMPLES);
+    }
+
+    public void setEnabled(boolean enable) {
+        if (enable && !enabled)
+            reset();
+        enabled = enable;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param listener receiver of every trace, null to only aggregate
+     */
+    public void setTraceListener(TraceListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param samples number of latest barcodes included in the report
+     */
+    public synchronized void setSamples(int samples) {
+        if (samples <= 0)
+            throw new IllegalArgumentException("samples:" + samples);
+        for (int i = 0; i < this.samples.length; ++i)
+            this.samples[i] = new long[samples];
+        next = 0;
+        size = 0;
+    }
+
+    public synchronized void reset() {
+        next  = 0;
+        size  = 0;
+        count = 0;
+    }
+
+    public synchronized Report getReport() {
+        long[][] sorted = new long[samples.length][];
+        for (int i = 0; i < samples.length; ++i) {
+            sorted[i] = Arrays.copyOf(samples[i], size);
+            Arrays.sort(sorted[i]);
+        }
+        return new Report(sorted, count);
+    }
+
+    /* ============================= package =====================================================*/
+    /**
+     * Stamp the barcode about to be dispatched on the calling thread
+     */
+    synchronized void assembled(long firstPacket, long lastPacket, long assembled) {
+        this.firstPacket = firstPacket;
+        this.lastPacket  = lastPacket;
+        this.assembled   = assembled;
+    }
+
+    /**
+     * Record the barcode stamped by assembled() once its listener returned
+     */
+    void delivered(int length, long invoked, long returned) {
+        Trace trace;
+        synchronized (this) {
+            if (assembled == 0)
+                return;
+            trace = new Trace(length, firstPacket, lastPacket, assembled, invoked, returned);
+            assembled = 0;
+            for (Stage stage : Stage.values())
+                samples[stage.ordinal()][next] = trace.getNanos(stage);
+            final int capacity = samples[0].length;
+            next = (next + 1) % capacity;
+            if (size < capacity) ++size;
+            ++count;
+        }
+        TraceListener l = listener;
+        if (l != null)
+            l.onTrace(trace);
+    }
+}
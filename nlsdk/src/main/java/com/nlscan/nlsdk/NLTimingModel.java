@@ -0,0 +1,121 @@
+package com.nlscan.nlsdk;
+
+import java.util.Arrays;
+
+/**
+ *  Adaptive response timeouts of one device.
+ *  For every command class the model keeps the latest response times (from sending the command to the first
+ *  response byte, without the time needed to transfer the bytes on the link) and derives the timeout from
+ *  their high percentile. Until enough responses have been observed the fixed default of the command is used.
+ *  A missed response doubles the timeout of the class until the next successful response, so a device that
+ *  became slower is not cut off repeatedly.
+ */
+class NLTimingModel {
+    enum CmdClass {
+        HEALTH,         // DEVQRY*
+        INFO,           // QRYSYS
+        SET_CONFIG,     // single UCS setting
+        GET_CONFIG,     // single UCS query
+        BULK_CONFIG,    // batch UCS setting or query
+        PARAM,          // bootloader parameter frame
+        HANDSHAKE,      // single byte acknowledgement
+        FRAME,          // firmware frame acknowledgement
+        FLASH           // flash programming time, in ms per KB
+    }
+
+    private static final int   SAMPLES     = 64;
+    private static final int   MIN_SAMPLES = 8;
+    private static final int   MIN_TIMEOUT = 20;
+    private static final int   MARGIN      = 10;
+    private static final float PERCENTILE  = 0.99f;
+    private static final float FACTOR      = 1.5f;
+    private static final int   MAX_BACKOFF = 8;
+
+    private final Stats[] stats = new Stats[CmdClass.values().length];
+    private volatile int baudrate = 0;
+
+    private static class Stats {
+        final int[] samples = new int[SAMPLES];
+        final int[] sorted  = new int[SAMPLES];
+        int count   = 0;
+        int next    = 0;
+        int backoff = 1;
+        int percentile = -1;     // cached, -1 when the samples changed
+    }
+
+    NLTimingModel() {
+        for (int i = 0; i < stats.length; ++i)
+            stats[i] = new Stats();
+    }
+
+    /**
+     * @param baudrate baud rate of the serial link, 0 for USB where the transfer time is negligible
+     */
+    void setBaudrate(int baudrate) {
+        this.baudrate = baudrate;
+    }
+
+    /**
+     * @param bytes number of bytes on the link
+     * @return Time needed to transfer the bytes, 10 bits per byte on a serial link
+     */
+    int transferMillis(int bytes) {
+        final int baud = baudrate;
+        if (baud <= 0 || bytes <= 0)
+            return 0;
+        return (int)((bytes * 10000L + baud - 1) / baud);
+    }
+
+    /**
+     * @param cls          command class
+     * @param defaultMs    fixed timeout used while too few responses have been observed
+     * @param bytes        number of bytes sent and expected before the first response byte
+     * @return Timeout in milliseconds to wait for the response
+     */
+    synchronized int timeout(CmdClass cls, int defaultMs, int bytes) {
+        Stats st = stats[cls.ordinal()];
+        final int transfer = transferMillis(bytes);
+        if (st.count < MIN_SAMPLES)
+            return Math.max(defaultMs, transfer + MARGIN) * st.backoff;
+        final int learned = (int)(percentile(st) * FACTOR) + MARGIN + transfer;
+        return Math.max(MIN_TIMEOUT, learned) * st.backoff;
+    }
+
+    /**
+     * Record the result of a command
+     * @param cls       command class
+     * @param elapsedMs time from sending the command to the first response byte
+     * @param bytes     number of bytes sent and expected before the first response byte
+     * @param ok        false if no response was received within the timeout
+     */
+    synchronized void record(CmdClass cls, long elapsedMs, int bytes, boolean ok) {
+        Stats st = stats[cls.ordinal()];
+        if (!ok) {
+            st.backoff = Math.min(st.backoff * 2, MAX_BACKOFF);
+            return;
+        }
+        st.backoff = 1;
+        final int sample = (int)Math.max(0, elapsedMs - transferMillis(bytes));
+        st.samples[st.next] = sample;
+        st.next = (st.next + 1) % SAMPLES;
+        if (st.count < SAMPLES) ++st.count;
+        st.percentile = -1;
+    }
+
+    /**
+     * @return Observed percentile of the class in milliseconds, -1 if too few responses were observed
+     */
+    synchronized int getPercentile(CmdClass cls) {
+        Stats st = stats[cls.ordinal()];
+        return st.count < MIN_SAMPLES ? -1 : percentile(st);
+    }
+
+    private static int percentile(Stats st) {
+        if (st.percentile < 0) {
+            System.arraycopy(st.samples, 0, st.sorted, 0, st.count);
+            Arrays.sort(st.sorted, 0, st.count);
+            st.percentile = st.sorted[Math.min(st.count - 1, (int)(st.count * PERCENTILE))];
+        }
+        return st.percentile;
+    }
+}
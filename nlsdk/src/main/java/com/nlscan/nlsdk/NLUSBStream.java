@@ -17,7 +17,6 @@ import android.os.Process;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -37,16 +36,39 @@ abstract class NLUSBStream implements NLCommStream{
     private UsbManager          usbManager;
     private boolean plugFlag=false;
     private UsbDevice usbDevice;
+    // Device chosen by NLDeviceFactory, found again by identity on every open since a reconnect re-enumerates it
+    private int targetVid = -1;
+    private int targetPid = -1;
+    private String targetSerial;
+    private int targetInterface = -1;
     private int devCls;
-    private boolean mStop;
+    private volatile boolean mStop;
+    private Thread readThread;
     static String TAG   = "NLUSB";
     private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
-    private boolean isAck = true;
+    private volatile boolean isAck = true;
     private UsbRequest usbRequest;
     private int inMax;
     private BlockingQueue<ByteBuffer> ReadPacketQ;
     private UsbNativListener usbListener;
     private final byte[] lock = new byte[0];
+    private final byte[] gatherLock = new byte[0];
+    private byte[] gatherBuffer = new byte[0];               // guarded by gatherLock
+
+    // Reassembly of the barcode packets received while routing is enabled
+    private static final int PACKET_POOL_SIZE = 64;          // packet buffers kept for reuse
+    private final BlockingQueue<ByteBuffer> packetPool = new ArrayBlockingQueue<>(PACKET_POOL_SIZE);
+    private final NLPacketAssembler assembler = new NLPacketAssembler(new NLPacketAssembler.Decoder() {
+        @Override
+        public int copyPayload(ByteBuffer packet, byte[] dst, int pos) {
+            return NLUSBStream.this.copyPayload(packet, dst, pos);
+        }
+
+        @Override
+        public void recycle(ByteBuffer packet) {
+            recyclePacket(packet);
+        }
+    });
 
     private final BroadcastReceiver mUsbPermissionActionReceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
@@ -88,24 +110,31 @@ abstract class NLUSBStream implements NLCommStream{
             Log.e(TAG, "Don't support USB service.");
             return false;
         }
-        //UsbDevice device = null;
-        HashMap<String, UsbDevice> deviceMap  = usbManager.getDeviceList();
-        for (Map.Entry<String, UsbDevice> entry : deviceMap.entrySet()) {
+        // The UsbDevice of an earlier open is stale after a re-enumeration, the devices are enumerated every time
+        usbDevice = null;
+        UsbDevice fallback = null;
+        for (Map.Entry<String, UsbDevice> entry : usbManager.getDeviceList().entrySet()) {
             UsbDevice usbdev = entry.getValue();
             final int vid = usbdev.getVendorId();
             final int pid = usbdev.getProductId();
             if (vid != 0x1EAB) continue;
             final int lpid = pid & 0xFF;
-            for (byte aClass : usbClass) {
-                if (lpid == aClass) {
-                    devCls = getDevCls(lpid);
-                    usbDevice = usbdev;
-                    break;
-                }
-            }
-            if (usbDevice != null)
+            boolean supported = false;
+            for (byte aClass : usbClass)
+                supported |= lpid == aClass;
+            if (!supported) continue;
+            if (isTarget(usbdev)) {
+                usbDevice = usbdev;
                 break;
+            }
+            if (fallback == null)
+                fallback = usbdev;
         }
+        // The target is a preference, another matching device is opened when it is gone
+        if (usbDevice == null)
+            usbDevice = fallback;
+        if (usbDevice != null)
+            devCls = getDevCls(usbDevice.getProductId() & 0xFF);
         if (usbDevice == null) {
             Log.e(TAG, "No Device found.");
             return false;
@@ -121,11 +150,99 @@ abstract class NLUSBStream implements NLCommStream{
         return openUsb(usbDevice);
     }
 
+    /**
+     * Prefer a device and interface on the next opens instead of the first matching ones.
+     * The device is found again by VID, PID and serial number, so the preference survives a re-enumeration.
+     * @param device      preferred device, null for no preference
+     * @param interfaceId id of the preferred interface, -1 for the first usable one
+     */
+    void setTargetDevice(UsbDevice device, int interfaceId) {
+        targetVid       = device == null ? -1 : device.getVendorId();
+        targetPid       = device == null ? -1 : device.getProductId();
+        targetSerial    = device == null ? null : getSerial(device);
+        targetInterface = device == null ? -1 : interfaceId;
+    }
+
+    private boolean isTarget(UsbDevice device) {
+        if (targetVid < 0 || device.getVendorId() != targetVid || device.getProductId() != targetPid)
+            return false;
+        return targetSerial == null || targetSerial.equals(getSerial(device));
+    }
+
+    /**
+     * @return Serial number of the device, null if it has none or the permission is missing (Android 10 and later)
+     */
+    static String getSerial(UsbDevice device) {
+        try {
+            return device.getSerialNumber();
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
     void setNativListener(UsbNativListener listener)
     {
         usbListener = listener;
     }
 
+    /**
+     * @param tracer latency tracer stamping the received packets, null to disable
+     */
+    void setTracer(NLScanTracer tracer) {
+        assembler.setTracer(tracer);
+    }
+
+    @Override
+    public void setSegmentListener(int size, NLDeviceStream.NLSegmentListener listener) {
+        assembler.setSegmentListener(size, listener);
+    }
+
+    /**
+     * Copy the barcode payload of a received packet, the packet format depends on the interface class
+     * @param packet received packet, its position is the received length
+     * @param dst    destination buffer
+     * @param pos    destination offset
+     * @return Payload length, -1 if the packet is invalid
+     */
+    abstract int copyPayload(ByteBuffer packet, byte[] dst, int pos);
+
+    /**
+     * Deliver the received barcodes to the listener. The packets of a barcode are collected until no packet
+     * arrived for delayMs, then joined and delivered on the delivery thread of this device, see NLPacketAssembler.
+     * The I/O thread only queues the packets, so it keeps reading the responses of the commands a listener sends.
+     * @param listener application listener
+     * @param delayMs  idle time ending a barcode
+     */
+    void setRecvListener(final NLDeviceStream.NLUsbListener listener, int delayMs) {
+        assembler.setListener(listener, delayMs);
+        setNativListener(new UsbNativListener() {
+            @Override
+            public void actionUsbPlug(int event) {
+                listener.actionUsbPlug(event);
+            }
+
+            @Override
+            public void actionUsbRecv(ByteBuffer recvBuff) {
+                assembler.offer(recvBuff);
+            }
+        });
+    }
+
+    /**
+     * @return A cleared packet buffer of the pool, allocated when the pool is empty
+     */
+    private ByteBuffer obtainPacket() {
+        ByteBuffer packet = packetPool.poll();
+        if (packet == null || packet.capacity() != inMax)
+            return ByteBuffer.allocate(inMax);
+        packet.clear();
+        return packet;
+    }
+
+    private void recyclePacket(ByteBuffer packet) {
+        packetPool.offer(packet);
+    }
+
     @Override
     public void setReadAck(boolean flag){
         isAck = flag;
@@ -148,44 +265,58 @@ abstract class NLUSBStream implements NLCommStream{
         class RecvDataStream implements Runnable {
             public  void run() {
                 Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                ByteBuffer byteBuffer = null;       // queued on the request and not completed yet
                 while(true){
                     synchronized (lock) {
                         if (mStop) {
                             return;
                         }
 
-                        ByteBuffer byteBuffer = ByteBuffer.allocate(inMax);
-                        if(Build.VERSION.SDK_INT >= 26)
-                            usbRequest.queue(byteBuffer);
-                        else
-                            usbRequest.queue(byteBuffer, inMax);
+                        if (byteBuffer == null) {
+                            byteBuffer = obtainPacket();
+                            if(Build.VERSION.SDK_INT >= 26)
+                                usbRequest.queue(byteBuffer);
+                            else
+                                usbRequest.queue(byteBuffer, inMax);
+                        }
                         if (connection.requestWait() == usbRequest) {
                             int recvLen = byteBuffer.position();
                             if(isAck) {
                                 Log.i(TAG, "dt:"+recvLen);
                                 if (recvLen > 0){
                                     usbListener.actionUsbRecv(byteBuffer);
+                                    byteBuffer = null;
                                 }
                             }
                             else{
                                 try {
                                     Log.i(TAG, "rv:"+recvLen);
-                                    if(recvLen > 0)
+                                    if(recvLen > 0) {
                                         ReadPacketQ.put(byteBuffer);
+                                        byteBuffer = null;
+                                    }
                                 } catch (InterruptedException e) {
-                                    e.printStackTrace();
+                                    // The SDK never interrupts the reader, an interrupt asks the thread to end
+                                    Thread.currentThread().interrupt();
+                                    return;
                                 }
                             }
+                            // An empty completion queues the same buffer again
+                            if (byteBuffer != null)
+                                byteBuffer.clear();
                         }
                         else{
                             Log.i(TAG, "other endpoint");
+                            byteBuffer = null;
                         }
                     }
                 }
             }
         }
-        Thread t = new Thread(new RecvDataStream());
-        t.start();
+        String name = usbDevice == null ? "" : usbDevice.getDeviceName();
+        assembler.start("NLUSB-deliver" + name);
+        readThread = NLIoThreads.factory("NLUSB-read" + name).newThread(new RecvDataStream());
+        readThread.start();
     }
 
 
@@ -199,13 +330,33 @@ abstract class NLUSBStream implements NLCommStream{
             if(recvLen > length)
                 return -1;
             System.arraycopy(retData, 0, dst, 0, recvLen);
+            recyclePacket(byteBuffer);
             return recvLen;
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            // The caller was cancelled, the flag stays set so its command stops as well
+            Thread.currentThread().interrupt();
         }
         return -2;
 	}
 
+    /**
+     * The packets are queued by the receiving thread, readPacket returns as soon as one lands
+     * and the default readFrame checks the frame end after every packet
+     */
+    @Override
+    public int flushInput() {
+        BlockingQueue<ByteBuffer> q = ReadPacketQ;
+        if (q == null)
+            return 0;
+        int total = 0;
+        ByteBuffer byteBuffer;
+        while ((byteBuffer = q.poll()) != null) {
+            total += byteBuffer.position();
+            recyclePacket(byteBuffer);
+        }
+        return total;
+    }
+
 	    int write(byte[] src, int len, int timeout) {
         if(connection != null)
             return connection.bulkTransfer(writeEndpoint, src,  len, timeout);
@@ -233,6 +384,9 @@ abstract class NLUSBStream implements NLCommStream{
             writeEndpoint = null;
             usbManager = null;
         }
+        NLIoThreads.join(readThread);
+        readThread = null;
+        assembler.stop();
     }
 
 
@@ -240,10 +394,37 @@ abstract class NLUSBStream implements NLCommStream{
         return  connection != null;
     }
 
+    /**
+     * The USB packets are built from one array, so the buffers are gathered into a buffer reused by every write
+     */
+    @Override
+    public boolean writePacket(ByteBuffer[] srcs) {
+        int len = 0;
+        for (ByteBuffer b : srcs)
+            len += b.remaining();
+        synchronized (gatherLock) {
+            if (gatherBuffer.length < len)
+                gatherBuffer = new byte[len];
+            int pos = 0;
+            for (ByteBuffer b : srcs) {
+                final int n = b.remaining();
+                b.get(gatherBuffer, pos, n);
+                pos += n;
+            }
+            return writePacket(gatherBuffer, 0, len);
+        }
+    }
+
     public boolean isPlug() {
         return plugFlag;
     }
 
+    @Override
+    public String getDeviceName() {
+        UsbDevice device = usbDevice;
+        return device == null ? null : device.getDeviceName();
+    }
+
 	private byte[] cmdFeature = {(byte)0xFE, 0};
 	boolean hidChangeInterface(boolean change) {
 	    if(dataInterface == null)
@@ -261,20 +442,7 @@ abstract class NLUSBStream implements NLCommStream{
 
 
     private boolean openUsb(UsbDevice device) {
-	    int endpointType;
-
-        switch (devCls)
-        {
-            case UsbConstants.USB_CLASS_HID:
-                endpointType = UsbConstants.USB_ENDPOINT_XFER_INT;
-                break;
-            case UsbConstants.USB_CLASS_CDC_DATA:
-                endpointType = UsbConstants.USB_ENDPOINT_XFER_BULK;
-                break;
-            default:
-                endpointType = UsbConstants.USB_ENDPOINT_XFERTYPE_MASK;
-                break;
-        }
+        final int endpointType = endpointTypeOf(devCls);
 
         connection = usbManager.openDevice(device);
         if (connection == null) {
@@ -284,19 +452,11 @@ abstract class NLUSBStream implements NLCommStream{
         dataInterface    = null;
         readEndpoint     = null;
         writeEndpoint    = null;
-        final int count   = device.getInterfaceCount();
-        for (int i = 0; i < count; ++i) {
-            UsbInterface iface = device.getInterface(i);
-            final int cls = iface.getInterfaceClass();
-            if (cls != devCls) continue;
-            if (iface.getInterfaceProtocol() != 0) continue;
-
+        UsbInterface iface = findInterface(device, devCls, targetInterface);
+        if (iface != null && connection.claimInterface(iface, true)) {
             dataInterface = iface;
-            final int eps  = dataInterface.getEndpointCount();
-            if (eps < 2) break;
-
-            for (int j = 0; j < eps; ++j) {
-                UsbEndpoint ep = dataInterface.getEndpoint(j);
+            for (int j = 0; j < iface.getEndpointCount(); ++j) {
+                UsbEndpoint ep = iface.getEndpoint(j);
                 if (ep.getType() != endpointType) continue;
                 if (ep.getDirection() == UsbConstants.USB_DIR_IN) {
                     readEndpoint  = ep;
@@ -304,13 +464,6 @@ abstract class NLUSBStream implements NLCommStream{
                     writeEndpoint = ep;
                 }
             }
-
-            if (readEndpoint == null || writeEndpoint == null) break;
-
-
-            if (!connection.claimInterface(dataInterface, true)) {
-                break;
-            }
             plugFlag = true;
             ReadRequest();
             return true;
@@ -325,7 +478,51 @@ abstract class NLUSBStream implements NLCommStream{
     }
 
 
-    private int getDevCls(int usbProtocolID)
+    /**
+     * Find the data interface of a device. A composite device exposes several interfaces of the class, e.g. the
+     * keyboard and the POS interface, only one with both an IN and an OUT endpoint of the class type is usable.
+     * @param devCls      interface class, see getDevCls
+     * @param preferredId id of the interface to use if it is usable, -1 for the first usable one
+     * @return The interface, null if the device has no usable interface of the class
+     */
+    static UsbInterface findInterface(UsbDevice device, int devCls, int preferredId) {
+        final int endpointType = endpointTypeOf(devCls);
+        UsbInterface found = null;
+        for (int i = 0; i < device.getInterfaceCount(); ++i) {
+            UsbInterface iface = device.getInterface(i);
+            if (iface.getInterfaceClass() != devCls || iface.getInterfaceProtocol() != 0)
+                continue;
+            boolean in = false, out = false;
+            for (int j = 0; j < iface.getEndpointCount(); ++j) {
+                UsbEndpoint ep = iface.getEndpoint(j);
+                if (ep.getType() != endpointType) continue;
+                if (ep.getDirection() == UsbConstants.USB_DIR_IN)
+                    in = true;
+                else
+                    out = true;
+            }
+            if (!in || !out)
+                continue;
+            if (preferredId < 0 || iface.getId() == preferredId)
+                return iface;
+            if (found == null)
+                found = iface;
+        }
+        return found;
+    }
+
+    private static int endpointTypeOf(int devCls) {
+        switch (devCls) {
+            case UsbConstants.USB_CLASS_HID:
+                return UsbConstants.USB_ENDPOINT_XFER_INT;
+            case UsbConstants.USB_CLASS_CDC_DATA:
+                return UsbConstants.USB_ENDPOINT_XFER_BULK;
+            default:
+                return UsbConstants.USB_ENDPOINT_XFERTYPE_MASK;
+        }
+    }
+
+    static int getDevCls(int usbProtocolID)
     {
         switch(usbProtocolID)
         {
@@ -4,11 +4,13 @@ import android.content.Context;
 import android.os.SystemClock;
 
 import com.aill.androidserialport.SerialPort;
+import com.aill.androidserialport.SerialPortOptions;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
   * This class is implemented based on Google's official SerialPort class (https://github.com/cepr/android-serialport-api),
@@ -24,6 +26,9 @@ public class NLUartStream implements NLCommStream {
     private OutputStream outputStream;
     private InputStream inputStream;
     private boolean isUartOpen=false;
+    private String devPathName;
+    private volatile boolean blockingRead = false;
+    private long firstReadNanos, lastReadNanos;
     /**
      * @param dst  receive buffer
      * @param pos  receive buffer offset
@@ -38,12 +43,16 @@ public class NLUartStream implements NLCommStream {
 
         if(dst == null || length == 0)
             return 0;
+        firstReadNanos = lastReadNanos = 0;
+        if(blockingRead)
+            return readBlocking(dst, pos, length, timeout);
 
         stime = SystemClock.uptimeMillis();
         do {
             try {
                 if (inputStream.available() > 0) {
                     size += inputStream.read(dst, (size + pos), length - size);
+                    stampRead();
                     stime = SystemClock.uptimeMillis();
                 }
                 else{
@@ -58,6 +67,97 @@ public class NLUartStream implements NLCommStream {
         return size;
     }
 
+    /**
+     * Wait for the bytes in the kernel instead of polling available(), the thread stays parked until bytes
+     * arrive or the timeout expires
+     */
+    private int readBlocking(byte[] dst, int pos, int length, int timeout) {
+        int size = 0;
+        long stime = SystemClock.uptimeMillis();
+        try {
+            while (size < length) {
+                final int remain = timeout - (int)(SystemClock.uptimeMillis() - stime);
+                if (remain <= 0 || !serialPort.waitInput(remain) || Thread.currentThread().isInterrupted())
+                    break;
+                final int n = inputStream.read(dst, pos + size, Math.min(Math.max(inputStream.available(), 1), length - size));
+                if (n < 0)
+                    break;
+                size += n;
+                stampRead();
+                stime = SystemClock.uptimeMillis();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return size;
+    }
+
+    private void stampRead() {
+        lastReadNanos = System.nanoTime();
+        if (firstReadNanos == 0)
+            firstReadNanos = lastReadNanos;
+    }
+
+    @Override
+    public long getFirstReadNanos() {
+        return firstReadNanos;
+    }
+
+    @Override
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    /**
+     * Wait for every byte in poll() and check the frame end as soon as it lands
+     */
+    @Override
+    public int readFrame(byte[] dst, int pos, int length, int timeout, int interval, NLFrameMatcher matcher) {
+        if (dst == null || length == 0 || !isUartOpen)
+            return 0;
+        int size = 0;
+        int wait = timeout;
+        try {
+            while (size < length && !Thread.currentThread().isInterrupted()) {
+                if (inputStream.available() <= 0 && !serialPort.waitInput(wait))
+                    break;
+                final int n = inputStream.read(dst, pos + size, Math.min(Math.max(inputStream.available(), 1), length - size));
+                if (n < 0)
+                    break;
+                final int from = pos + size;
+                size += n;
+                if (matcher != null && matcher.feed(dst, from, from + n))
+                    break;
+                wait = interval;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return size;
+    }
+
+    @Override
+    public int flushInput() {
+        if (!isUartOpen)
+            return 0;
+        try {
+            return serialPort.flushInput();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * Select how readPacket waits for bytes. The blocking mode blocks the reading thread in poll() until bytes
+     * arrive, instead of checking available() every 10ms, so an idle device does not wake its reader.
+     * poll() is a native call, a virtual thread blocked in it holds its carrier.
+     * @param enable true to block in poll(), false to poll available() (default)
+     */
+    public void setBlockingRead(boolean enable) {
+        blockingRead = enable;
+    }
+
     /**
      * @param dst send buffer
      * @param pos buffer offset
@@ -76,6 +176,26 @@ public class NLUartStream implements NLCommStream {
         return true;
     }
 
+    @Override
+    public boolean writePacket(ByteBuffer[] srcs) {
+        try {
+            for (ByteBuffer b : srcs) {
+                if (b.hasArray()) {
+                    outputStream.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                    b.position(b.limit());
+                } else {
+                    byte[] tmp = new byte[b.remaining()];
+                    b.get(tmp);
+                    outputStream.write(tmp);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
     @Override
     public boolean open(Context context) {
         return false;
@@ -97,10 +217,20 @@ public class NLUartStream implements NLCommStream {
             System.out.println("The device file could not be found");
             return false;
         }
+        devPathName = pathName;
         isUartOpen = true;
         return true;
     }
 
+    /**
+     * Apply line settings such as RTS/CTS flow control or VMIN/VTIME to the opened port
+     * @param options line settings
+     * @return true if all requested settings were applied
+     */
+    public boolean configure(SerialPortOptions options) {
+        return isUartOpen && serialPort.configure(options);
+    }
+
     @Override
     public void setUsbListener(NLDeviceStream.NLUsbListener listener) {
 
@@ -133,4 +263,9 @@ public class NLUartStream implements NLCommStream {
 
     @Override
     public void setReadAck(boolean flag){ }
+
+    @Override
+    public String getDeviceName() {
+        return devPathName;
+    }
 }
@@ -3,22 +3,11 @@ package com.nlscan.nlsdk;
 import android.content.Context;
 
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
 /**
  * This encapsulates the communication operation interface of the USB CDC class
  */
 class NLUsbCdc extends NLUSBStream {
-    private NLDeviceStream.NLUsbListener usbListener;
-    private Timer readTimer = null;
-    private TimerTask timerTask;
-    private byte[] codeBuffer = new byte [4096];
-    private int coderPos = 0;
-    private BlockingQueue<ByteBuffer> coderPacketQ;
-    private int PACKET_Q_SIZE = 64;             // 64 * 64 = 4096
     @Override
     public boolean open(Context context) {
         final byte[] usbClass = {0x06};   //
@@ -32,57 +21,16 @@ class NLUsbCdc extends NLUSBStream {
 
     @Override
     public void setUsbListener(NLDeviceStream.NLUsbListener listener) {
-        usbListener = listener;
-        coderPacketQ = new ArrayBlockingQueue<>(PACKET_Q_SIZE);
-
-        if(readTimer != null) {
-            readTimer.cancel();
-            readTimer = null;
-            timerTask = null;
-        }
-        readTimer = new Timer();
-
-        setNativListener(new UsbNativListener() {
-            @Override
-            public void actionUsbPlug(int event) {
-                usbListener.actionUsbPlug(event);
-            }
-
-            @Override
-            public void actionUsbRecv(ByteBuffer recvBuff) {
-                try {
-                    coderPacketQ.put(recvBuff);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                timerTask = new TimerTask() {
-                    public void run() {
-                        int entry = PACKET_Q_SIZE - coderPacketQ.remainingCapacity();
-                        ByteBuffer byteBuffer;
-                        coderPos = 0;
-                        for(int i=0; i<entry; i++) {
-                            try {
-                                byteBuffer = coderPacketQ.take();
-                                int packageSize = 64;
-                                byte[] retData = byteBuffer.array();
-
-                                int len = byteBuffer.position();
-                                if (len > packageSize) return;
-
-                                System.arraycopy(retData, 0, codeBuffer, coderPos, len);
-                                coderPos += len;
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
+        setRecvListener(listener, 20);
+    }
 
-                        }
-                        if(coderPos > 0)
-                            usbListener.actionUsbRecv(codeBuffer, coderPos);
-                    }
-                };
-                readTimer.schedule(timerTask, 20);
-            }
-        });
+    @Override
+    int copyPayload(ByteBuffer packet, byte[] dst, int pos) {
+        int packageSize = 64;
+        int len = packet.position();
+        if (len > packageSize) return -1;
+        System.arraycopy(packet.array(), 0, dst, pos, len);
+        return len;
     }
 
     @Override
@@ -4,10 +4,6 @@ import android.content.Context;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
 
 /**
@@ -15,13 +11,6 @@ import java.util.concurrent.BlockingQueue;
  * and the POS protocol of Newland is installed and unpacked for the read and write functions.
  */
 class NLUsbPos extends NLUSBStream  {
-    private NLDeviceStream.NLUsbListener usbListener;
-    private Timer readTimer = null;
-    private TimerTask timerTask;
-    private byte[] codeBuffer = new byte [4096];
-    private int coderPos = 0;
-    private BlockingQueue<ByteBuffer> coderPacketQ;
-    private int PACKET_Q_SIZE = 64;             // 64 * 64 = 4096
 
     @Override
     public boolean open(Context context) {
@@ -82,57 +71,20 @@ class NLUsbPos extends NLUSBStream  {
 	
     @Override
     public void setUsbListener(NLDeviceStream.NLUsbListener listener) {
-        usbListener = listener;
-        coderPacketQ = new ArrayBlockingQueue<>(PACKET_Q_SIZE);
-
-        if(readTimer != null) {
-            readTimer.cancel();
-            readTimer = null;
-            timerTask = null;
-        }
-        readTimer = new Timer();
-
-        setNativListener(new UsbNativListener() {
-            @Override
-            public void actionUsbPlug(int event) {
-                usbListener.actionUsbPlug(event);
-            }
-
-            @Override
-            public void actionUsbRecv(ByteBuffer recvBuff) {
-                try {
-                    coderPacketQ.put(recvBuff);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                timerTask = new TimerTask() {
-                    public void run() {
-                        int entry = PACKET_Q_SIZE - coderPacketQ.remainingCapacity();
-                        ByteBuffer byteBuffer;
-                        coderPos = 0;
-                        for(int i=0; i<entry; i++) {
-                            try {
-                                byteBuffer = coderPacketQ.take();
-                                int packageSize = 64;
-                                byte[] retData = byteBuffer.array();
-
-                                int len = retData[1] & 0xFF;
-                                if (len > packageSize - 2) return;
-
-                                System.arraycopy(retData, 2, codeBuffer, coderPos, len);
-                                coderPos += len;
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
+        setRecvListener(listener, 50);
+    }
 
-                        }
-                        if(coderPos > 0)
-                            usbListener.actionUsbRecv(codeBuffer, coderPos);
-                    }
-                };
-                readTimer.schedule(timerTask, 50);
-            }
-        });
+    /**
+     * The POS packet carries the payload length in byte1 and the payload from byte2
+     */
+    @Override
+    int copyPayload(ByteBuffer packet, byte[] dst, int pos) {
+        int packageSize = 64;
+        byte[] retData = packet.array();
+        int len = retData[1] & 0xFF;
+        if (len > packageSize - 2) return -1;
+        System.arraycopy(retData, 2, dst, pos, len);
+        return len;
     }
 
    
@@ -0,0 +1,130 @@
+package com.aill.androidserialport;
+
+import com.nlscan.nlsdk.NLPty;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ *  The port against the other end of a linked pair of pseudo terminals, skipped without the native libraries
+ */
+public class SerialPortTest {
+    private NLPty pty;
+    private SerialPort port;
+    private FileInputStream peerIn;
+    private FileOutputStream peerOut;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(NLPty.isAvailable());
+        pty = NLPty.link(1);
+        port = new SerialPort(new File(pty.getPath(0)), 115200, 0);
+        // The line settings need libserial_port_termios
+        Assume.assumeTrue(port.configure(new SerialPortOptions().setVmin(1).setVtime(0)));
+        peerIn  = new FileInputStream(pty.getPath(1));
+        peerOut = new FileOutputStream(pty.getPath(1));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (port != null) {
+            port.close();
+            port.getInputStream().close();
+            port.getOutputStream().close();
+        }
+        if (peerIn != null) {
+            peerIn.close();
+            peerOut.close();
+        }
+        if (pty != null)
+            pty.close();
+    }
+
+    @Test
+    public void waitInputReturnsWhenBytesArrive() throws IOException {
+        assertFalse(port.waitInput(50));
+        peerOut.write("AB".getBytes());
+        assertTrue(port.waitInput(1000));
+        byte[] buf = new byte[2];
+        assertEquals(2, readFully(port.getInputStream(), buf));
+        assertEquals("AB", new String(buf));
+        assertFalse(port.waitInput(0));
+    }
+
+    @Test
+    public void flushInputDiscardsTheUnreadBytes() throws IOException, InterruptedException {
+        peerOut.write("0123456789".getBytes());
+        for (int i = 0; i < 100 && port.getInputStream().available() < 10; ++i)
+            Thread.sleep(5);
+        assertEquals(10, port.flushInput());
+        assertEquals(0, port.getInputStream().available());
+        // Bytes received after the flush are kept
+        peerOut.write('X');
+        assertTrue(port.waitInput(1000));
+        assertEquals('X', port.getInputStream().read());
+    }
+
+    @Test
+    public void drainReturnsOnceTheBytesAreSent() throws IOException {
+        byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; ++i)
+            data[i] = (byte) i;
+        port.getOutputStream().write(data);
+        port.drain();
+        byte[] received = new byte[data.length];
+        assertEquals(data.length, readFully(peerIn, received));
+        assertArrayEquals(data, received);
+    }
+
+    @Test
+    public void vminHoldsTheReadUntilEnoughBytes() throws IOException, InterruptedException {
+        assertTrue(port.configure(new SerialPortOptions().setVmin(3).setVtime(0)));
+        final AtomicInteger read = new AtomicInteger(-1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read.set(port.getInputStream().read(new byte[8]));
+                } catch (IOException e) {
+                    read.set(-2);
+                }
+            }
+        });
+        peerOut.write("AB".getBytes());
+        reader.start();
+        reader.join(100);
+        assertTrue(reader.isAlive());
+        peerOut.write('C');
+        reader.join(1000);
+        assertEquals(3, read.get());
+    }
+
+    @Test
+    public void pseudoTerminalHasNoLowLatencyFlag() {
+        // TIOCSSERIAL is a UART driver ioctl, the setting is reported as not applied
+        assertFalse(port.configure(new SerialPortOptions().setLowLatency(true)));
+    }
+
+    /* ============================= private =====================================================*/
+    private static int readFully(InputStream in, byte[] dst) throws IOException {
+        int pos = 0;
+        while (pos < dst.length) {
+            final int n = in.read(dst, pos, dst.length - pos);
+            if (n < 0)
+                break;
+            pos += n;
+        }
+        return pos;
+    }
+}
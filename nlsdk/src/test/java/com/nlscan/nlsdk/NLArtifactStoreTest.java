@@ -0,0 +1,143 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class NLArtifactStoreTest {
+    private static final int KERN_OFFSET = 0x200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storedFirmwareCanBeLoadedAgain() throws IOException {
+        NLArtifactStore store = new NLArtifactStore(folder.newFolder(), 1 << 20);
+        NLFirmwarePackage pkg = store.putFirmware(mcuPackage(1300, 1));
+        assertNotNull(pkg);
+        NLFirmwarePackage stored = store.getFirmware(pkg.getSha256());
+        assertNotNull(stored);
+        assertEquals(pkg.getSection(0).getFrameCrc(2), stored.getSection(0).getFrameCrc(2));
+    }
+
+    @Test
+    public void truncatedCopyIsWrittenAgain() throws IOException {
+        File dir = folder.newFolder();
+        NLArtifactStore store = new NLArtifactStore(dir, 1 << 20);
+        byte[] data = mcuPackage(1300, 1);
+        NLFirmwarePackage pkg = store.putFirmware(data);
+        RandomAccessFile f = new RandomAccessFile(new File(dir, pkg.getSha256() + ".fw"), "rw");
+        try {
+            f.setLength(data.length / 2);
+        } finally {
+            f.close();
+        }
+        assertNull(store.getFirmware(pkg.getSha256()));
+        store.putFirmware(data);
+        assertNotNull(store.getFirmware(pkg.getSha256()));
+    }
+
+    @Test
+    public void pinnedArtifactIsNotEvicted() throws IOException {
+        File dir = folder.newFolder();
+        // Room for one package and its index
+        NLArtifactStore store = new NLArtifactStore(dir, 2000);
+        NLFirmwarePackage first = store.putFirmware(mcuPackage(1300, 1));
+        File pinned = new File(dir, first.getSha256() + ".fw");
+        assertTrue(store.acquire(pinned));
+        assertTrue(pinned.setLastModified(0));
+        // The pinned package is the least recently used, the other one is evicted instead
+        byte[] data = mcuPackage(1300, 2);
+        NLFirmwarePackage second = store.putFirmware(data);
+        assertTrue(pinned.isFile());
+        assertNull(store.getFirmware(second.getSha256()));
+
+        store.release(pinned);
+        store.putFirmware(data);
+        assertFalse(pinned.isFile());
+        assertFalse(store.acquire(pinned));
+        assertNotNull(store.getFirmware(second.getSha256()));
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvictedFirst() throws IOException {
+        File dir = folder.newFolder();
+        NLArtifactStore probe = new NLArtifactStore(folder.newFolder(), 1 << 20);
+        probe.putFirmware(mcuPackage(1300, 0));
+        final long artifact = probe.size();
+        // Room for two packages with their index
+        NLArtifactStore store = new NLArtifactStore(dir, artifact * 2 + artifact / 2);
+        NLFirmwarePackage a = store.putFirmware(mcuPackage(1300, 1));
+        NLFirmwarePackage b = store.putFirmware(mcuPackage(1300, 2));
+        age(dir, a.getSha256(), 2000);
+        age(dir, b.getSha256(), 1000);
+        // Loading a makes b the least recently used
+        assertNotNull(store.getFirmware(a.getSha256()));
+        NLFirmwarePackage c = store.putFirmware(mcuPackage(1300, 3));
+        assertNotNull(store.getFirmware(a.getSha256()));
+        assertNull(store.getFirmware(b.getSha256()));
+        assertNotNull(store.getFirmware(c.getSha256()));
+        assertFalse(new File(dir, b.getSha256() + ".fwidx").exists());
+    }
+
+    @Test
+    public void trimKeepsTheStoreWithinItsQuota() throws IOException {
+        File dir = folder.newFolder();
+        final long quota = 6000;
+        NLArtifactStore store = new NLArtifactStore(dir, quota);
+        for (int seed = 1; seed <= 8; ++seed) {
+            store.putFirmware(mcuPackage(1300, seed));
+            assertTrue(store.size() <= quota);
+        }
+        // The store is full, nothing more than needed was evicted
+        assertTrue(store.size() > quota - 2000);
+    }
+
+    @Test
+    public void packageLargerThanTheQuotaIsNotStored() throws IOException {
+        File dir = folder.newFolder();
+        NLArtifactStore store = new NLArtifactStore(dir, 2000);
+        NLFirmwarePackage small = store.putFirmware(mcuPackage(1300, 1));
+        final long before = store.size();
+        NLFirmwarePackage large = store.putFirmware(mcuPackage(4000, 2));
+        // The package is still usable for an update, it is only not kept
+        assertNotNull(large);
+        assertEquals(1, large.getSectionCount());
+        assertEquals(before, store.size());
+        assertNotNull(store.getFirmware(small.getSha256()));
+    }
+
+    /* ============================= private =====================================================*/
+    /**
+     * Mark the files of an artifact as last used the given number of seconds ago
+     */
+    private static void age(File dir, String sha256, int seconds) {
+        final long time = System.currentTimeMillis() - seconds * 1000L;
+        for (File f : dir.listFiles()) {
+            if (f.getName().startsWith(sha256))
+                assertTrue(f.setLastModified(time));
+        }
+    }
+
+    private static byte[] mcuPackage(int length, int seed) {
+        byte[] data = new byte[KERN_OFFSET + length];
+        writeLE(data, 0, 0x89abcdef);
+        data[0x5c] = 1;
+        writeLE(data, 0x5c + 4, length);
+        writeLE(data, 0x5c + 8, KERN_OFFSET);
+        for (int i = KERN_OFFSET; i < data.length; ++i)
+            data[i] = (byte) (i * 31 + seed);
+        return data;
+    }
+
+    private static void writeLE(byte[] data, int pos, int value) {
+        for (int i = 0; i < 4; ++i)
+            data[pos + i] = (byte) (value >> (8 * i));
+    }
+}
@@ -0,0 +1,89 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NLBarcodeTest {
+    private static final String GS = "\u001d";
+
+    @Test
+    public void headerAndSuffixAreStripped() {
+        NLBarcode.Format format = new NLBarcode.Format().setPrefixLength(2).setCodeId(true).setAimId(true)
+                .setSuffix(new byte[]{0x0d, 0x0a});
+        NLBarcode b = barcode(format, "PXj]C0ABC123\r\n");
+        assertEquals('j', b.getCodeId());
+        assertEquals('C', b.getAimId());
+        assertEquals('0', b.getAimModifier());
+        assertEquals(NLBarcode.Symbology.CODE128, b.getSymbology());
+        assertFalse(b.isGs1());
+        assertEquals("ABC123", b.getPayloadString());
+        assertEquals(0, b.getAiCount());
+    }
+
+    @Test
+    public void fixedAndVariableLengthElements() {
+        NLBarcode b = gs1("]C1" + "0109501101020917" + "17190508" + "10ABCD1234" + GS + "21XYZ");
+        assertEquals(NLBarcode.Symbology.GS1_128, b.getSymbology());
+        assertEquals(4, b.getAiCount());
+        assertEquals("01", b.getAi(0));
+        assertEquals("09501101020917", b.getAiValue("01"));
+        assertEquals("190508", b.getAiValue("17"));
+        assertEquals("ABCD1234", b.getAiValue("10"));
+        assertEquals("XYZ", b.getAiValue("21"));
+        assertNull(b.getAiValue("11"));
+    }
+
+    @Test
+    public void threeAndFourDigitIdentifiers() {
+        // 3103: net weight in kg with 3 decimals, 410: ship to GLN, 7003: expiration date and time
+        NLBarcode b = gs1("]e0" + "3103000123" + "4109501101020009" + "70031905081230");
+        assertEquals(3, b.getAiCount());
+        assertEquals("3103", b.getAi(0));
+        assertEquals("000123", b.getAiValue("3103"));
+        assertEquals("410", b.getAi(1));
+        assertEquals("9501101020009", b.getAiValue("410"));
+        assertEquals("7003", b.getAi(2));
+        assertEquals("1905081230", b.getAiValue("7003"));
+    }
+
+    @Test
+    public void leadingFnc1IsSkipped() {
+        NLBarcode b = gs1("]d2" + GS + "00" + "095011010209170002" + "0109501101020917");
+        assertEquals(2, b.getAiCount());
+        assertEquals("095011010209170002", b.getAiValue("00"));
+        assertEquals("09501101020917", b.getAiValue("01"));
+    }
+
+    @Test
+    public void invalidElementStringsReportNone() {
+        // 05 is not assigned
+        assertEquals(0, gs1("]C1" + "0512345").getAiCount());
+        // the fixed length value of 01 is cut short
+        assertEquals(0, gs1("]C1" + "01095011010209").getAiCount());
+        // not GS1 at all
+        assertEquals(0, gs1("]C0" + "0109501101020917").getAiCount());
+    }
+
+    @Test
+    public void pooledBarcodeOwnsItsCopy() {
+        NLBarcode.Pool pool = new NLBarcode.Pool(1, new NLBarcode.Format());
+        byte[] src = "HELLO".getBytes();
+        NLBarcode kept = pool.obtain(src, 0, src.length);
+        src[0] = 'J';
+        assertEquals("HELLO", kept.getPayloadString());
+        kept.recycle();
+        assertSame(kept, pool.obtain(src, 0, src.length));
+        assertEquals("JELLO", kept.getPayloadString());
+    }
+
+    /* ============================= private =====================================================*/
+    private static NLBarcode gs1(String content) {
+        return barcode(new NLBarcode.Format().setAimId(true), content);
+    }
+
+    private static NLBarcode barcode(NLBarcode.Format format, String content) {
+        byte[] data = content.getBytes();
+        return new NLBarcode(format).wrap(data, 0, data.length);
+    }
+}
@@ -0,0 +1,141 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NLCommandSchedulerTest {
+    private final NLCommandScheduler scheduler = new NLCommandScheduler();
+
+    @Test
+    public void ownerMayAcquireAgain() {
+        scheduler.acquire(NLCommandScheduler.Priority.BULK);
+        scheduler.acquire(NLCommandScheduler.Priority.QUERY);
+        scheduler.release();
+        assertFalse(freeForOtherThread());
+        scheduler.release();
+        assertTrue(freeForOtherThread());
+    }
+
+    @Test(expected = IllegalMonitorStateException.class)
+    public void releaseWithoutOwnershipFails() {
+        scheduler.release();
+    }
+
+    @Test
+    public void tryAcquireFailsWhileOwned() throws InterruptedException {
+        scheduler.acquire(NLCommandScheduler.Priority.QUERY);
+        assertFalse(freeForOtherThread());
+        scheduler.release();
+        assertTrue(scheduler.tryAcquire(NLCommandScheduler.Priority.QUERY));
+        scheduler.release();
+    }
+
+    @Test
+    public void waitersAreGrantedByPriorityThenArrival() throws InterruptedException {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.acquire(NLCommandScheduler.Priority.BULK);
+        List<Thread> threads = new ArrayList<>();
+        threads.add(waiter("bulk", NLCommandScheduler.Priority.BULK, order));
+        threads.add(waiter("query1", NLCommandScheduler.Priority.QUERY, order));
+        threads.add(waiter("query2", NLCommandScheduler.Priority.QUERY, order));
+        threads.add(waiter("trigger", NLCommandScheduler.Priority.TRIGGER, order));
+        scheduler.release();
+        for (Thread t : threads)
+            t.join(1000);
+        assertEquals(Arrays.asList("trigger", "query1", "query2", "bulk"), order);
+    }
+
+    @Test
+    public void yieldPointLetsHigherPrioritiesRun() throws InterruptedException {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.acquire(NLCommandScheduler.Priority.BULK);
+        assertFalse(scheduler.isPreempted());
+        assertFalse(scheduler.yieldPoint());
+        Thread bulk    = waiter("bulk2", NLCommandScheduler.Priority.BULK, order);
+        assertFalse(scheduler.isPreempted());
+        Thread query   = waiter("query", NLCommandScheduler.Priority.QUERY, order);
+        Thread trigger = waiter("trigger", NLCommandScheduler.Priority.TRIGGER, order);
+        assertTrue(scheduler.isPreempted());
+        assertTrue(scheduler.yieldPoint());
+        // The owner takes the device back ahead of the later command of its own priority
+        order.add("bulk");
+        scheduler.release();
+        for (Thread t : new Thread[]{trigger, query, bulk})
+            t.join(1000);
+        assertEquals(Arrays.asList("trigger", "query", "bulk", "bulk2"), order);
+    }
+
+    @Test
+    public void interruptDoesNotAbortTheWait() throws InterruptedException {
+        final boolean[] result = new boolean[2];
+        scheduler.acquire(NLCommandScheduler.Priority.BULK);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.acquire(NLCommandScheduler.Priority.QUERY);
+                result[0] = true;
+                result[1] = Thread.currentThread().isInterrupted();
+                scheduler.release();
+            }
+        });
+        t.start();
+        awaitWaiting(t);
+        t.interrupt();
+        Thread.sleep(20);
+        assertFalse(result[0]);
+        scheduler.release();
+        t.join(1000);
+        assertTrue(result[0]);
+        assertTrue(result[1]);
+    }
+
+    /* ============================= private =====================================================*/
+    private boolean freeForOtherThread() {
+        final boolean[] free = new boolean[1];
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                free[0] = scheduler.tryAcquire(NLCommandScheduler.Priority.QUERY);
+                if (free[0])
+                    scheduler.release();
+            }
+        });
+        t.start();
+        try {
+            t.join(1000);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        return free[0];
+    }
+
+    /**
+     * Start a thread acquiring the device, it returns once the thread waits for it
+     */
+    private Thread waiter(final String name, final NLCommandScheduler.Priority priority, final List<String> order)
+            throws InterruptedException {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scheduler.acquire(priority);
+                order.add(name);
+                scheduler.release();
+            }
+        }, name);
+        t.start();
+        awaitWaiting(t);
+        return t;
+    }
+
+    private static void awaitWaiting(Thread t) throws InterruptedException {
+        for (int i = 0; i < 100 && t.getState() != Thread.State.WAITING; ++i)
+            Thread.sleep(5);
+        assertEquals(Thread.State.WAITING, t.getState());
+    }
+}
@@ -0,0 +1,98 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NLConfigBatcherTest {
+    private final List<String> frames = new ArrayList<>();
+    private final List<Integer> sizes = new ArrayList<>();
+    private final List<Boolean> comms = new ArrayList<>();
+    private boolean accept = true;
+
+    private final NLConfigBatcher.BatchSink sink = new NLConfigBatcher.BatchSink() {
+        @Override
+        public boolean onBatch(String frame, List<String[]> commands, boolean comm) {
+            frames.add(frame);
+            sizes.add(commands.size());
+            comms.add(comm);
+            return accept;
+        }
+    };
+
+    @Test
+    public void sameTagIsMerged() {
+        NLConfigBatcher batcher = new NLConfigBatcher(sink);
+        assertTrue(batcher.add("128ENA", "1"));
+        assertTrue(batcher.add("128MIN", "4"));
+        assertTrue(batcher.add("SCNMOD", "0"));
+        assertEquals(1, batcher.finish());
+        assertEquals(1, frames.size());
+        assertEquals("@128ENA1,MIN4;SCNMOD0;", frames.get(0));
+        assertEquals(3, (int) sizes.get(0));
+    }
+
+    @Test
+    public void temporaryPrefix() {
+        NLConfigBatcher batcher = new NLConfigBatcher(sink, '#');
+        batcher.add("SCNMOD", "0");
+        batcher.finish();
+        assertEquals("#SCNMOD0;", frames.get(0));
+    }
+
+    @Test
+    public void longBatchIsSplit() {
+        NLConfigBatcher batcher = new NLConfigBatcher(sink);
+        int count = 0;
+        for (int i = 0; i < 100; ++i, ++count)
+            batcher.add(String.format("T%02dSET", i), "1");
+        batcher.finish();
+        assertTrue(frames.size() > 1);
+        int total = 0;
+        for (int i = 0; i < frames.size(); ++i) {
+            // A frame is emitted once it exceeds the limit, by at most one command
+            assertTrue(frames.get(i).length() <= NLConfigBatcher.MAX_BATCH_LENGTH + 16);
+            total += sizes.get(i);
+        }
+        assertEquals(count, total);
+    }
+
+    @Test
+    public void commCommandsAreSentLast() {
+        NLConfigBatcher batcher = new NLConfigBatcher(sink);
+        batcher.add("232BAD", "8");
+        batcher.add("SCNMOD", "0");
+        batcher.add("INTERF", "0");
+        assertEquals(0, batcher.finish());
+        assertEquals(2, frames.size());
+        assertEquals("@SCNMOD0;", frames.get(0));
+        assertFalse(comms.get(0));
+        assertEquals("@232BAD8;INTERF0;", frames.get(1));
+        assertTrue(comms.get(1));
+        assertEquals(2, (int) sizes.get(1));
+    }
+
+    @Test
+    public void failedBatchStopsBatching() {
+        accept = false;
+        NLConfigBatcher batcher = new NLConfigBatcher(sink);
+        for (int i = 0; i < 100; ++i)
+            batcher.add(String.format("T%02dSET", i), "1");
+        assertFalse(batcher.add("SCNMOD", "0"));
+        batcher.add("INTERF", "0");
+        assertEquals(-1, batcher.finish());
+        // The communication commands are not sent after a failure
+        assertFalse(comms.contains(true));
+    }
+
+    @Test
+    public void commCommandNames() {
+        assertTrue(NLConfigBatcher.isCommCommand("INTERF"));
+        assertTrue(NLConfigBatcher.isCommCommand("AUTOUR"));
+        assertTrue(NLConfigBatcher.isCommCommand("232BAD"));
+        assertFalse(NLConfigBatcher.isCommCommand("128ENA"));
+    }
+}
@@ -0,0 +1,40 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NLConfigCacheTest {
+    private final NLHealthMonitorTest.FakeClock clock = new NLHealthMonitorTest.FakeClock();
+    private final NLConfigCache cache = new NLConfigCache(clock);
+
+    @Test
+    public void valueExpiresAfterTheMaximumAge() {
+        cache.setMaxAge(1000);
+        cache.put("SN1", "128ENA", "1");
+        clock.now += 999;
+        assertEquals("1", cache.get("SN1", "128ENA"));
+        clock.now += 1;
+        assertNull(cache.get("SN1", "128ENA"));
+        // An answer to the new query is cached for another period
+        cache.put("SN1", "128ENA", "0");
+        assertEquals("0", cache.get("SN1", "128ENA"));
+    }
+
+    @Test
+    public void invalidateForgetsOnlyThatDevice() {
+        cache.put("SN1", "128ENA", "1");
+        cache.put("SN2", "128ENA", "0");
+        cache.invalidate("SN1");
+        assertNull(cache.get("SN1", "128ENA"));
+        assertEquals("0", cache.get("SN2", "128ENA"));
+    }
+
+    @Test
+    public void serialIsTakenFromTheSerialLine() {
+        assertEquals("12345", NLConfigCache.parseSerial("Model: NLS-EM20\r\nSerial Number: 12345\r\n"));
+        assertEquals("ABC", NLConfigCache.parseSerial("S/N:ABC"));
+        assertEquals("plain", NLConfigCache.parseSerial(" plain "));
+        assertNull(NLConfigCache.parseSerial(null));
+    }
+}
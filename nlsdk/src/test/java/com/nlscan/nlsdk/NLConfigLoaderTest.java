@@ -0,0 +1,162 @@
+package com.nlscan.nlsdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NLConfigLoaderTest {
+    private static final int SETTINGS = 60;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> commands = new ArrayList<>();
+    private final NLConfigLoader.CommandSink sink = new NLConfigLoader.CommandSink() {
+        @Override
+        public boolean onCommand(String name, String value) {
+            commands.add(name + value);
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        NLConfigCache.getInstance().clear();
+    }
+
+    @After
+    public void tearDown() {
+        NLConfigCache.getInstance().clear();
+    }
+
+    @Test
+    public void xmlCommandsReachTheSinkInFileOrder() throws IOException {
+        File xml = xml("<Config>\n"
+                + "  <Command CommandName=\"128ENA\" Value=\"1\"/>\n"
+                + "  <Group><Command CommandName=\"SCNMOD\" Value=\"0\"></Command></Group>\n"
+                + "  <Command CommandName=\"X\" Value=\"1\"/>\n"
+                + "  <Command CommandName=\"BEEPON\"/>\n"
+                + "</Config>\n");
+        assertTrue(NLConfigLoader.load(xml, sink));
+        // A name shorter than a tag is skipped, a missing value is empty
+        assertEquals(Arrays.asList("128ENA1", "SCNMOD0", "BEEPON"), commands);
+    }
+
+    @Test
+    public void compiledFileLoadsTheSameCommands() throws IOException {
+        File xml = settingsXml();
+        File compiled = folder.newFile("config.bin");
+        assertEquals(SETTINGS, NLConfigLoader.compile(xml, compiled));
+        assertTrue(NLConfigLoader.isCompiled(compiled));
+        assertFalse(NLConfigLoader.isCompiled(xml));
+
+        assertTrue(NLConfigLoader.load(xml, sink));
+        List<String> fromXml = new ArrayList<>(commands);
+        commands.clear();
+        assertTrue(NLConfigLoader.load(compiled, sink));
+        assertEquals(fromXml, commands);
+    }
+
+    @Test
+    public void sinkStopsTheLoading() throws IOException {
+        final int[] count = {0};
+        assertFalse(NLConfigLoader.load(settingsXml(), new NLConfigLoader.CommandSink() {
+            @Override
+            public boolean onCommand(String name, String value) {
+                return ++count[0] < 3;
+            }
+        }));
+        assertEquals(3, count[0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedXmlIsReported() throws IOException {
+        NLConfigLoader.load(xml("<Config><Command CommandName=\"128ENA\" Value=\"1\"></Config>"), sink);
+    }
+
+    @Test
+    public void unknownSettingsAreQueriedInSeveralFrames() throws IOException {
+        NLTestDevices.RecordingStream sim = new NLTestDevices.RecordingStream();
+        NLDevice device = NLTestDevices.open(sim);
+        try {
+            File xml = settingsXml();
+            assertEquals(1, device.updateConfig(xml));
+            List<String> queried = new ArrayList<>();
+            int queries = 0;
+            StringBuilder sent = new StringBuilder();
+            for (String frame : sim.frames) {
+                if (frame.endsWith("*")) {
+                    ++queries;
+                    for (String name : frame.substring(1).split(";"))
+                        queried.add(name.substring(0, name.length() - 1));
+                } else if (frame.startsWith("@")) {
+                    sent.append(frame.substring(1)).append(';');
+                }
+            }
+            // 60 names of 8 characters do not fit one query frame of about 200 characters
+            assertTrue(queries > 1);
+            assertEquals(SETTINGS, queried.size());
+            assertEquals(SETTINGS, new HashSet<>(queried).size());
+            // The simulator answers 0, only the settings with another value are sent
+            for (int i = 0; i < SETTINGS; ++i)
+                assertEquals(name(i), i % 2 == 0, sent.indexOf(name(i) + "1;") >= 0);
+
+            // The second rollout finds every setting in the cache
+            sim.frames.clear();
+            assertEquals(1, device.updateConfig(xml));
+            for (String frame : sim.frames)
+                assertFalse(frame, frame.endsWith("*") || frame.startsWith("@"));
+
+            // The settings may have changed while the device was closed, they are queried again
+            device.close();
+            assertTrue(device.open(null, NLTestDevices.IGNORE));
+            sim.frames.clear();
+            assertEquals(1, device.updateConfig(xml));
+            int requeried = 0;
+            for (String frame : sim.frames)
+                requeried += frame.endsWith("*") ? frame.split(";").length : 0;
+            assertEquals(SETTINGS, requeried);
+        } finally {
+            device.close();
+        }
+    }
+
+    /* ============================= private =====================================================*/
+    private static String name(int i) {
+        return String.format("T%02dVAL", i);
+    }
+
+    /**
+     * Settings T00VAL..T59VAL, the even ones set to 1 and the odd ones to 0
+     */
+    private File settingsXml() throws IOException {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Config>\n");
+        for (int i = 0; i < SETTINGS; ++i)
+            sb.append("  <Command CommandName=\"").append(name(i)).append("\" Value=\"").append(i % 2 == 0 ? 1 : 0).append("\"/>\n");
+        return xml(sb.append("</Config>\n").toString());
+    }
+
+    private File xml(String content) throws IOException {
+        File f = folder.newFile();
+        Writer w = new FileWriter(f);
+        try {
+            w.write(content);
+        } finally {
+            w.close();
+        }
+        return f;
+    }
+}
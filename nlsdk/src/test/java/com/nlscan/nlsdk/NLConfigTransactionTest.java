@@ -0,0 +1,56 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NLConfigTransactionTest {
+    private static final NLConfigTransaction.Status ACK = NLConfigTransaction.Status.ACK;
+    private static final NLConfigTransaction.Status NAK = NLConfigTransaction.Status.NAK;
+    private static final NLConfigTransaction.Status ENQ = NLConfigTransaction.Status.ENQ;
+    private static final NLConfigTransaction.Status NONE = NLConfigTransaction.Status.NO_RESPONSE;
+
+    @Test
+    public void statusPerCommand() {
+        assertArrayEquals(new NLConfigTransaction.Status[]{ACK, NAK, ENQ},
+                NLConfigTransaction.parseStatus("128ENA1\u0006,MIN4\u0015;SCNMOD9\u0005", 3));
+    }
+
+    @Test
+    public void mergedCommandsShareTheSegmentStatus() {
+        assertArrayEquals(new NLConfigTransaction.Status[]{NAK, NAK, ACK},
+                NLConfigTransaction.parseStatus("128ENA1,MIN4\u0015;SCNMOD0\u0006", 3));
+    }
+
+    @Test
+    public void missingAnswersAreNoResponse() {
+        assertArrayEquals(new NLConfigTransaction.Status[]{ACK, NONE},
+                NLConfigTransaction.parseStatus("128ENA1\u0006", 2));
+        assertArrayEquals(new NLConfigTransaction.Status[]{NONE, NONE},
+                NLConfigTransaction.parseStatus(null, 2));
+        assertArrayEquals(new NLConfigTransaction.Status[]{ACK},
+                NLConfigTransaction.parseStatus("128ENA1\u0006;SCNMOD0\u0006", 1));
+    }
+
+    @Test
+    public void communicationCommandsAreSentLast() {
+        NLTestDevices.RecordingStream sim = new NLTestDevices.RecordingStream();
+        final List<String> frames = sim.frames;
+        NLDevice device = NLTestDevices.open(sim);
+        try {
+            NLConfigTransaction.Result r = device.beginConfig()
+                    .set("@232BAD8").set("#SCNMOD0").set("128ENA1").set("@128MIN4").commit();
+            assertTrue(r.isSuccess());
+            assertTrue(r.isPortSwitched());
+            assertEquals(Arrays.asList("@128ENA1,MIN4", "#SCNMOD0", "@232BAD8"), frames);
+
+            frames.clear();
+            assertFalse(device.beginConfig().set("#SCNMOD0").commit().isPortSwitched());
+        } finally {
+            device.close();
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.nlscan.nlsdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Command plumbing of NLDevice against the simulated transport
+ */
+public class NLDeviceTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private final NLTestDevices.RecordingListener listener = new NLTestDevices.RecordingListener();
+    private final List<String> barcodes = listener.barcodes;
+
+    private FaultyStream sim;
+    private NLDevice device;
+
+    /**
+     * Simulated scanner whose next write fails with an exception, or interrupts the writer like a cancelled coroutine
+     */
+    static class FaultyStream extends NLSimulatedStream {
+        volatile boolean fail;
+        volatile boolean interruptWriter;
+        volatile boolean decodeOnQuery;
+        volatile int writes;
+
+        @Override
+        public boolean writePacket(byte[] src, int pos, int length) {
+            if (fail) {
+                fail = false;
+                throw new IllegalStateException("write failed");
+            }
+            // The physical trigger is pressed while the query is sent
+            if (decodeOnQuery && new String(src, pos, length).contains("DEVQRY"))
+                super.writePacket(new byte[]{0x01, 0x54, 0x04}, 0, 3);
+            ++writes;
+            final boolean ok = super.writePacket(src, pos, length);
+            if (interruptWriter) {
+                interruptWriter = false;
+                Thread.currentThread().interrupt();
+            }
+            return ok;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        sim = new FaultyStream();
+        sim.setDecodeDelay(1);
+        device = NLTestDevices.open(sim, listener);
+    }
+
+    @After
+    public void tearDown() {
+        device.close();
+    }
+
+    @Test
+    public void failedCommandReleasesTheDevice() throws InterruptedException {
+        sim.fail = true;
+        try {
+            device.getConfig("SCNMOD*");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        // Another thread gets the device, and the barcodes are routed to the listener again
+        final String[] value = new String[1];
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                value[0] = device.getConfig("SCNMOD*");
+            }
+        });
+        t.start();
+        t.join(2000);
+        assertEquals("SCNMOD0", value[0]);
+        assertTrue(device.startScan());
+        awaitBarcodes(1);
+    }
+
+    @Test
+    public void failedTriggerReleasesTheDevice() throws InterruptedException {
+        sim.fail = true;
+        try {
+            device.startScan();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(device.checkHealth());
+    }
+
+    @Test
+    public void cancelledCallerSendsNothing() throws InterruptedException {
+        Thread.currentThread().interrupt();
+        try {
+            assertNull(device.getConfig("SCNMOD*"));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(0, sim.writes);
+        assertEquals("SCNMOD0", device.getConfig("SCNMOD*"));
+    }
+
+    @Test
+    public void replyOfCancelledCommandIsNotABarcode() throws InterruptedException {
+        sim.setResponseDelay(20);
+        sim.interruptWriter = true;
+        try {
+            assertNull(device.getConfig("SCNMOD*"));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        Thread.sleep(50);
+        assertTrue(barcodes.isEmpty());
+        assertEquals("SCNMOD0", device.getConfig("SCNMOD*"));
+    }
+
+    @Test
+    public void listenerCanSendCommands() throws InterruptedException {
+        // The simulator thread produces the responses as well, like the USB read thread
+        sim.setResponseDelay(5);
+        final Object[] results = new Object[2];
+        listener.onBarcode = new Runnable() {
+            @Override
+            public void run() {
+                listener.onBarcode = null;
+                results[0] = device.setConfig("@SCNMOD0");
+                results[1] = device.getConfig("SCNMOD*");
+            }
+        };
+        assertTrue(device.startScan());
+        awaitBarcodes(1);
+        assertEquals(Boolean.TRUE, results[0]);
+        assertEquals("SCNMOD0", results[1]);
+    }
+
+    @Test
+    public void segmentedBarcodePassesThroughThePipeline() throws InterruptedException, IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 250; ++i)
+            sb.append((char) ('A' + i % 26));
+        final String code = sb.toString();
+        sim.setBarcode(code.getBytes());
+        final List<String> segments = Collections.synchronizedList(new ArrayList<String>());
+        device.setSegmentListener(100, new NLDeviceStream.NLSegmentListener() {
+            @Override
+            public void onSegment(byte[] buff, int offset, int len, boolean last) {
+                segments.add(new String(buff, offset, len));
+            }
+        });
+        NLScanJournal journal = new NLScanJournal(folder.newFolder());
+        device.setScanJournal(journal);
+        device.getScanDedupe().setWindow(60000);
+        try {
+            assertTrue(device.startScan());
+            awaitSegments(segments, 3);
+            // The barcode ended the decode session of the trigger
+            assertEquals(1, device.heartbeat());
+            assertTrue(device.startScan());
+            awaitSegments(segments, 6);
+            assertTrue(barcodes.isEmpty());
+            assertEquals(1, device.getScanDedupe().getSuppressedCount());
+            NLScanJournal.Record r = journal.openCursor().next();
+            assertNotNull(r);
+            assertEquals(code, new String(r.getData()));
+            assertNull(journal.openCursor(r.getNextOffset()).next());
+        } finally {
+            device.setScanJournal(null);
+            journal.close();
+        }
+    }
+
+    @Test
+    public void heartbeatWaitsForTheBarcodeOfATrigger() throws InterruptedException {
+        sim.setDecodeDelay(50);
+        assertTrue(device.startScan());
+        assertEquals(-1, device.heartbeat());
+        awaitBarcodes(1);
+        assertEquals(1, device.heartbeat());
+    }
+
+    @Test
+    public void barcodeDuringHeartbeatReachesTheListener() throws InterruptedException {
+        sim.setDecodeDelay(0);
+        sim.setResponseDelay(5);
+        sim.decodeOnQuery = true;
+        assertEquals(1, device.heartbeat());
+        awaitBarcodes(1);
+        assertEquals("SIMULATED0123456789", barcodes.get(0));
+    }
+
+    @Test
+    public void heartbeatSkippedDuringContinuousScan() throws InterruptedException {
+        assertTrue(device.startContinuousScan(0));
+        assertEquals(-1, device.heartbeat());
+        assertTrue(device.stopContinuousScan());
+        // Unlike a device, the simulator may still decode the last trigger after answering the stop
+        Thread.sleep(20);
+        assertEquals(1, device.heartbeat());
+    }
+
+    @Test
+    public void stopResponseIsCutOutOfAMergedDelivery() throws InterruptedException {
+        device.close();
+        // The device answers the stop together with the barcodes around it, in one delivery
+        final NLDeviceStream.NLUsbListener[] routed = new NLDeviceStream.NLUsbListener[1];
+        NLSimulatedStream merging = new NLSimulatedStream() {
+            @Override
+            public void setUsbListener(NLDeviceStream.NLUsbListener listener) {
+                routed[0] = listener;
+                super.setUsbListener(listener);
+            }
+
+            @Override
+            public boolean writePacket(byte[] src, int pos, int length) {
+                if (!new String(src, pos, length).contains("SCNTRG0"))
+                    return super.writePacket(src, pos, length);
+                StringBuilder sb = new StringBuilder("CODE1\u0002");
+                sb.append(new String(src, pos + 1, length - 3)).append("\u0006;\u0003CODE2");
+                byte[] delivery = sb.toString().getBytes();
+                routed[0].actionUsbRecv(delivery, delivery.length);
+                return true;
+            }
+        };
+        device = NLTestDevices.open(merging, listener);
+        assertTrue(device.stopContinuousScan());
+        awaitBarcodes(1);
+        assertEquals("CODE1CODE2", barcodes.get(0));
+    }
+
+    /* ============================= private =====================================================*/
+    private static void awaitSegments(List<String> segments, int count) throws InterruptedException {
+        for (int i = 0; i < 200 && segments.size() < count; ++i)
+            Thread.sleep(5);
+        // The pipeline runs after the last segment
+        Thread.sleep(10);
+        assertEquals(count, segments.size());
+    }
+
+    private void awaitBarcodes(int count) throws InterruptedException {
+        for (int i = 0; i < 200 && barcodes.size() < count; ++i)
+            Thread.sleep(5);
+        assertEquals(count, barcodes.size());
+    }
+}
@@ -0,0 +1,59 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class NLFirmwareCheckpointTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void deviceReportingItsSerialSkipsProgrammedSections() throws IOException {
+        File dir = folder.newFolder();
+        NLFirmwareCheckpoint checkpoint = new NLFirmwareCheckpoint(dir);
+        final String key = checkpoint.deviceKey("SN123", "/dev/ttyS1");
+        assertEquals("SN123", key);
+        checkpoint.section = 1;
+        checkpoint.save(key, "abc");
+
+        // After a restart the device reports its serial number again, its programmed sections are skipped
+        NLFirmwareCheckpoint restarted = new NLFirmwareCheckpoint(dir);
+        assertTrue(restarted.load(restarted.deviceKey("SN123", "/dev/ttyS1"), "abc", true));
+        assertEquals(1, restarted.section);
+        assertEquals("/dev/ttyS2", restarted.deviceKey(null, "/dev/ttyS2"));
+        assertFalse(new File(dir, "checkpoint.properties.tmp").exists());
+    }
+
+    @Test
+    public void deviceOnlyKnownByItsPortStartsOver() throws IOException {
+        File dir = folder.newFolder();
+        NLFirmwareCheckpoint checkpoint = new NLFirmwareCheckpoint(dir);
+        final String key = checkpoint.deviceKey("SN123", "/dev/ttyS1");
+        checkpoint.section = 2;
+        checkpoint.save(key, "abc");
+
+        // A device in the bootloader on that port may be another one, it is probed but sent every section
+        NLFirmwareCheckpoint restarted = new NLFirmwareCheckpoint(dir);
+        final String bootKey = restarted.deviceKey(null, "/dev/ttyS1");
+        assertEquals("SN123", bootKey);
+        assertTrue(restarted.load(bootKey, "abc", false));
+        assertEquals(0, restarted.section);
+        assertFalse(restarted.hasProgress());
+    }
+
+    @Test
+    public void clearForgetsTheTransfer() {
+        NLFirmwareCheckpoint checkpoint = new NLFirmwareCheckpoint(null);
+        checkpoint.section = 2;
+        checkpoint.save("SN1", "abc");
+        checkpoint.clear("SN1", "abc");
+        assertFalse(checkpoint.load("SN1", "abc", true));
+        assertFalse(checkpoint.hasProgress());
+    }
+}
@@ -0,0 +1,151 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class NLFirmwarePackageTest {
+    private static final int KERN_OFFSET = 0x200;
+    private static final int KERN_LENGTH = 1300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parsesMcuPackage() {
+        byte[] data = mcuPackage();
+        NLFirmwarePackage pkg = NLFirmwarePackage.parse(data);
+        assertNotNull(pkg);
+        assertEquals(NLCommStream.DevClass.DEV_MCU, pkg.getFirmwareType());
+        assertEquals(1, pkg.getSectionCount());
+        NLFirmwarePackage.Section kern = pkg.getSection(0);
+        assertEquals("kern", kern.getType());
+        assertEquals(KERN_OFFSET, kern.getOffset());
+        assertEquals(KERN_LENGTH, kern.getLength());
+        assertEquals(3, kern.getFrames());
+        // The last frame is padded with zeros
+        CRC32 crc32 = new CRC32();
+        crc32.update(0x02);
+        crc32.update(data, KERN_OFFSET + 2 * NLFirmwarePackage.FRAME_SIZE, KERN_LENGTH - 2 * NLFirmwarePackage.FRAME_SIZE);
+        crc32.update(new byte[3 * NLFirmwarePackage.FRAME_SIZE - KERN_LENGTH]);
+        assertEquals((int) crc32.getValue(), kern.getFrameCrc(2));
+    }
+
+    @Test
+    public void transferIdDoesNotNeedTheHash() {
+        byte[] data = mcuPackage();
+        NLFirmwarePackage pkg = NLFirmwarePackage.parse(data);
+        assertEquals(NLFirmwarePackage.parse(data.clone()).getTransferId(), pkg.getTransferId());
+        data = mcuPackage();
+        data[KERN_OFFSET + 700] ^= 1;
+        assertNotEquals(pkg.getTransferId(), NLFirmwarePackage.parse(data).getTransferId());
+    }
+
+    @Test
+    public void rejectsInvalidPackage() {
+        byte[] data = mcuPackage();
+        data[0x5c] = 0;
+        assertNull(NLFirmwarePackage.parse(data));
+        assertNull(NLFirmwarePackage.parse(new byte[100]));
+    }
+
+    @Test
+    public void hashesOnDemandWithoutCache() {
+        byte[] data = mcuPackage();
+        NLFirmwarePackage pkg = NLFirmwarePackage.load(data, null);
+        assertEquals(NLFirmwarePackage.sha256(data), pkg.getSha256());
+    }
+
+    @Test
+    public void indexIsCachedAndReused() throws IOException {
+        byte[] data = mcuPackage();
+        File dir = folder.newFolder();
+        NLFirmwarePackage first = NLFirmwarePackage.load(data, dir);
+        File index = new File(dir, first.getSha256() + ".fwidx");
+        assertTrue(index.isFile());
+        NLFirmwarePackage cached = NLFirmwarePackage.readIndex(first.toIndex(), data, first.getSha256());
+        assertNotNull(cached);
+        assertEquals(first.getSection(0).getFrameCrc(1), cached.getSection(0).getFrameCrc(1));
+        assertEquals(first.getSha256(), NLFirmwarePackage.load(data, dir).getSha256());
+    }
+
+    @Test
+    public void corruptIndexIsDeletedAndRebuilt() throws IOException {
+        byte[] data = mcuPackage();
+        File dir = folder.newFolder();
+        NLFirmwarePackage pkg = NLFirmwarePackage.load(data, dir);
+        File index = new File(dir, pkg.getSha256() + ".fwidx");
+        byte[] content = pkg.toIndex();
+        // Flip a bit of a frame CRC, the index stays well formed but its checksum no longer matches
+        content[content.length - 8] ^= 1;
+        assertNull(NLFirmwarePackage.readIndex(content, data, pkg.getSha256()));
+        RandomAccessFile f = new RandomAccessFile(index, "rw");
+        try {
+            f.seek(content.length - 8);
+            f.write(content[content.length - 8]);
+        } finally {
+            f.close();
+        }
+        NLFirmwarePackage reloaded = NLFirmwarePackage.load(data, dir);
+        assertNotNull(reloaded);
+        assertEquals(pkg.getSection(0).getFrameCrc(2), reloaded.getSection(0).getFrameCrc(2));
+        assertNotNull(NLFirmwarePackage.readIndex(readAll(index), data, pkg.getSha256()));
+    }
+
+    @Test
+    public void indexNotMatchingPackageIsRejected() throws IOException {
+        byte[] data = mcuPackage();
+        NLFirmwarePackage pkg = NLFirmwarePackage.parse(data);
+        byte[] content = pkg.toIndex();
+        // Wrong last frame CRC with a valid checksum: the index is well formed but not the one of this package
+        content[content.length - 8] ^= 1;
+        CRC32 crc32 = new CRC32();
+        crc32.update(content, 0, content.length - 4);
+        writeBE(content, content.length - 4, (int) crc32.getValue());
+        assertNull(NLFirmwarePackage.readIndex(content, data, pkg.getSha256()));
+        // Same index for a package whose section table differs
+        byte[] other = mcuPackage();
+        writeLE(other, 0x5c + 4, KERN_LENGTH - 1);
+        assertNull(NLFirmwarePackage.readIndex(pkg.toIndex(), other, pkg.getSha256()));
+    }
+
+    /* ============================= private =====================================================*/
+    private static byte[] mcuPackage() {
+        byte[] data = new byte[KERN_OFFSET + KERN_LENGTH];
+        writeLE(data, 0, 0x89abcdef);
+        data[0x5c] = 1;
+        writeLE(data, 0x5c + 4, KERN_LENGTH);
+        writeLE(data, 0x5c + 8, KERN_OFFSET);
+        for (int i = KERN_OFFSET; i < data.length; ++i)
+            data[i] = (byte) (i * 31);
+        return data;
+    }
+
+    private static void writeLE(byte[] data, int pos, int value) {
+        for (int i = 0; i < 4; ++i)
+            data[pos + i] = (byte) (value >> (8 * i));
+    }
+
+    private static void writeBE(byte[] data, int pos, int value) {
+        for (int i = 0; i < 4; ++i)
+            data[pos + i] = (byte) (value >> (24 - 8 * i));
+    }
+
+    private static byte[] readAll(File f) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        try {
+            byte[] buf = new byte[(int) in.length()];
+            in.readFully(buf);
+            return buf;
+        } finally {
+            in.close();
+        }
+    }
+}
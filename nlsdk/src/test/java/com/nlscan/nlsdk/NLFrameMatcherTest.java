@@ -0,0 +1,52 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NLFrameMatcherTest {
+    @Test
+    public void ucsFrameEndsWithSemicolonEtx() {
+        NLFrameMatcher matcher = new NLFrameMatcher(NLFrameMatcher.Type.UCS);
+        matcher.reset();
+        byte[] frame = {0x02, 'S', 'C', 'N', 0x06, 0x3b, 0x03};
+        // The end marker is split across two chunks
+        assertFalse(matcher.feed(frame, 0, 6));
+        assertTrue(matcher.feed(frame, 6, 7));
+        assertTrue(matcher.isComplete());
+    }
+
+    @Test
+    public void ucsIgnoresEtxWithoutSemicolon() {
+        NLFrameMatcher matcher = new NLFrameMatcher(NLFrameMatcher.Type.UCS);
+        matcher.reset();
+        byte[] frame = {0x03, 'A', 0x03, 0x3b};
+        assertFalse(matcher.feed(frame, 0, frame.length));
+    }
+
+    @Test
+    public void paramFrameLengthComesFromTheHeader() {
+        NLFrameMatcher matcher = new NLFrameMatcher(NLFrameMatcher.Type.PARAM);
+        matcher.reset();
+        // | 0x02 | 0x05 | length 1 | '0' | CRC32 |, 9 bytes
+        byte[] frame = {0x02, 0x05, 0, 1, 0x30, 1, 2, 3, 4, 0x55};
+        assertFalse(matcher.feed(frame, 0, 3));
+        assertFalse(matcher.feed(frame, 3, 8));
+        assertTrue(matcher.feed(frame, 8, 10));
+    }
+
+    @Test
+    public void rawNeverCompletesAndResetStartsOver() {
+        NLFrameMatcher raw = new NLFrameMatcher(NLFrameMatcher.Type.RAW);
+        raw.reset();
+        assertFalse(raw.feed(new byte[64], 0, 64));
+
+        NLFrameMatcher ucs = new NLFrameMatcher(NLFrameMatcher.Type.UCS);
+        ucs.reset();
+        assertTrue(ucs.feed(new byte[]{0x3b, 0x03}, 0, 2));
+        ucs.reset();
+        assertFalse(ucs.isComplete());
+        // A semicolon of the previous frame does not complete the next one
+        assertFalse(ucs.feed(new byte[]{0x03}, 0, 1));
+    }
+}
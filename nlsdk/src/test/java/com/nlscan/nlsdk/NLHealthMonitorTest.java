@@ -0,0 +1,156 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ *  State transitions and heartbeat pacing of the health monitor, driven tick by tick with a fake clock
+ */
+public class NLHealthMonitorTest {
+    private static final int INTERVAL_MS = 5000;
+
+    private final FakeClock clock = new FakeClock();
+    private final ScriptedDevice device = new ScriptedDevice();
+    private final List<NLHealthMonitor.State> states = new ArrayList<>();
+    private NLHealthMonitor monitor;
+
+    static class FakeClock implements NLClock {
+        long now = 1000000;
+
+        @Override
+        public long millis() {
+            return now;
+        }
+    }
+
+    /**
+     * Device answering the heartbeats with the scripted result after the scripted latency
+     */
+    class ScriptedDevice extends NLDevice {
+        int result = 1;
+        int latencyMs = 10;
+        int beats;
+
+        ScriptedDevice() {
+            super(new NLSimulatedStream());
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        int heartbeat() {
+            ++beats;
+            clock.now += latencyMs;
+            return result;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        monitor = new NLHealthMonitor(device, clock);
+        monitor.setInterval(INTERVAL_MS);
+        monitor.setListener(new NLHealthMonitor.Listener() {
+            @Override
+            public void onStateChanged(NLHealthMonitor m, NLHealthMonitor.State state) {
+                states.add(state);
+            }
+        });
+    }
+
+    @Test
+    public void missedHeartbeatsDegradeThenFail() {
+        beat();
+        assertEquals(NLHealthMonitor.State.HEALTHY, monitor.getState());
+        device.result = 0;
+        beat();
+        assertEquals(NLHealthMonitor.State.DEGRADING, monitor.getState());
+        assertEquals(-1, monitor.getLastHeartbeatMillis());
+        beat();
+        beat();
+        assertEquals(NLHealthMonitor.State.FAILED, monitor.getState());
+        device.result = 1;
+        beat();
+        assertEquals(NLHealthMonitor.State.HEALTHY, monitor.getState());
+        assertEquals(5, monitor.getHeartbeats());
+        assertEquals(Arrays.asList(NLHealthMonitor.State.DEGRADING, NLHealthMonitor.State.FAILED,
+                NLHealthMonitor.State.HEALTHY), states);
+    }
+
+    @Test
+    public void slowHeartbeatDegrades() {
+        for (int i = 0; i < 5; ++i)
+            beat();
+        device.latencyMs = 50;
+        beat();
+        assertEquals(NLHealthMonitor.State.DEGRADING, monitor.getState());
+        assertEquals(50, monitor.getLastHeartbeatMillis());
+    }
+
+    @Test
+    public void failedCommandsDegrade() {
+        for (int i = 0; i < 10; ++i)
+            monitor.recordResponse(i != 0 && i != 5);
+        assertEquals(0.2f, monitor.getFailureRate(), 0.001f);
+        assertEquals(NLHealthMonitor.State.DEGRADING, monitor.getState());
+        // The failures leave the window of recent outcomes
+        for (int i = 0; i < 32; ++i)
+            monitor.recordResponse(true);
+        assertEquals(NLHealthMonitor.State.HEALTHY, monitor.getState());
+    }
+
+    @Test
+    public void slowDeviceIsProbedLessOften() {
+        monitor.setDutyCycle(0.01f);
+        device.latencyMs = 100;
+        monitor.tick();
+        assertEquals(1, device.beats);
+        // 100 ms per heartbeat at 1% duty cycle stretches the 5 s interval to 10 s
+        clock.now += INTERVAL_MS;
+        monitor.tick();
+        assertEquals(1, device.beats);
+        clock.now += INTERVAL_MS;
+        monitor.tick();
+        assertEquals(2, device.beats);
+    }
+
+    @Test
+    public void noHeartbeatWhileScanning() {
+        monitor.setIdleGap(1000);
+        monitor.tick();
+        assertEquals(1, device.beats);
+        clock.now += INTERVAL_MS;
+        monitor.onReceive();
+        clock.now += 500;
+        monitor.tick();
+        assertEquals(1, device.beats);
+        clock.now += 500;
+        monitor.tick();
+        assertEquals(2, device.beats);
+    }
+
+    @Test
+    public void busyDeviceSkipsTheHeartbeat() {
+        device.result = -1;
+        beat();
+        assertEquals(0, monitor.getHeartbeats());
+        assertEquals(1, monitor.getSkippedHeartbeats());
+        assertEquals(NLHealthMonitor.State.HEALTHY, monitor.getState());
+    }
+
+    /* ============================= private =====================================================*/
+    private void beat() {
+        final int before = device.beats;
+        clock.now += INTERVAL_MS;
+        monitor.tick();
+        assertEquals(before + 1, device.beats);
+    }
+}
@@ -0,0 +1,57 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Open/close soak against the simulated transport, the SDK must not leak a thread per reconnect
+ */
+public class NLIoThreadsSoakTest {
+    private static final int CYCLES = 50;
+
+    private final NLTestDevices.RecordingListener listener = new NLTestDevices.RecordingListener();
+
+    @Test
+    public void threadCountIsConstantAcrossReconnects() throws InterruptedException {
+        final int baseline = countThreads(-1);
+        NLSimulatedStream sim = new NLSimulatedStream();
+        sim.setDecodeDelay(1);
+        NLDevice device = new NLDevice(sim);
+        int opened = -1;
+        for (int i = 0; i < CYCLES; ++i) {
+            assertTrue(device.open(null, listener));
+            device.getHealthMonitor().start();
+            assertTrue(device.startContinuousScan(2));
+            Thread.sleep(10);
+            final int n = countThreads(-1);
+            device.stopContinuousScan();
+            if (opened < 0)
+                opened = n;
+            assertEquals("threads while open, cycle " + i, opened, n);
+            device.close();
+            assertEquals("threads after close, cycle " + i, baseline, countThreads(baseline));
+        }
+        assertTrue(opened > baseline);
+        assertFalse(listener.barcodes.isEmpty());
+    }
+
+    /**
+     * @param expected count to wait for, a stopped thread may take a moment to terminate; -1 not to wait
+     * @return Number of live SDK threads
+     */
+    private static int countThreads(int expected) throws InterruptedException {
+        int n = 0;
+        for (int wait = 0; wait < 100; ++wait) {
+            n = 0;
+            for (Thread t : Thread.getAllStackTraces().keySet()) {
+                if (t.isAlive() && t.getName().startsWith("NL"))
+                    ++n;
+            }
+            if (expected < 0 || n == expected)
+                break;
+            Thread.sleep(10);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,159 @@
+package com.nlscan.nlsdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Reassembly of barcodes from a fake packet source, packets are raw payload
+ */
+public class NLPacketAssemblerTest {
+    private static final int GAP_MS = 20;
+
+    private final List<byte[]> barcodes = Collections.synchronizedList(new ArrayList<byte[]>());
+    private final List<String> segments = Collections.synchronizedList(new ArrayList<String>());
+    private final ByteArrayOutputStream segmentData = new ByteArrayOutputStream();
+    private volatile Thread listenerThread;
+    private volatile int listenerSleepMs;
+    private NLPacketAssembler assembler;
+
+    @Before
+    public void setUp() {
+        assembler = new NLPacketAssembler(new NLPacketAssembler.Decoder() {
+            @Override
+            public int copyPayload(ByteBuffer packet, byte[] dst, int pos) {
+                System.arraycopy(packet.array(), 0, dst, pos, packet.position());
+                return packet.position();
+            }
+
+            @Override
+            public void recycle(ByteBuffer packet) {
+            }
+        });
+        assembler.setListener(new NLDeviceStream.NLUsbListener() {
+            @Override
+            public void actionUsbPlug(int event) {
+            }
+
+            @Override
+            public void actionUsbRecv(byte[] recvBuff, int len) {
+                listenerThread = Thread.currentThread();
+                byte[] copy = new byte[len];
+                System.arraycopy(recvBuff, 0, copy, 0, len);
+                barcodes.add(copy);
+                sleep(listenerSleepMs);
+            }
+        }, GAP_MS);
+        assembler.start("NLPacketAssemblerTest");
+    }
+
+    @After
+    public void tearDown() {
+        assembler.stop();
+    }
+
+    @Test
+    public void packetsOfABarcodeAreJoined() throws InterruptedException {
+        offer("0123456789", 4);
+        awaitBarcodes(1);
+        assertEquals("0123456789", new String(barcodes.get(0)));
+    }
+
+    @Test
+    public void idleGapSeparatesBarcodes() throws InterruptedException {
+        offer("FIRST", 64);
+        Thread.sleep(3 * GAP_MS);
+        offer("SECOND", 64);
+        awaitBarcodes(2);
+        assertEquals("FIRST", new String(barcodes.get(0)));
+        assertEquals("SECOND", new String(barcodes.get(1)));
+    }
+
+    @Test
+    public void listenerRunsOffTheProducerThread() throws InterruptedException {
+        listenerSleepMs = 200;
+        offer("SLOW", 64);
+        awaitBarcodes(1);
+        // The producer is not held up by the listener still running
+        final long start = System.nanoTime();
+        offer("NEXT", 64);
+        assertTrue(System.nanoTime() - start < 50000000L);
+        assertNotSame(Thread.currentThread(), listenerThread);
+        listenerSleepMs = 0;
+        awaitBarcodes(2);
+    }
+
+    @Test
+    public void largeBarcodeIsStreamedInSegments() throws InterruptedException {
+        assembler.setSegmentListener(100, new NLDeviceStream.NLSegmentListener() {
+            @Override
+            public void onSegment(byte[] buff, int offset, int len, boolean last) {
+                segments.add(len + (last ? " last" : ""));
+                segmentData.write(buff, offset, len);
+            }
+        });
+        final String data = pattern(250);
+        offer(data, 64);
+        for (int i = 0; i < 200 && segments.size() < 3; ++i)
+            Thread.sleep(5);
+        assertEquals(Arrays.asList("100", "100", "50 last"), segments);
+        assertEquals(data, segmentData.toString());
+        assertTrue(barcodes.isEmpty());
+        // A short barcode is still delivered whole
+        offer("SHORT", 64);
+        awaitBarcodes(1);
+        assertEquals(3, segments.size());
+    }
+
+    @Test
+    public void dataWithoutPauseIsDeliveredInBoundedParts() throws InterruptedException {
+        final int total = NLPacketAssembler.CODE_LENGTH_MAX + 10000;
+        offer(pattern(total), 4096);
+        awaitBarcodes(2);
+        assertTrue(barcodes.get(0).length <= NLPacketAssembler.CODE_LENGTH_MAX);
+        assertEquals(total, barcodes.get(0).length + barcodes.get(1).length);
+    }
+
+    /* ============================= private =====================================================*/
+    private void offer(String data, int packetSize) {
+        byte[] bytes = data.getBytes();
+        for (int pos = 0; pos < bytes.length; pos += packetSize) {
+            final int n = Math.min(packetSize, bytes.length - pos);
+            ByteBuffer packet = ByteBuffer.allocate(n);
+            packet.put(bytes, pos, n);
+            assembler.offer(packet);
+        }
+    }
+
+    private static String pattern(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; ++i)
+            sb.append((char) ('A' + i % 26));
+        return sb.toString();
+    }
+
+    private void awaitBarcodes(int count) throws InterruptedException {
+        for (int i = 0; i < 400 && barcodes.size() < count; ++i)
+            Thread.sleep(5);
+        assertEquals(count, barcodes.size());
+    }
+
+    private static void sleep(int ms) {
+        if (ms <= 0)
+            return;
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.nlscan.nlsdk;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Pseudo terminals of a Linux host for the serial tests, created and served by a python3 helper process.
+ *  link joins the terminals two by two like a null modem cable, scanners answers every trigger {0x01, 0x54, 0x04}
+ *  written to a terminal with a barcode after the decode delay, like a serial scanner. The terminals are raw and
+ *  live until close. The tests using them check isAvailable first and are skipped without python3 or without the
+ *  native serial libraries, which the JVM finds on java.library.path.
+ */
+public class NLPty implements Closeable {
+    private static final String SCRIPT = String.join("\n",
+            "import os, pty, select, sys, time, tty",
+            "mode, count = sys.argv[1], int(sys.argv[2])",
+            "masters = []",
+            "slaves = []",
+            "for i in range(count * 2 if mode == 'link' else count):",
+            "    m, s = pty.openpty()",
+            "    tty.setraw(s)",
+            "    masters.append(m)",
+            "    slaves.append(s)",
+            "    print(os.ttyname(s))",
+            "sys.stdout.flush()",
+            "peer = {}",
+            "for i in range(0, len(masters) - 1, 2):",
+            "    peer[masters[i]] = masters[i + 1]",
+            "    peer[masters[i + 1]] = masters[i]",
+            "barcode = sys.argv[3].encode() if mode == 'scanners' else b''",
+            "delay = int(sys.argv[4]) / 1000.0 if mode == 'scanners' else 0",
+            "rest = dict((m, b'') for m in masters)",
+            "due = []",
+            "while True:",
+            "    timeout = max(0, min(due)[0] - time.time()) if due else None",
+            "    ready = select.select(masters + [0], [], [], timeout)[0]",
+            "    if 0 in ready and not os.read(0, 1):",
+            "        break",
+            "    for fd in ready:",
+            "        if fd == 0:",
+            "            continue",
+            "        try:",
+            "            data = os.read(fd, 65536)",
+            "        except OSError:",
+            "            continue",
+            "        if mode == 'link':",
+            "            os.write(peer[fd], data)",
+            "            continue",
+            "        data = rest[fd] + data",
+            "        rest[fd] = data[-2:]",
+            "        for i in range(data.count(b'\\x01T\\x04')):",
+            "            due.append((time.time() + delay, fd))",
+            "    now = time.time()",
+            "    for d in [d for d in due if d[0] <= now]:",
+            "        due.remove(d)",
+            "        os.write(d[1], barcode)");
+
+    private static Boolean available;
+    private final Process process;
+    private final List<String> paths = new ArrayList<>();
+
+    /**
+     * @return true if python3 creates pseudo terminals and SerialPort loaded its native libraries
+     */
+    public static synchronized boolean isAvailable() {
+        if (available == null)
+            available = canRun() && canLoad();
+        return available;
+    }
+
+    /**
+     * @param pairs number of joined pairs, the terminals 2i and 2i + 1 are the two ends of pair i
+     */
+    public static NLPty link(int pairs) throws IOException {
+        return new NLPty(pairs * 2, "link", Integer.toString(pairs));
+    }
+
+    /**
+     * @param count         number of scanners, one terminal each
+     * @param barcode       barcode sent for every trigger
+     * @param decodeDelayMs time from the trigger to the barcode
+     */
+    public static NLPty scanners(int count, String barcode, int decodeDelayMs) throws IOException {
+        return new NLPty(count, "scanners", Integer.toString(count), barcode, Integer.toString(decodeDelayMs));
+    }
+
+    /**
+     * @return Path of a terminal, such as /dev/pts/3
+     */
+    public String getPath(int i) {
+        return paths.get(i);
+    }
+
+    /**
+     * Stop the helper, its terminals disappear
+     */
+    @Override
+    public void close() {
+        try {
+            process.getOutputStream().close();
+            process.waitFor();
+        } catch (IOException e) {
+            process.destroy();
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* ============================= private =====================================================*/
+    private NLPty(int count, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add("python3");
+        command.add("-c");
+        command.add(SCRIPT);
+        for (String arg : args)
+            command.add(arg);
+        process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        for (int i = 0; i < count; ++i) {
+            String path = in.readLine();
+            if (path == null) {
+                process.destroy();
+                throw new IOException("No pseudo terminal from the helper");
+            }
+            paths.add(path);
+        }
+    }
+
+    private static boolean canRun() {
+        try {
+            return new ProcessBuilder("python3", "-c", "import pty, select, tty").start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean canLoad() {
+        try {
+            Class.forName("com.aill.androidserialport.SerialPort");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.nlscan.nlsdk;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Trigger latency and decode throughput benchmark of a device.
+ *  Measures, from the write of the trigger, the time to the first received byte of the barcode and the time
+ *  to the invocation of the listener. The triggered scenario triggers one barcode at a time, the continuous
+ *  scenario runs startContinuousScan for a given time and reports the decodes per second, runParse measures
+ *  the scans per second NLBarcode parses, runScaling the decode rate of many devices scanning at once.
+ *  The benchmark enables the scan tracer of the device and replaces its trace listener while it runs.
+ *  NLScanBenchmarkTest runs it against NLSimulatedStream, and against the serial scanners of NLPty for runScaling:
+ *  <pre>
+ *  NLDevice device = new NLDevice(new NLSimulatedStream());
+ *  device.open(null, listener);
+ *  NLScanBenchmark.Result r = new NLScanBenchmark(device).runTriggered(1000, 500);
+ *  </pre>
+ */
+public class NLScanBenchmark {
+    public enum Metric {
+        FIRST_BYTE,     // trigger to the first packet of the barcode
+        CALLBACK        // trigger to the listener invoked
+    }
+
+    public static final class Result {
+        private final long[][] sorted;
+        private final int triggers;
+        private final int missed;
+        private final long elapsedNanos;
+
+        Result(long[][] sorted, int triggers, int missed, long elapsedNanos) {
+            this.sorted       = sorted;
+            this.triggers     = triggers;
+            this.missed       = missed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * @return Number of barcodes received
+         */
+        public int getCount() {
+            return sorted[0].length;
+        }
+
+        /**
+         * @return Number of triggers without barcode within the timeout, triggered scenario only
+         */
+        public int getMissed() {
+            return missed;
+        }
+
+        public int getTriggers() {
+            return triggers;
+        }
+
+        public float getDecodesPerSecond() {
+            return elapsedNanos <= 0 ? 0 : getCount() * 1e9f / elapsedNanos;
+        }
+
+        /**
+         * @param metric     measured interval
+         * @param percentile 0.0 to 1.0, e.g. 0.99
+         * @return Latency in nanoseconds, -1 if nothing was received
+         */
+        public long getNanos(Metric metric, float percentile) {
+            long[] s = sorted[metric.ordinal()];
+            if (s.length == 0)
+                return -1;
+            final int i = (int)(s.length * percentile);
+            return s[Math.max(0, Math.min(s.length - 1, i))];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("count=").append(getCount())
+                    .append(" missed=").append(missed)
+                    .append(" decodes/s=").append(getDecodesPerSecond());
+            for (Metric metric : Metric.values()) {
+                sb.append('\n').append(metric)
+                  .append(" p50=").append(getNanos(metric, 0.5f) / 1000)
+                  .append("us p90=").append(getNanos(metric, 0.9f) / 1000)
+                  .append("us p99=").append(getNanos(metric, 0.99f) / 1000)
+                  .append("us max=").append(getNanos(metric, 1f) / 1000).append("us");
+            }
+            return sb.toString();
+        }
+    }
+
+    private final NLDevice device;
+    // { trigger to first byte, trigger to callback } of every traced barcode
+    private final BlockingQueue<long[]> samples = new ArrayBlockingQueue<>(4096);
+
+    public NLScanBenchmark(NLDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * Trigger one barcode at a time
+     * @param triggers  number of triggers
+     * @param timeoutMs wait for the barcode of a trigger, a trigger without barcode counts as missed
+     */
+    public Result runTriggered(int triggers, int timeoutMs) {
+        final NLScanTracer tracer = begin();
+        int missed = 0;
+        long[][] values = new long[Metric.values().length][triggers];
+        int count = 0;
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < triggers && !Thread.currentThread().isInterrupted(); ++i) {
+                samples.clear();
+                if (!device.startScan()) {
+                    ++missed;
+                    continue;
+                }
+                long[] sample = samples.poll(timeoutMs, TimeUnit.MILLISECONDS);
+                if (sample == null) {
+                    ++missed;
+                    continue;
+                }
+                for (int m = 0; m < sample.length; ++m)
+                    values[m][count] = sample[m];
+                ++count;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            end(tracer);
+        }
+        return result(values, count, triggers, missed, System.nanoTime() - start);
+    }
+
+    /**
+     * Scan continuously for a given time
+     * @param durationMs  duration of the scenario
+     * @param retriggerMs see NLDeviceStream.startContinuousScan
+     */
+    public Result runContinuous(int durationMs, int retriggerMs) {
+        final NLScanTracer tracer = begin();
+        long[][] values = new long[Metric.values().length][1024];
+        int count = 0;
+        final long start = System.nanoTime();
+        final long deadline = start + durationMs * 1000000L;
+        try {
+            if (!device.startContinuousScan(retriggerMs))
+                return result(values, 0, 0, 0, 0);
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                long[] sample = samples.poll(deadline - now, TimeUnit.NANOSECONDS);
+                if (sample == null)
+                    break;
+                if (count == values[0].length) {
+                    for (int m = 0; m < values.length; ++m)
+                        values[m] = Arrays.copyOf(values[m], count * 2);
+                }
+                for (int m = 0; m < sample.length; ++m)
+                    values[m][count] = sample[m];
+                ++count;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            device.stopContinuousScan();
+            end(tracer);
+        }
+        return result(values, count, count, 0, System.nanoTime() - start);
+    }
+
+    /**
+     * Parse throughput of NLBarcode: header, symbology and every GS1 element of the sample, without the device
+     * @param sample     barcode as sent by the device, e.g. "]C101095011010209171719050810ABCD1234"
+     * @param format     layout of the sample
+     * @param iterations number of parsed scans, the first tenth is not timed
+     * @return Parsed scans per second
+     */
+    public static float runParse(byte[] sample, NLBarcode.Format format, int iterations) {
+        NLBarcode barcode = new NLBarcode(format);
+        final int warmup = iterations / 10;
+        long checksum = 0;
+        long start = 0;
+        for (int i = 0; i < iterations; ++i) {
+            if (i == warmup)
+                start = System.nanoTime();
+            barcode.wrap(sample, 0, sample.length);
+            checksum += barcode.getSymbology().ordinal() + barcode.getPayloadLength();
+            final int count = barcode.getAiCount();
+            for (int e = 0; e < count; ++e)
+                checksum += barcode.getAiValueLength(e);
+        }
+        final long elapsed = System.nanoTime() - start;
+        // Keep the parse results alive, so the loop is not optimized away
+        if (checksum == Long.MIN_VALUE)
+            throw new IllegalStateException();
+        return elapsed <= 0 ? 0 : (iterations - warmup) * 1e9f / elapsed;
+    }
+
+    /**
+     * Scan continuously on several opened devices at once, e.g. the serial scanners of a gateway served by the
+     * factory installed with NLIoThreads.setThreadFactory. Run with a growing number of devices, the decode rate
+     * grows with them as long as the threads of the devices keep up.
+     * @param devices     opened devices
+     * @param durationMs  duration of the scenario
+     * @param retriggerMs see NLDeviceStream.startContinuousScan
+     * @return Decodes per second of all devices together
+     */
+    public static float runScaling(NLDevice[] devices, int durationMs, int retriggerMs) {
+        final AtomicLong decodes = new AtomicLong();
+        final NLScanTracer.TraceListener counter = new NLScanTracer.TraceListener() {
+            @Override
+            public void onTrace(NLScanTracer.Trace trace) {
+                decodes.incrementAndGet();
+            }
+        };
+        for (NLDevice device : devices) {
+            device.getScanTracer().setTraceListener(counter);
+            device.getScanTracer().setEnabled(true);
+        }
+        long count   = 0;
+        long elapsed = 0;
+        final long start = System.nanoTime();
+        try {
+            for (NLDevice device : devices)
+                device.startContinuousScan(retriggerMs);
+            Thread.sleep(durationMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            count   = decodes.get();
+            elapsed = System.nanoTime() - start;
+            for (NLDevice device : devices) {
+                device.stopContinuousScan();
+                end(device.getScanTracer());
+            }
+        }
+        return elapsed <= 0 ? 0 : count * 1e9f / elapsed;
+    }
+
+    /* ============================= private =====================================================*/
+    private NLScanTracer begin() {
+        final NLScanTracer tracer = device.getScanTracer();
+        samples.clear();
+        tracer.setTraceListener(new NLScanTracer.TraceListener() {
+            @Override
+            public void onTrace(NLScanTracer.Trace trace) {
+                // Called before the continuous scan triggers again, the latest trigger is the one of this barcode
+                final long trigger = device.getLastTriggerNanos();
+                if (trigger == 0)
+                    return;
+                samples.offer(new long[] {trace.getFirstPacketNanos() - trigger, trace.getInvokedNanos() - trigger});
+            }
+        });
+        tracer.setEnabled(true);
+        return tracer;
+    }
+
+    private static void end(NLScanTracer tracer) {
+        tracer.setTraceListener(null);
+        tracer.setEnabled(false);
+    }
+
+    private static Result result(long[][] values, int count, int triggers, int missed, long elapsedNanos) {
+        long[][] sorted = new long[values.length][];
+        for (int m = 0; m < values.length; ++m) {
+            sorted[m] = Arrays.copyOf(values[m], count);
+            Arrays.sort(sorted[m]);
+        }
+        return new Result(sorted, triggers, missed, elapsedNanos);
+    }
+}
@@ -0,0 +1,73 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Short runs of the benchmarks against the simulated transport, and the scaling against serial scanners on
+ *  pseudo terminals
+ */
+public class NLScanBenchmarkTest {
+    @Test
+    public void triggeredLatency() {
+        NLDevice device = NLTestDevices.openSimulated(5);
+        try {
+            NLScanBenchmark.Result r = new NLScanBenchmark(device).runTriggered(20, 500);
+            assertEquals(20, r.getCount());
+            assertEquals(0, r.getMissed());
+            // The simulator decodes 5ms after the trigger
+            assertTrue(r.getNanos(NLScanBenchmark.Metric.CALLBACK, 0.5f) >= 4000000L);
+            assertTrue(r.getNanos(NLScanBenchmark.Metric.FIRST_BYTE, 0.5f) <= r.getNanos(NLScanBenchmark.Metric.CALLBACK, 0.5f));
+        } finally {
+            device.close();
+        }
+    }
+
+    @Test
+    public void decodeRateScalesWithSerialDevices() throws IOException {
+        Assume.assumeTrue(NLPty.isAvailable());
+        final float one  = scaling(1);
+        final float many = scaling(16);
+        assertTrue("1 device " + one + "/s", one > 0);
+        // Loose bound, the devices share the CPUs of the test host
+        assertTrue("1 device " + one + "/s, 16 devices " + many + "/s", many > one * 4);
+    }
+
+    @Test
+    public void parseRate() {
+        byte[] sample = "]C101095011010209171719050810ABCD1234".getBytes();
+        assertTrue(NLScanBenchmark.runParse(sample, new NLBarcode.Format(), 10000) > 0);
+    }
+
+    private static float scaling(int count) throws IOException {
+        NLPty scanners = NLPty.scanners(count, "SERIAL0123456789", 5);
+        NLDevice[] devices = new NLDevice[count];
+        try {
+            for (int i = 0; i < count; ++i)
+                devices[i] = openSerial(scanners.getPath(i));
+            return NLScanBenchmark.runScaling(devices, 500, 0);
+        } finally {
+            for (NLDevice device : devices) {
+                if (device != null)
+                    device.close();
+            }
+            scanners.close();
+        }
+    }
+
+    private static NLDevice openSerial(String path) {
+        NLUartStream stream = new NLUartStream();
+        stream.setBlockingRead(true);
+        NLDevice device = new NLDevice(stream);
+        assertTrue(device.open(path, 115200, new NLDeviceStream.NLUartListener() {
+            @Override
+            public void actionRecv(byte[] recvBuff, int len) {
+            }
+        }));
+        return device;
+    }
+}
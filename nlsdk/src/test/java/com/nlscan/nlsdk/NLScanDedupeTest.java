@@ -0,0 +1,94 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *  The barcodes arrive at the time of a fake clock, the window is crossed by moving it
+ */
+public class NLScanDedupeTest {
+    private final NLHealthMonitorTest.FakeClock clock = new NLHealthMonitorTest.FakeClock();
+    private NLScanDedupe dedupe;
+
+    @Before
+    public void setUp() {
+        dedupe = new NLScanDedupe(clock);
+    }
+
+    @Test
+    public void disabledByDefault() {
+        byte[] data = "ABC".getBytes();
+        assertFalse(dedupe.isDuplicate(data, data.length));
+        assertFalse(dedupe.isDuplicate(data, data.length));
+        assertEquals(0, dedupe.getPassedCount());
+    }
+
+    @Test
+    public void duplicateWithinWindowIsDropped() {
+        dedupe.setWindow(1000);
+        byte[] data = "ABC".getBytes();
+        assertFalse(dedupe.isDuplicate(data, data.length));
+        assertTrue(dedupe.isDuplicate(data, data.length));
+        assertFalse(dedupe.isDuplicate("ABD".getBytes(), 3));
+        assertEquals(2, dedupe.getPassedCount());
+        assertEquals(1, dedupe.getSuppressedCount());
+    }
+
+    @Test
+    public void duplicatePassesAgainAfterTheWindow() {
+        dedupe.setWindow(1000);
+        byte[] data = "ABC".getBytes();
+        assertFalse(dedupe.isDuplicate(data, data.length));
+        clock.now += 999;
+        assertTrue(dedupe.isDuplicate(data, data.length));
+        // The window runs from the barcode that passed, not from the dropped duplicate
+        clock.now += 1;
+        assertFalse(dedupe.isDuplicate(data, data.length));
+        assertTrue(dedupe.isDuplicate(data, data.length));
+        assertEquals(2, dedupe.getPassedCount());
+        assertEquals(2, dedupe.getSuppressedCount());
+    }
+
+    @Test
+    public void onlyTheBarcodeLengthIsCompared() {
+        dedupe.setWindow(1000);
+        assertFalse(dedupe.isDuplicate("ABCX".getBytes(), 3));
+        assertTrue(dedupe.isDuplicate("ABCY".getBytes(), 3));
+        assertFalse(dedupe.isDuplicate("ABCY".getBytes(), 4));
+    }
+
+    @Test
+    public void prefixIsNotADuplicate() {
+        assertNotEquals(NLScanDedupe.hash("AB".getBytes(), 2), NLScanDedupe.hash("AB\0".getBytes(), 3));
+    }
+
+    @Test
+    public void fullRingEvictsTheOldest() {
+        dedupe.setWindow(1000);
+        dedupe.setCapacity(2);
+        assertFalse(dedupe.isDuplicate("A".getBytes(), 1));
+        assertFalse(dedupe.isDuplicate("B".getBytes(), 1));
+        assertFalse(dedupe.isDuplicate("C".getBytes(), 1));
+        // A was evicted by C, B is still remembered
+        assertTrue(dedupe.isDuplicate("B".getBytes(), 1));
+        assertFalse(dedupe.isDuplicate("A".getBytes(), 1));
+    }
+
+    @Test
+    public void clearForgetsButKeepsCounters() {
+        dedupe.setWindow(1000);
+        assertFalse(dedupe.isDuplicate("A".getBytes(), 1));
+        dedupe.clear();
+        assertFalse(dedupe.isDuplicate("A".getBytes(), 1));
+        assertEquals(2, dedupe.getPassedCount());
+        dedupe.resetCounters();
+        assertEquals(0, dedupe.getPassedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacityIsRejected() {
+        dedupe.setCapacity(0);
+    }
+}
@@ -0,0 +1,178 @@
+package com.nlscan.nlsdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class NLScanJournalTest {
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private NLScanJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("journal");
+        journal = new NLScanJournal(dir, SEGMENT_SIZE, 10000);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Test
+    public void appendedRecordsAreReadInOrder() throws IOException {
+        journal.append("dev0", "ABC".getBytes(), 3, 1000);
+        journal.append("dev1", "12345".getBytes(), 5, 2000);
+
+        NLScanJournal.Cursor cursor = journal.openCursor();
+        NLScanJournal.Record r = cursor.next();
+        assertEquals("dev0", r.getDeviceName());
+        assertEquals(1000, r.getTimeMillis());
+        assertArrayEquals("ABC".getBytes(), r.getData());
+        r = cursor.next();
+        assertEquals("dev1", r.getDeviceName());
+        assertArrayEquals("12345".getBytes(), r.getData());
+        assertNull(cursor.next());
+        assertEquals(journal.getEndOffset(), cursor.getOffset());
+    }
+
+    @Test
+    public void onlyTheBarcodeLengthIsJournaled() throws IOException {
+        byte[] buffer = "ABCDEFGH".getBytes();
+        journal.append("dev", buffer, 4, 0);
+        assertArrayEquals("ABCD".getBytes(), journal.openCursor().next().getData());
+    }
+
+    @Test
+    public void cursorFollowsRotatedSegments() throws IOException {
+        byte[] data = new byte[200];
+        for (int i = 0; i < 10; ++i) {
+            data[0] = (byte) i;
+            assertTrue(journal.append("dev", data, data.length, i) >= 0);
+        }
+        assertTrue(dir.list().length > 1);
+        NLScanJournal.Cursor cursor = journal.openCursor();
+        for (int i = 0; i < 10; ++i)
+            assertEquals(i, cursor.next().getData()[0]);
+        assertNull(cursor.next());
+    }
+
+    @Test
+    public void tooLargeRecordIsRejected() {
+        byte[] data = new byte[SEGMENT_SIZE];
+        assertEquals(-1, journal.append("dev", data, data.length, 0));
+    }
+
+    @Test
+    public void acknowledgedRecordsAreNotReplayed() throws IOException {
+        journal.append("dev", "A".getBytes(), 1, 0);
+        journal.append("dev", "B".getBytes(), 1, 0);
+        NLScanJournal.Record first = journal.openCursor().next();
+        journal.acknowledge(first.getNextOffset());
+        journal.close();
+
+        journal = new NLScanJournal(dir, SEGMENT_SIZE, 10000);
+        assertEquals(first.getNextOffset(), journal.getAckOffset());
+        NLScanJournal.Cursor cursor = journal.openCursor();
+        assertArrayEquals("B".getBytes(), cursor.next().getData());
+        assertNull(cursor.next());
+    }
+
+    @Test
+    public void recoveryKeepsCompleteRecordsAndAppendsAfterThem() throws IOException {
+        journal.append("dev", "A".getBytes(), 1, 0);
+        journal.close();
+        journal = new NLScanJournal(dir, SEGMENT_SIZE, 10000);
+        journal.append("dev", "B".getBytes(), 1, 0);
+
+        NLScanJournal.Cursor cursor = journal.openCursor();
+        assertArrayEquals("A".getBytes(), cursor.next().getData());
+        assertArrayEquals("B".getBytes(), cursor.next().getData());
+        assertNull(cursor.next());
+    }
+
+    @Test
+    public void cursorSkipsCorruptedLength() throws IOException {
+        final long offset = journal.append("dev", "A".getBytes(), 1, 0);
+        corruptLength(offset);
+        assertNull(journal.openCursor(offset).next());
+    }
+
+    @Test
+    public void recoveryStopsAtCorruptedLength() throws IOException {
+        final long offset = journal.append("dev", "A".getBytes(), 1, 0);
+        journal.close();
+        corruptLength(offset);
+        journal = new NLScanJournal(dir, SEGMENT_SIZE, 10000);
+        assertNull(journal.openCursor(offset).next());
+        assertEquals(offset, journal.getEndOffset());
+    }
+
+    @Test
+    public void cursorSkipsRecordWithBadChecksum() throws IOException {
+        final long offset = journal.append("dev", "A".getBytes(), 1, 0);
+        journal.append("dev", "B".getBytes(), 1, 0);
+        // Last byte of the body of the first record
+        RandomAccessFile raf = new RandomAccessFile(segment(0), "rw");
+        try {
+            raf.seek(offset + 8 + 10 + 3);
+            raf.write('X');
+        } finally {
+            raf.close();
+        }
+        NLScanJournal.Cursor cursor = journal.openCursor(offset);
+        assertArrayEquals("B".getBytes(), cursor.next().getData());
+        assertNull(cursor.next());
+        cursor.close();
+    }
+
+    @Test
+    public void rotationTakesTheSegmentMappedAhead() throws IOException, InterruptedException {
+        File spare = new File(dir, "next.spare");
+        for (int i = 0; i < 200 && !spare.isFile(); ++i)
+            Thread.sleep(5);
+        assertTrue(spare.isFile());
+        byte[] data = new byte[200];
+        long last = -1;
+        for (int i = 0; i < 5; ++i) {
+            data[0] = (byte) i;
+            last = journal.append("dev", data, data.length, i);
+        }
+        // The spare was renamed after the offset of the first record it holds
+        assertTrue(segment(last).isFile());
+        NLScanJournal.Cursor cursor = journal.openCursor();
+        for (int i = 0; i < 5; ++i)
+            assertEquals(i, cursor.next().getData()[0]);
+        assertNull(cursor.next());
+        cursor.close();
+        journal.close();
+        assertFalse(spare.exists());
+    }
+
+    private File segment(long base) {
+        return new File(dir, String.format("%020d.seg", base));
+    }
+
+    private void corruptLength(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, String.format("%020d.seg", 0)), "rw");
+        try {
+            raf.seek(offset);
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+    }
+}
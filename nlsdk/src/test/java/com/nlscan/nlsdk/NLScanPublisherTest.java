@@ -0,0 +1,152 @@
+package com.nlscan.nlsdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ *  Scan stream of a device driven by the simulated scanner
+ */
+public class NLScanPublisherTest {
+    private NLSimulatedStream sim;
+    private NLDevice device;
+    private NLScanPublisher publisher;
+    private final Recorder recorder = new Recorder();
+
+    /**
+     * Subscriber keeping its events, the demand is requested by the test
+     */
+    static class Recorder implements NLScanPublisher.Subscriber {
+        final List<NLScanEvent> events = Collections.synchronizedList(new ArrayList<NLScanEvent>());
+        volatile NLScanPublisher.Subscription subscription;
+        volatile boolean completed;
+        volatile Throwable error;
+
+        @Override
+        public void onSubscribe(NLScanPublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(NLScanEvent event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        sim = new NLSimulatedStream();
+        sim.setDecodeDelay(1);
+        device = NLTestDevices.open(sim);
+        publisher = device.getScanPublisher();
+        publisher.subscribe(recorder);
+    }
+
+    @After
+    public void tearDown() {
+        device.close();
+    }
+
+    @Test
+    public void eventsFollowTheDemand() throws InterruptedException {
+        recorder.subscription.request(1);
+        scan("A");
+        scan("B");
+        scan("C");
+        awaitEvents(1);
+        Thread.sleep(20);
+        assertEquals(1, recorder.events.size());
+        // The others wait in the buffer of the subscriber
+        recorder.subscription.request(2);
+        awaitEvents(3);
+        assertEquals("A", recorder.events.get(0).toString());
+        assertEquals("C", recorder.events.get(2).toString());
+        assertEquals(0, publisher.getDroppedCount());
+    }
+
+    @Test
+    public void fullBufferDropsNewBarcodes() throws InterruptedException {
+        NLScanPublisher small = new NLScanPublisher(device, 2);
+        Recorder slow = new Recorder();
+        small.subscribe(slow);
+        for (int i = 0; i < 5; ++i)
+            small.publish(("CODE" + i).getBytes(), 5);
+        assertEquals(3, small.getDroppedCount());
+        slow.subscription.request(Long.MAX_VALUE);
+        for (int i = 0; i < 200 && slow.events.size() < 2; ++i)
+            Thread.sleep(5);
+        assertEquals(2, slow.events.size());
+        assertEquals("CODE1", slow.events.get(1).toString());
+    }
+
+    @Test
+    public void eventsStayValidAfterOnNext() throws InterruptedException {
+        recorder.subscription.request(Long.MAX_VALUE);
+        scan("FIRST");
+        awaitEvents(1);
+        scan("SECOND");
+        awaitEvents(2);
+        assertEquals("FIRST", recorder.events.get(0).toString());
+        assertSame(device, recorder.events.get(0).getDevice());
+        assertEquals("SECOND", recorder.events.get(1).toString());
+    }
+
+    @Test
+    public void cancelledSubscriberReceivesNothingMore() throws InterruptedException {
+        recorder.subscription.request(Long.MAX_VALUE);
+        scan("A");
+        awaitEvents(1);
+        recorder.subscription.cancel();
+        assertEquals(0, publisher.getSubscriberCount());
+        scan("B");
+        Thread.sleep(20);
+        assertEquals(1, recorder.events.size());
+        assertFalse(recorder.completed);
+    }
+
+    @Test
+    public void closeCompletesAfterTheQueuedEvents() throws InterruptedException {
+        scan("A");
+        scan("B");
+        Thread.sleep(20);
+        device.close();
+        assertEquals(0, publisher.getSubscriberCount());
+        assertFalse(recorder.completed);
+        recorder.subscription.request(Long.MAX_VALUE);
+        awaitEvents(2);
+        for (int i = 0; i < 200 && !recorder.completed; ++i)
+            Thread.sleep(5);
+        assertTrue(recorder.completed);
+        assertNull(recorder.error);
+    }
+
+    /* ============================= private =====================================================*/
+    private void scan(String code) throws InterruptedException {
+        sim.setBarcode(code.getBytes());
+        assertTrue(device.startScan());
+        // One barcode per trigger, the next trigger waits for it
+        Thread.sleep(20);
+    }
+
+    private void awaitEvents(int count) throws InterruptedException {
+        for (int i = 0; i < 200 && recorder.events.size() < count; ++i)
+            Thread.sleep(5);
+        assertEquals(count, recorder.events.size());
+    }
+}
@@ -0,0 +1,277 @@
+package com.nlscan.nlsdk;
+
+import android.content.Context;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Simulated scanner for benchmarks and tests without hardware, open it with NLDevice.open(context, listener).
+ *  A trigger {0x01, 0x54, 0x04} decodes one barcode after the decode delay, setRate makes the scanner decode
+ *  continuously like a presentation scanner. UCS commands are acknowledged: settings echo with &lt;ACK&gt;,
+ *  queries such as DEVQRY* answer with the value 0. Barcodes are delivered like a USB device: the thread of the
+ *  simulator produces both the barcodes and the command responses, the barcodes are split into packets and joined
+ *  again by an NLPacketAssembler on a delivery thread, and are routed to the command reader while the receive
+ *  routing is disabled.
+ */
+public class NLSimulatedStream implements NLCommStream {
+    private static final byte[] TRIGGER = {0x01, 0x54, 0x04};
+    private static final int PACKET_SIZE = 64;
+    private static final int IDLE_GAP_MS = 1;
+
+    private final BlockingQueue<byte[]> responseQ = new ArrayBlockingQueue<>(64);
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> continuous;
+    private final NLPacketAssembler assembler = new NLPacketAssembler(new NLPacketAssembler.Decoder() {
+        @Override
+        public int copyPayload(ByteBuffer packet, byte[] dst, int pos) {
+            System.arraycopy(packet.array(), 0, dst, pos, packet.position());
+            return packet.position();
+        }
+
+        @Override
+        public void recycle(ByteBuffer packet) {
+        }
+    });
+    private volatile boolean isOpen = false;
+    private volatile boolean routing = true;
+    private volatile int decodeDelayMs = 30;
+    private volatile int responseDelayMs = 0;
+    private volatile byte[] barcode = "SIMULATED0123456789".getBytes();
+    private byte[] pending;          // unread rest of the current response
+    private int pendingPos;
+
+    /**
+     * @param ms time from the trigger to the decoded barcode
+     */
+    public void setDecodeDelay(int ms) {
+        decodeDelayMs = Math.max(0, ms);
+    }
+
+    /**
+     * @param ms time from a command to its response, 0 to answer while the command is written
+     */
+    public void setResponseDelay(int ms) {
+        responseDelayMs = Math.max(0, ms);
+    }
+
+    public void setBarcode(byte[] data) {
+        barcode = data.clone();
+    }
+
+    /**
+     * @param perSecond barcodes decoded per second without trigger, 0 to decode only on triggers
+     */
+    public synchronized void setRate(int perSecond) {
+        if (continuous != null) {
+            continuous.cancel(false);
+            continuous = null;
+        }
+        if (perSecond > 0 && executor != null) {
+            final long period = 1000000L / perSecond;
+            continuous = executor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    decode();
+                }
+            }, period, period, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    @Override
+    public synchronized boolean open(Context context) {
+        if (isOpen)
+            return true;
+        executor = Executors.newSingleThreadScheduledExecutor(NLIoThreads.factory("NLSimulated"));
+        assembler.start("NLSimulated-deliver");
+        responseQ.clear();
+        pending = null;
+        isOpen = true;
+        return true;
+    }
+
+    @Override
+    public boolean open(String pathName, int baudrate) {
+        return open(null);
+    }
+
+    @Override
+    public void close(Context context) {
+        ScheduledExecutorService e;
+        synchronized (this) {
+            if (!isOpen)
+                return;
+            isOpen = false;
+            continuous = null;
+            e = executor;
+            executor = null;
+        }
+        NLIoThreads.shutdown(e);
+        assembler.stop();
+    }
+
+    @Override
+    public void setUsbListener(NLDeviceStream.NLUsbListener listener) {
+        assembler.setListener(listener, IDLE_GAP_MS);
+    }
+
+    @Override
+    public void setSegmentListener(int size, NLDeviceStream.NLSegmentListener listener) {
+        assembler.setSegmentListener(size, listener);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    @Override
+    public boolean isPlug() {
+        return isOpen;
+    }
+
+    @Override
+    public void setReadAck(boolean flag) {
+        routing = flag;
+    }
+
+    @Override
+    public String getDeviceName() {
+        return "simulated";
+    }
+
+    @Override
+    public boolean writePacket(byte[] src, int pos, int length) {
+        if (!isOpen || src == null || length <= 0)
+            return false;
+        if (length == TRIGGER.length && src[pos] == TRIGGER[0] && src[pos + 1] == TRIGGER[1] && src[pos + 2] == TRIGGER[2]) {
+            ScheduledExecutorService e = executor;
+            if (e != null) {
+                e.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        decode();
+                    }
+                }, decodeDelayMs, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        }
+        // UCS: | 0x7E | 0x01 | "0000" | '@' or '#' | command | ';' | ETX |
+        if (length > 9 && src[pos] == 0x7e && src[pos + length - 1] == 3) {
+            final byte prefix = src[pos + 6];
+            final String commands = new String(src, pos + 7, length - 9);
+            ScheduledExecutorService e = executor;
+            if (responseDelayMs > 0 && e != null) {
+                e.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        respond(prefix, commands);
+                    }
+                }, responseDelayMs, TimeUnit.MILLISECONDS);
+            } else {
+                respond(prefix, commands);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean writePacket(ByteBuffer[] srcs) {
+        int total = 0;
+        for (ByteBuffer b : srcs)
+            total += b.remaining();
+        byte[] data = new byte[total];
+        int pos = 0;
+        for (ByteBuffer b : srcs) {
+            final int n = b.remaining();
+            b.get(data, pos, n);
+            pos += n;
+        }
+        return writePacket(data, 0, total);
+    }
+
+    @Override
+    public int readPacket(byte[] dst, int pos, int length, int timeout) {
+        try {
+            if (pending == null) {
+                pending = responseQ.poll(timeout, TimeUnit.MILLISECONDS);
+                pendingPos = 0;
+                if (pending == null)
+                    return 0;
+            }
+            final int n = Math.min(length, pending.length - pendingPos);
+            System.arraycopy(pending, pendingPos, dst, pos, n);
+            pendingPos += n;
+            if (pendingPos == pending.length)
+                pending = null;
+            return n;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    @Override
+    public int flushInput() {
+        int total = pending == null ? 0 : pending.length - pendingPos;
+        pending = null;
+        byte[] r;
+        while ((r = responseQ.poll()) != null)
+            total += r.length;
+        return total;
+    }
+
+    /* ============================= private =====================================================*/
+    private void decode() {
+        final byte[] data = barcode;
+        if (!routing) {
+            responseQ.offer(data.clone());
+            return;
+        }
+        deliver(data);
+    }
+
+    /**
+     * Send data to the host in USB packets
+     */
+    private void deliver(byte[] data) {
+        for (int pos = 0; pos < data.length; pos += PACKET_SIZE) {
+            final int n = Math.min(PACKET_SIZE, data.length - pos);
+            ByteBuffer packet = ByteBuffer.allocate(n);
+            packet.put(data, pos, n);
+            assembler.offer(packet);
+        }
+    }
+
+    /**
+     * Answer every command of a batch like "128ENA1,MIN4;SCNMOD*" with &lt;ACK&gt;
+     */
+    private void respond(byte prefix, String commands) {
+        StringBuilder sb = new StringBuilder();
+        for (String segment : commands.split(";")) {
+            if (sb.length() > 0)
+                sb.append(';');
+            sb.append(segment.endsWith("*") ? segment.substring(0, segment.length() - 1) + "0" : segment).append('\u0006');
+        }
+        byte[] body = sb.toString().getBytes();
+        byte[] response = new byte[7 + body.length + 2];
+        response[0] = 0x02;
+        response[1] = 0x01;
+        response[2] = response[3] = response[4] = response[5] = 0x30;
+        response[6] = prefix;
+        System.arraycopy(body, 0, response, 7, body.length);
+        response[response.length - 2] = 0x3b;
+        response[response.length - 1] = 0x03;
+        if (routing) {
+            // A fire-and-forget command is answered while the barcodes are routed, like a real device
+            deliver(response);
+        } else {
+            responseQ.offer(response);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.nlscan.nlsdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ *  Listeners and opened devices shared by the unit tests, the devices usually run on an NLSimulatedStream
+ */
+final class NLTestDevices {
+    /**
+     * Listener ignoring the plug events and the barcodes
+     */
+    static final NLDeviceStream.NLUsbListener IGNORE = new NLDeviceStream.NLUsbListener() {
+        @Override
+        public void actionUsbPlug(int event) {
+        }
+
+        @Override
+        public void actionUsbRecv(byte[] recvBuff, int len) {
+        }
+    };
+
+    /**
+     * Listener keeping the received barcodes as strings
+     */
+    static class RecordingListener implements NLDeviceStream.NLUsbListener {
+        final List<String> barcodes = Collections.synchronizedList(new ArrayList<String>());
+        // Run in the listener before the barcode is kept, e.g. to block the receive pipeline
+        volatile Runnable onBarcode;
+
+        @Override
+        public void actionUsbPlug(int event) {
+        }
+
+        @Override
+        public void actionUsbRecv(byte[] recvBuff, int len) {
+            Runnable r = onBarcode;
+            if (r != null)
+                r.run();
+            barcodes.add(new String(recvBuff, 0, len));
+        }
+    }
+
+    /**
+     * Simulated scanner keeping the UCS commands written to it, such as "@128ENA1,MIN4;SCNMOD0"
+     */
+    static class RecordingStream extends NLSimulatedStream {
+        final List<String> frames = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public boolean writePacket(byte[] src, int pos, int length) {
+            // | 0x7E | 0x01 | "0000" | '@' or '#' | command | ';' | ETX |
+            if (length > 9 && src[pos] == 0x7e)
+                frames.add(new String(src, pos + 6, length - 8));
+            return super.writePacket(src, pos, length);
+        }
+    }
+
+    private NLTestDevices() {
+    }
+
+    /**
+     * @return Device opened on the stream, its barcodes are ignored
+     */
+    static NLDevice open(NLCommStream stream) {
+        return open(stream, IGNORE);
+    }
+
+    static NLDevice open(NLCommStream stream, NLDeviceStream.NLUsbListener listener) {
+        NLDevice device = new NLDevice(stream);
+        assertTrue(device.open(null, listener));
+        return device;
+    }
+
+    /**
+     * @param decodeDelayMs time from the trigger to the barcode
+     * @return Device opened on a new simulated scanner, its barcodes are ignored
+     */
+    static NLDevice openSimulated(int decodeDelayMs) {
+        NLSimulatedStream sim = new NLSimulatedStream();
+        sim.setDecodeDelay(decodeDelayMs);
+        return open(sim);
+    }
+}
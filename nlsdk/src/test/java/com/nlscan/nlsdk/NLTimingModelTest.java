@@ -0,0 +1,85 @@
+package com.nlscan.nlsdk;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NLTimingModelTest {
+    private NLTimingModel model;
+
+    @Before
+    public void setUp() {
+        model = new NLTimingModel();
+    }
+
+    @Test
+    public void defaultUntilEnoughSamples() {
+        for (int i = 0; i < 7; ++i)
+            model.record(NLTimingModel.CmdClass.HEALTH, 5, 0, true);
+        assertEquals(-1, model.getPercentile(NLTimingModel.CmdClass.HEALTH));
+        assertEquals(300, model.timeout(NLTimingModel.CmdClass.HEALTH, 300, 0));
+    }
+
+    @Test
+    public void learnedTimeoutCanBeShorterThanTheDefault() {
+        for (int i = 0; i < 8; ++i)
+            model.record(NLTimingModel.CmdClass.HEALTH, 40, 0, true);
+        assertEquals(40, model.getPercentile(NLTimingModel.CmdClass.HEALTH));
+        // 40 * 1.5 + 10
+        assertEquals(70, model.timeout(NLTimingModel.CmdClass.HEALTH, 300, 0));
+    }
+
+    @Test
+    public void learnedTimeoutHasAFloor() {
+        for (int i = 0; i < 8; ++i)
+            model.record(NLTimingModel.CmdClass.FLASH, 0, 0, true);
+        assertEquals(20, model.timeout(NLTimingModel.CmdClass.FLASH, 50, 0));
+    }
+
+    @Test
+    public void classesAreIndependent() {
+        for (int i = 0; i < 8; ++i)
+            model.record(NLTimingModel.CmdClass.HEALTH, 40, 0, true);
+        assertEquals(200, model.timeout(NLTimingModel.CmdClass.SET_CONFIG, 200, 0));
+    }
+
+    @Test
+    public void missedResponseBacksOffUntilTheNextSuccess() {
+        model.record(NLTimingModel.CmdClass.INFO, 0, 0, false);
+        assertEquals(600, model.timeout(NLTimingModel.CmdClass.INFO, 300, 0));
+        for (int i = 0; i < 10; ++i)
+            model.record(NLTimingModel.CmdClass.INFO, 0, 0, false);
+        assertEquals(300 * 8, model.timeout(NLTimingModel.CmdClass.INFO, 300, 0));
+        model.record(NLTimingModel.CmdClass.INFO, 10, 0, true);
+        assertEquals(300, model.timeout(NLTimingModel.CmdClass.INFO, 300, 0));
+    }
+
+    @Test
+    public void serialTransferTimeIsAccounted() {
+        model.setBaudrate(9600);
+        // 96 bytes of 10 bits at 9600 baud
+        assertEquals(100, model.transferMillis(96));
+        assertEquals(110, model.timeout(NLTimingModel.CmdClass.GET_CONFIG, 20, 96));
+        // The transfer time is not part of the learned response time
+        for (int i = 0; i < 8; ++i)
+            model.record(NLTimingModel.CmdClass.GET_CONFIG, 140, 96, true);
+        assertEquals(40, model.getPercentile(NLTimingModel.CmdClass.GET_CONFIG));
+    }
+
+    @Test
+    public void usbHasNoTransferTime() {
+        assertEquals(0, model.transferMillis(4096));
+    }
+
+    @Test
+    public void percentileFollowsTheSlowResponses() {
+        for (int i = 0; i < 64; ++i)
+            model.record(NLTimingModel.CmdClass.GET_CONFIG, i < 60 ? 10 : 100, 0, true);
+        assertEquals(100, model.getPercentile(NLTimingModel.CmdClass.GET_CONFIG));
+        // The oldest samples are replaced
+        for (int i = 0; i < 64; ++i)
+            model.record(NLTimingModel.CmdClass.GET_CONFIG, 10, 0, true);
+        assertEquals(10, model.getPercentile(NLTimingModel.CmdClass.GET_CONFIG));
+    }
+}